@@ -0,0 +1,1432 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.LocalDate;
+
+/**
+ * Micro-benchmarks for the repository and service hot paths.
+ * Run with {@code gradle benchmark}; data files are generated in a temporary directory.
+ * The {@code hotpaths} scenario is the regression suite: it times the main user-facing operations over
+ * generated data of configurable size in repeated iterations, and can write its scores to a CSV file and
+ * compare them with a baseline written by an earlier run.
+ */
+class InvestMateBenchmark {
+    private static final PrintStream QUIET = new PrintStream(OutputStream.nullOutputStream());
+    /** Lets load benchmarks read the files every time. */
+    private static final PortfolioCache NO_CACHE = new PortfolioCache(0);
+
+    /** Keeps key derivation from dominating benchmarks about user storage. */
+    private static final PasswordHasher FAST_HASHER = new PasswordHasher(1);
+
+    /** Receives benchmark results so the JIT cannot drop the measured work. */
+    static volatile long sink;
+
+    /** Operations of the {@code hotpaths} regression suite, see {@link #hotPath}. */
+    static final List<String> HOT_PATHS = List.of("findUserByEmail", "loadAll", "loadAllBinary", "saveAll", "editInvestmentById",
+            "estimateZakat", "complianceReport", "financialReportCsv");
+
+    /**
+     * Runs the benchmarks named on the command line, or all of them.
+     * @param args Benchmark names: login, columnar, parallel, parse, binary, stress, cache, zakat, import, report, password, http, session, shard, journal, rules, yearend, metrics, hotpaths, history
+     * @throws IOException If benchmark data cannot be generated
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> selected = Arrays.asList(args);
+        Path dir = Files.createTempDirectory("investmate-bench");
+        if (selected.isEmpty() || selected.contains("login")) {
+            benchmarkLogin(dir);
+        }
+        if (selected.isEmpty() || selected.contains("columnar")) {
+            benchmarkColumnar();
+        }
+        if (selected.isEmpty() || selected.contains("parallel")) {
+            benchmarkParallel(dir);
+        }
+        if (selected.isEmpty() || selected.contains("parse")) {
+            benchmarkParse(dir);
+        }
+        if (selected.isEmpty() || selected.contains("binary")) {
+            benchmarkBinary(dir);
+        }
+        if (selected.isEmpty() || selected.contains("stress")) {
+            benchmarkStress(dir);
+        }
+        if (selected.isEmpty() || selected.contains("cache")) {
+            benchmarkCache(dir);
+        }
+        if (selected.isEmpty() || selected.contains("zakat")) {
+            benchmarkZakat(dir);
+        }
+        if (selected.isEmpty() || selected.contains("import")) {
+            benchmarkImport(dir);
+        }
+        if (selected.isEmpty() || selected.contains("report")) {
+            benchmarkReport(dir);
+        }
+        if (selected.isEmpty() || selected.contains("password")) {
+            benchmarkPassword(dir);
+        }
+        if (selected.isEmpty() || selected.contains("http")) {
+            benchmarkHttp(dir);
+        }
+        if (selected.isEmpty() || selected.contains("session")) {
+            benchmarkSession(dir);
+        }
+        if (selected.isEmpty() || selected.contains("shard")) {
+            benchmarkShard(dir);
+        }
+        if (selected.isEmpty() || selected.contains("journal")) {
+            benchmarkJournal(dir);
+        }
+        if (selected.isEmpty() || selected.contains("rules")) {
+            benchmarkRules();
+        }
+        if (selected.isEmpty() || selected.contains("yearend")) {
+            benchmarkYearEnd(dir);
+        }
+        if (selected.isEmpty() || selected.contains("metrics")) {
+            benchmarkMetrics(dir);
+        }
+        if (selected.isEmpty() || selected.contains("hotpaths")) {
+            benchmarkHotPaths(dir);
+        }
+        if (selected.isEmpty() || selected.contains("history")) {
+            benchmarkHistory(dir);
+        }
+    }
+
+    /**
+     * Measures login latency against users files of growing size.
+     * @param dir Directory for generated files
+     * @throws IOException If the users file cannot be written
+     */
+    static void benchmarkLogin(Path dir) throws IOException {
+        System.out.println("=== Login latency vs user count ===");
+        for (int users : new int[] {1_000, 10_000, 100_000, 500_000}) {
+            Path file = dir.resolve("users_" + users + ".txt");
+            writeUsers(file, users, FAST_HASHER);
+            UserService service = new UserService(new UserRepository(file.toString()), FAST_HASHER);
+            long loadStart = System.nanoTime();
+            quietly(() -> service.login("user0@example.com", "secret0"));
+            long loadNanos = System.nanoTime() - loadStart;
+            Random random = new Random(users);
+            double nanosPerLogin = measure(200_000, () -> {
+                int n = random.nextInt(users);
+                service.login("USER" + n + "@example.com", "secret" + n);
+            });
+            System.out.printf("%,9d users: index load %,8.1f ms, login %,8.0f ns/op%n",
+                    users, loadNanos / 1e6, nanosPerLogin);
+        }
+    }
+
+    /**
+     * Compares aggregation over {@code List<Asset>} with the columnar store, in time and retained heap.
+     */
+    static void benchmarkColumnar() {
+        System.out.println("=== Aggregation: List<Asset> vs ColumnarPortfolio ===");
+        String[] types = {"stock", "gold", "silver", "cash", "real-estate", "bond"};
+        for (int count : new int[] {100_000, 1_000_000}) {
+            Random random = new Random(count);
+            long heapBefore = usedHeap();
+            List<Asset> assets = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String value = random.nextInt(1_000_000) + "." + random.nextInt(10) + random.nextInt(10);
+                assets.add(new Asset("a" + i, "Asset " + (i % 5_000), value, types[i % types.length]));
+            }
+            long listHeap = usedHeap() - heapBefore;
+            ColumnarPortfolio columns = ColumnarPortfolio.of(assets);
+            long columnarHeap = usedHeap() - heapBefore - listHeap;
+            ZakatCalculator calculator = new ZakatCalculator();
+            double listSum = measure(200, () -> sink += calculator.estimateZakatMinor(assets));
+            double listByType = measure(200, () -> {
+                Map<String, Long> totals = new HashMap<>();
+                for (Asset a : assets) {
+                    totals.merge(a.getType(), a.getValueMinor(), Long::sum);
+                }
+                sink += totals.size();
+            });
+            double columnarSum = measure(200, () -> sink += columns.sum());
+            double columnarByType = measure(200, () -> sink += columns.sumByType()[0]);
+            System.out.printf("%,9d assets: list %,6.1f MB sum %,8.2f ms byType %,8.2f ms | columnar %,6.1f MB sum %,8.2f ms byType %,8.2f ms%n",
+                    count, listHeap / 1e6, listSum / 1e6, listByType / 1e6,
+                    columnarHeap / 1e6, columnarSum / 1e6, columnarByType / 1e6);
+        }
+    }
+
+    /**
+     * Measures parallel file and in-memory aggregation from one core up to all cores,
+     * checking each result against the sequential zakat calculator.
+     * @param dir Directory for generated files
+     * @throws IOException If the portfolio file cannot be written or read
+     */
+    static void benchmarkParallel(Path dir) throws IOException {
+        System.out.println("=== Parallel aggregation scaling ===");
+        int count = 2_000_000;
+        Path file = dir.resolve("investments_parallel.txt");
+        writePortfolio(file, count);
+        List<Asset> assets = new ArrayList<>(count);
+        new InvestmentRepository(file).forEach(assets::add);
+        long expected = new ZakatCalculator().estimateZakatMinor(assets);
+        ColumnarPortfolio columns = ColumnarPortfolio.of(assets);
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < cores; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(cores);
+        for (int threads : threadCounts) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            ParallelAggregator aggregator = new ParallelAggregator(pool);
+            PortfolioTotals[] last = new PortfolioTotals[2];
+            double fileNanos = measure(20, () -> {
+                try {
+                    last[0] = aggregator.aggregateFile(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            double memoryNanos = measure(100, () -> last[1] = aggregator.aggregate(columns));
+            pool.shutdown();
+            boolean exact = last[0].zakat() == expected && last[1].zakat() == expected
+                    && last[0].byType().equals(last[1].byType());
+            System.out.printf("%2d threads: file %,8.1f ms (%,6.0f MB/s)  in-memory %,7.2f ms  exact=%b%n",
+                    threads, fileNanos / 1e6, Files.size(file) / (fileNanos / 1e9) / 1e6, memoryNanos / 1e6, exact);
+        }
+    }
+
+    /**
+     * Compares parse throughput of the memory-mapped reader with {@code BufferedReader} + {@code String.split},
+     * both scanning values only and building the same in-memory indexes.
+     * @param dir Directory for generated files
+     * @throws IOException If the files cannot be written or read
+     */
+    static void benchmarkParse(Path dir) throws IOException {
+        System.out.println("=== Parse throughput: BufferedReader/split vs memory-mapped ===");
+        Path portfolio = dir.resolve("investments_parse.txt");
+        writePortfolio(portfolio, 1_000_000);
+        Path users = dir.resolve("users_parse.txt");
+        writeUsers(users, 1_000_000);
+        double mb = Files.size(portfolio) / 1e6;
+        double readerScan = measure(10, () -> readLines(portfolio, line -> sink += Money.parseMinor(line.split(",", 4)[2])));
+        double mappedScan = measure(10, () -> {
+            try (FileChannel channel = FileChannel.open(portfolio, StandardOpenOption.READ)) {
+                MappedRecordReader record = new MappedRecordReader(channel, 0, channel.size(), true);
+                while (record.next()) {
+                    record.split(4);
+                    sink += record.minorField(2);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        System.out.printf("portfolio value scan %6.1f MB: reader %,7.1f MB/s  mapped %,7.1f MB/s%n",
+                mb, mb / (readerScan / 1e9), mb / (mappedScan / 1e9));
+        double readerLoad = measure(5, () -> {
+            Map<String, Asset> index = new LinkedHashMap<>();
+            readLines(portfolio, line -> {
+                String[] parts = line.split(",", 4);
+                index.put(parts[0], new Asset(parts[0], parts[1], parts[2], parts[3]));
+            });
+            sink += index.size();
+        });
+        double mappedLoad = measure(5, () -> {
+            try {
+                sink += new InvestmentRepository(portfolio, StorageFormat.TEXT, NO_CACHE).loadAll().size();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        System.out.printf("portfolio loadAll    %6.1f MB: reader %,7.1f MB/s  mapped %,7.1f MB/s%n",
+                mb, mb / (readerLoad / 1e9), mb / (mappedLoad / 1e9));
+        mb = Files.size(users) / 1e6;
+        double readerUsers = measure(5, () -> {
+            Map<String, User> index = new ConcurrentHashMap<>();
+            readLines(users, line -> {
+                String[] parts = line.split(",", 3);
+                index.putIfAbsent(parts[0].toLowerCase(Locale.ROOT), new Investor(parts[0], parts[1], parts[2]));
+            });
+            sink += index.size();
+        });
+        double mappedUsers = measure(5, () -> sink += new UserRepository(users.toString()).emailExists("missing@example.com") ? 1 : 0);
+        System.out.printf("users index build    %6.1f MB: reader %,7.1f MB/s  mapped %,7.1f MB/s%n",
+                mb, mb / (readerUsers / 1e9), mb / (mappedUsers / 1e9));
+    }
+
+    /**
+     * Compares file size and load time of the text log and the binary snapshot format.
+     * @param dir Directory for generated files
+     * @throws IOException If the files cannot be written or read
+     */
+    static void benchmarkBinary(Path dir) throws IOException {
+        System.out.println("=== Text vs binary portfolio format ===");
+        for (int count : new int[] {100_000, 1_000_000}) {
+            Path text = dir.resolve("investments_format_" + count + ".txt");
+            writePortfolio(text, count);
+            Path binary = InvestmentRepository.snapshotFile(text);
+            PortfolioFormatMigrator.toBinary(text, binary);
+            Path log = dir.resolve("investments_format_binary_" + count + ".txt");
+            Files.move(binary, InvestmentRepository.snapshotFile(log), StandardCopyOption.REPLACE_EXISTING);
+            double textNanos = measure(5, () -> {
+                try {
+                    sink += new InvestmentRepository(text, StorageFormat.TEXT, NO_CACHE).loadAll().size();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            double binaryNanos = measure(5, () -> {
+                try {
+                    sink += new InvestmentRepository(log, StorageFormat.BINARY, NO_CACHE).loadAll().size();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            System.out.printf("%,9d assets: text %6.1f MB load %,8.1f ms | binary %6.1f MB load %,8.1f ms%n",
+                    count, Files.size(text) / 1e6, textNanos / 1e6,
+                    Files.size(InvestmentRepository.snapshotFile(log)) / 1e6, binaryNanos / 1e6);
+        }
+    }
+
+    /**
+     * Hammers the repositories from many threads, then checks the files for lost or duplicated records.
+     * Every thread registers the same emails (in differing case) and edits the same few portfolios, half of
+     * them through their own repository instances so that the file locks, not just the in-process stripes,
+     * are what keeps the files consistent.
+     * @param dir Directory for generated files
+     * @throws IOException If the files cannot be read back
+     */
+    static void benchmarkStress(Path dir) throws IOException {
+        System.out.println("=== Concurrent repository stress ===");
+        int threads = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+        int emails = 2_000;
+        Path usersFile = dir.resolve("users_stress.txt");
+        UserService shared = new UserService(new UserRepository(usersFile.toString()), FAST_HASHER);
+        AtomicInteger registered = new AtomicInteger();
+        double registerNanos = quietly(() -> runThreads(threads, t -> {
+            UserService service = t % 2 == 0 ? shared : new UserService(new UserRepository(usersFile.toString()), FAST_HASHER);
+            for (int i = 0; i < emails; i++) {
+                int n = (i + t * emails / threads) % emails;
+                String email = (t % 3 == 0 ? "USER" : "user") + n + "@example.com";
+                if (service.registerUser(new Investor(email, "secret" + n, "User " + n))) {
+                    registered.incrementAndGet();
+                }
+            }
+        }));
+        long userLines = Files.readAllLines(usersFile).size();
+        System.out.printf("register: %d threads x %,d attempts in %,7.1f ms, %,d registered, %,d lines, consistent=%b%n",
+                threads, emails, registerNanos / 1e6, registered.get(), userLines,
+                registered.get() == emails && userLines == emails);
+
+        int portfolios = 4;
+        int ids = 50;
+        int opsPerThread = 2_000;
+        AtomicInteger[] live = new AtomicInteger[portfolios * ids];
+        for (int i = 0; i < live.length; i++) {
+            live[i] = new AtomicInteger();
+        }
+        InvestmentRepository[] sharedRepositories = new InvestmentRepository[portfolios];
+        for (int u = 0; u < portfolios; u++) {
+            sharedRepositories[u] = new InvestmentRepository(dir.resolve("investments_stress_" + u + ".txt"));
+        }
+        double editNanos = runThreads(threads, t -> {
+            InvestmentRepository[] repositories = sharedRepositories;
+            if (t % 2 == 1) {
+                repositories = new InvestmentRepository[portfolios];
+                for (int u = 0; u < portfolios; u++) {
+                    repositories[u] = new InvestmentRepository(dir.resolve("investments_stress_" + u + ".txt"));
+                }
+            }
+            Random random = new Random(t);
+            try {
+                for (int i = 0; i < opsPerThread; i++) {
+                    int u = random.nextInt(portfolios);
+                    int id = random.nextInt(ids);
+                    Asset asset = new Asset("a" + id, "Asset " + id, random.nextInt(1_000_000), "stock");
+                    int op = random.nextInt(3);
+                    if (op == 0 && repositories[u].saveIfAbsent(asset)) {
+                        live[u * ids + id].incrementAndGet();
+                    } else if (op == 1) {
+                        repositories[u].update(asset);
+                    } else if (op == 2 && repositories[u].delete(asset.getId())) {
+                        live[u * ids + id].decrementAndGet();
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        boolean consistent = true;
+        for (int u = 0; u < portfolios; u++) {
+            Path file = dir.resolve("investments_stress_" + u + ".txt");
+            List<Asset> assets = new InvestmentRepository(file, StorageFormat.TEXT, NO_CACHE).loadAll();
+            int expected = 0;
+            for (int id = 0; id < ids; id++) {
+                int count = live[u * ids + id].get();
+                consistent &= count == 0 || count == 1;
+                expected += count;
+            }
+            for (Asset a : assets) {
+                consistent &= live[u * ids + Integer.parseInt(a.getId().substring(1))].get() == 1;
+            }
+            consistent &= assets.size() == expected;
+        }
+        System.out.printf("edit:     %d threads x %,d ops over %d portfolios in %,7.1f ms (%,.0f ops/s), consistent=%b%n",
+                threads, opsPerThread, portfolios, editNanos / 1e6,
+                threads * opsPerThread / (editNanos / 1e9), consistent);
+    }
+
+    /**
+     * Serves zakat requests for many users, most of them for a few popular users, through a fresh
+     * repository per request as a server would, with and without the portfolio cache.
+     * @param dir Directory for generated files
+     * @throws IOException If the portfolio files cannot be written
+     */
+    static void benchmarkCache(Path dir) throws IOException {
+        System.out.println("=== Portfolio cache: repeated zakat requests ===");
+        int users = 400;
+        for (int u = 0; u < users; u++) {
+            writePortfolio(dir.resolve("investments_cache_" + u + ".txt"), 1_000);
+        }
+        ZakatCalculator calculator = new ZakatCalculator();
+        for (long budget : new long[] {0, 16L << 20, 128L << 20}) {
+            PortfolioCache cache = new PortfolioCache(budget);
+            Random random = new Random(42);
+            double nanos = measure(20_000, () -> {
+                int u = random.nextInt(5) == 0 ? random.nextInt(users) : random.nextInt(users / 20);
+                InvestmentRepository repository = new InvestmentRepository(
+                        dir.resolve("investments_cache_" + u + ".txt"), StorageFormat.TEXT, cache);
+                try {
+                    sink += calculator.estimateZakatMinor(repository);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            System.out.printf("budget %,4d MB: %,9.1f us/request | %s%n", budget >> 20, nanos / 1e3, cache);
+        }
+    }
+
+    /**
+     * Compares answering zakat from the running totals with recomputing it from the portfolio,
+     * and measures what keeping the totals costs an edit.
+     * @param dir Directory for generated files
+     * @throws IOException If the portfolio files cannot be written or read
+     */
+    static void benchmarkZakat(Path dir) throws IOException {
+        System.out.println("=== Zakat: running totals vs full recompute ===");
+        ZakatCalculator calculator = new ZakatCalculator();
+        for (int count : new int[] {10_000, 100_000, 1_000_000}) {
+            Path file = dir.resolve("investments_zakat_" + count + ".txt");
+            writePortfolio(file, count);
+            InvestmentRepository repository = new InvestmentRepository(file, StorageFormat.TEXT, NO_CACHE);
+            long expected = calculator.estimateZakatMinor(repository);
+            double fullNanos = measure(5, () -> {
+                try {
+                    sink += calculator.estimateZakatMinor(new InvestmentRepository(file, StorageFormat.TEXT, NO_CACHE));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            boolean exact = repository.totals().zakat() == expected;
+            double runningNanos = measure(10_000, () -> {
+                try {
+                    sink += repository.totals().zakat();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            Random random = new Random(count);
+            double editNanos = measure(2_000, () -> {
+                try {
+                    int n = random.nextInt(count);
+                    repository.update(new Asset("a" + n, "Asset " + n, random.nextInt(100_000_000), "gold"));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            System.out.printf("%,9d assets: full %,10.1f us  running %,7.1f us  edit %,7.1f us  exact=%b verified=%b%n",
+                    count, fullNanos / 1e3, runningNanos / 1e3, editNanos / 1e3, exact, repository.verifyTotals());
+        }
+    }
+
+    /**
+     * Compares adding assets one call at a time with the batch CSV import, at several flush sizes.
+     * @param dir Directory for generated files
+     * @throws IOException If the files cannot be written or read
+     */
+    static void benchmarkImport(Path dir) throws IOException {
+        System.out.println("=== Import: per-call addInvestment vs batch ===");
+        int single = 20_000;
+        Path singleFile = dir.resolve("investments_import_single.txt");
+        InvestmentService singleService = new InvestmentService(new InvestmentRepository(singleFile, StorageFormat.TEXT, NO_CACHE));
+        long start = System.nanoTime();
+        quietly(() -> {
+            for (int i = 0; i < single; i++) {
+                singleService.addInvestment(new Asset("a" + i, "Asset " + i, i * 100L, "stock"));
+            }
+        });
+        double singleRate = single / ((System.nanoTime() - start) / 1e9);
+        System.out.printf("per call: %,9d rows %,12.0f rows/s%n", single, singleRate);
+        int rows = 1_000_000;
+        Path csv = dir.resolve("import.csv");
+        writePortfolio(csv, rows);
+        for (int flush : new int[] {1, 256, InvestmentService.DEFAULT_FLUSH_RECORDS}) {
+            Path file = dir.resolve("investments_import_" + flush + ".txt");
+            Files.deleteIfExists(file);
+            AssetCsvImporter importer = new AssetCsvImporter(
+                    new InvestmentService(new InvestmentRepository(file, StorageFormat.TEXT, NO_CACHE)), flush);
+            start = System.nanoTime();
+            ImportResult result = quietly(() -> importer.importFile(csv));
+            double rate = result.accepted() / ((System.nanoTime() - start) / 1e9);
+            System.out.printf("batch, flush every %,5d: %,9d rows %,12.0f rows/s (%,.0fx) %s%n",
+                    flush, rows, rate, rate / singleRate, result);
+        }
+    }
+
+    /**
+     * Compares report throughput of the buffered NIO writers with the unbuffered {@code FileWriter}
+     * and string concatenation the report generators used to use, over the same in-memory portfolio.
+     * @param dir Directory for generated files
+     * @throws IOException If the portfolio file cannot be written or read
+     */
+    static void benchmarkReport(Path dir) throws IOException {
+        System.out.println("=== Report throughput: FileWriter/concat vs buffered NIO ===");
+        Path file = dir.resolve("investments_report.txt");
+        writePortfolio(file, 1_000_000);
+        List<Asset> assets = new InvestmentRepository(file, StorageFormat.TEXT, NO_CACHE).loadAll();
+        AssetSource source = AssetSource.of(assets);
+        Path reports = Files.createDirectories(dir.resolve("reports"));
+        double legacyZakat = measure(30, () -> {
+            try (FileWriter writer = new FileWriter(reports.resolve("zakat_report.txt").toFile())) {
+                writer.write("=== Zakat Report ===\nAssets:\n");
+                source.forEach(asset -> writer.write("- " + asset.getName() + ": " + asset.getValue() + " EGP\n"));
+                writer.write("Total Zakat Due: " + Money.format(0) + " EGP\n");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        ComplianceReport compliance = new ComplianceReport(reports);
+        double bufferedZakat = measure(30, () -> compliance.generateReport("bench@example.com", source, 0));
+        double legacyFinancial = measure(30, () -> {
+            try (FileWriter writer = new FileWriter(reports.resolve("financial_report.csv").toFile())) {
+                writer.write("=== Financial Report ===\n");
+                writer.write("Asset ID, Name, Value (EGP), Type\n");
+                source.forEach(asset -> writer.write(asset.toFileString() + "\n"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        FinancialReportGenerator financial = new FinancialReportGenerator(reports);
+        double bufferedFinancial = measure(30, () -> financial.generateReport("bench@example.com", source, "csv"));
+        double mb = Files.size(reports.resolve("financial_report.csv")) / 1e6;
+        System.out.printf("zakat report:     FileWriter %,8.1f ms  buffered %,8.1f ms (%,.1fx)%n",
+                legacyZakat / 1e6, bufferedZakat / 1e6, legacyZakat / bufferedZakat);
+        System.out.printf("financial report: FileWriter %,8.1f ms  buffered %,8.1f ms (%,.1fx), %,.0f MB/s%n",
+                legacyFinancial / 1e6, bufferedFinancial / 1e6, legacyFinancial / bufferedFinancial, mb / (bufferedFinancial / 1e9));
+        for (String format : new String[] {"csv", "xlsx", "pdf", "txt"}) {
+            ReportExporter exporter = ReportExporters.forFormat(format);
+            Path export = reports.resolve("export." + exporter.extension());
+            double nanos = measure(10, () -> {
+                try (FileChannel channel = FileChannel.open(export, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    exporter.export(source, channel);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            System.out.printf("export %-4s %,8.1f ms  %,7.1f MB  %,10.0f rows/s%n", format, nanos / 1e6,
+                    Files.size(export) / 1e6, assets.size() / (nanos / 1e9));
+        }
+    }
+
+    /**
+     * Measures login throughput at several key-derivation costs, for one caller and for more callers than
+     * cores sharing a verification pool, then times the migration of plain-text accounts on first login.
+     * @param dir Directory for generated files
+     * @throws IOException If the users files cannot be written or read
+     */
+    static void benchmarkPassword(Path dir) throws IOException {
+        System.out.println("=== Login throughput vs password hashing cost ===");
+        int threads = Runtime.getRuntime().availableProcessors();
+        int callers = 4 * threads;
+        int users = 64;
+        int calibrated = PasswordHasher.shared().iterations();
+        System.out.printf("calibrated cost: %,d iterations, %d verification threads, %d concurrent callers%n",
+                calibrated, threads, callers);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int iterations : new int[] {1_000, 10_000, 100_000, calibrated}) {
+                PasswordHasher hasher = new PasswordHasher(iterations, pool);
+                Path file = dir.resolve("users_password_" + iterations + ".txt");
+                writeUsers(file, users, hasher);
+                UserService service = new UserService(new UserRepository(file.toString()), hasher);
+                int ops = Math.max(10, 2_000_000 / iterations);
+                AtomicInteger next = new AtomicInteger();
+                double single = measure(ops, () -> {
+                    int n = next.getAndIncrement() % users;
+                    service.login("user" + n + "@example.com", "secret" + n);
+                });
+                int perCaller = Math.max(2, ops / threads);
+                double concurrent = quietly(() -> runThreads(callers, t -> {
+                    for (int i = 0; i < perCaller; i++) {
+                        int n = (t + i) % users;
+                        service.login("user" + n + "@example.com", "secret" + n);
+                    }
+                }));
+                System.out.printf("%,10d iterations: %,7.2f ms/login  1 caller %,9.0f logins/s  %d callers %,9.0f logins/s%n",
+                        iterations, single / 1e6, 1e9 / single, callers, callers * perCaller / (concurrent / 1e9));
+            }
+
+            int plain = 16;
+            Path file = dir.resolve("users_password_plain.txt");
+            writeUsers(file, plain);
+            UserService service = new UserService(new UserRepository(file.toString()), new PasswordHasher(calibrated, pool));
+            long start = System.nanoTime();
+            quietly(() -> {
+                for (int n = 0; n < plain; n++) {
+                    service.login("user" + n + "@example.com", "secret" + n);
+                }
+            });
+            double first = (double) (System.nanoTime() - start) / plain;
+            start = System.nanoTime();
+            quietly(() -> {
+                for (int n = 0; n < plain; n++) {
+                    service.login("user" + n + "@example.com", "secret" + n);
+                }
+            });
+            double second = (double) (System.nanoTime() - start) / plain;
+            UserRepository reread = new UserRepository(file.toString());
+            int hashed = 0;
+            for (int n = 0; n < plain; n++) {
+                hashed += PasswordHasher.isHashed(reread.findUserByEmail("user" + n + "@example.com").password) ? 1 : 0;
+            }
+            System.out.printf("plain-text migration: first login %,7.1f ms, next login %,7.1f ms, %d/%d records hashed%n",
+                    first / 1e6, second / 1e6, hashed, plain);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Serves the HTTP API from a temporary directory and load-tests it with growing numbers of concurrent investors.
+     * @param dir Directory for generated files
+     * @throws IOException If the server cannot start
+     */
+    static void benchmarkHttp(Path dir) throws IOException {
+        System.out.println("=== HTTP API load test ===");
+        Path data = Files.createDirectories(dir.resolve("http"));
+        InvestMateServer server = new InvestMateServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                new StorageLayout(data, 2), FAST_HASHER, SessionManager.SHARED);
+        server.start();
+        try {
+            InvestMateLoadTest client = new InvestMateLoadTest("http://127.0.0.1:" + server.port());
+            for (int users : new int[] {1, 16, 64}) {
+                InvestMateLoadTest.Result result = quietly(() -> client.run(users, 200));
+                System.out.printf("%3d investors: %s%n", users, result);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Compares authenticating a call by session token with logging in again, in time and bytes allocated
+     * per call, and checks that the session cap holds under a flood of logins.
+     * @param dir Directory for generated files
+     * @throws IOException If the users file cannot be written
+     */
+    static void benchmarkSession(Path dir) throws IOException {
+        System.out.println("=== Session token check vs re-authentication ===");
+        int users = 10_000;
+        PasswordHasher hasher = new PasswordHasher(10_000);
+        Path file = dir.resolve("users_session.txt");
+        writeUsers(file, 100, hasher);
+        writeUsers(dir.resolve("users_session_bulk.txt"), users, FAST_HASHER);
+        SessionManager sessions = new SessionManager(Duration.ofHours(1), Duration.ofMinutes(30), users);
+        UserService service = new UserService(new UserRepository(file.toString()), hasher, sessions);
+        String token = quietly(() -> service.login("user1@example.com", "secret1")).token();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int ops = 5_000_000;
+        double validate = measure(ops, () -> sink += service.session(token) == null ? 0 : 1);
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ops; i++) {
+            sink += service.session(token) == null ? 0 : 1;
+        }
+        double validateBytes = (double) (threads.getThreadAllocatedBytes(thread) - before) / ops;
+        int logins = 200;
+        double login = measure(logins, () -> service.login("user1@example.com", "secret1"));
+        before = threads.getThreadAllocatedBytes(thread);
+        quietly(() -> service.login("user1@example.com", "secret1"));
+        double loginBytes = threads.getThreadAllocatedBytes(thread) - before;
+        System.out.printf("token check %,8.1f ns/op %,6.1f B/op   login %,10.0f ns/op %,8.0f B/op (%,.0fx)%n",
+                validate, validateBytes, login, loginBytes, login / validate);
+
+        UserService flood = new UserService(new UserRepository(dir.resolve("users_session_bulk.txt").toString()), FAST_HASHER, sessions);
+        AtomicInteger next = new AtomicInteger();
+        double floodNanos = measure(4 * users, () -> {
+            int n = next.getAndIncrement() % users;
+            flood.login("user" + n + "@example.com", "secret" + n);
+        });
+        System.out.printf("%,d logins against a cap of %,d: %,.0f ns/login, %,d sessions live%n",
+                4 * users + 4 * users / 10, users, floodNanos, sessions.size());
+    }
+
+    /**
+     * Compares the flat and the bucketed storage layouts as the number of portfolios grows: the latency of
+     * resolving and opening a random user's portfolio, of creating a new one, and of listing the directory a
+     * portfolio sits in. Then rebalances the flat files into buckets.
+     * @param dir Directory for generated files
+     * @throws IOException If the files cannot be created or moved
+     */
+    static void benchmarkShard(Path dir) throws IOException {
+        System.out.println("=== Portfolio open latency: flat vs bucketed layout ===");
+        for (int users : new int[] {1_000, 10_000, 100_000}) {
+            StorageLayout flat = new StorageLayout(Files.createDirectories(dir.resolve("flat_" + users)), 0);
+            StorageLayout sharded = new StorageLayout(Files.createDirectories(dir.resolve("sharded_" + users)), 2);
+            for (StorageLayout layout : new StorageLayout[] {flat, sharded}) {
+                for (int u = 0; u < users; u++) {
+                    Path file = layout.portfolioFile("user" + u + "@example.com");
+                    Files.createDirectories(file.getParent());
+                    Files.write(file, "a1,Gold,100.00,gold\n".getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            double[] open = new double[2];
+            double[] create = new double[2];
+            double[] list = new double[2];
+            StorageLayout[] layouts = {flat, sharded};
+            for (int l = 0; l < 2; l++) {
+                StorageLayout layout = layouts[l];
+                Random random = new Random(users);
+                open[l] = measure(50_000, () -> {
+                    try (FileChannel channel = FileChannel.open(layout.portfolioFile("user" + random.nextInt(users) + "@example.com"),
+                            StandardOpenOption.READ)) {
+                        sink += channel.size();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                AtomicInteger next = new AtomicInteger(users);
+                create[l] = measure(5_000, () -> {
+                    Path file = layout.portfolioFile("user" + next.getAndIncrement() + "@example.com");
+                    try {
+                        FileLocks.exclusive(FileLocks.lockFileFor(file.toString()), () -> sink += 1);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                Path bucket = layout.portfolioFile("user0@example.com").getParent();
+                list[l] = measure(20, () -> {
+                    try (Stream<Path> entries = Files.list(bucket)) {
+                        sink += entries.count();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            System.out.printf("%,8d portfolios: open flat %,7.0f ns  bucketed %,7.0f ns | create flat %,7.0f ns  bucketed %,7.0f ns"
+                    + " | list directory flat %,9.1f us  bucketed %,7.1f us%n",
+                    users, open[0], open[1], create[0], create[1], list[0] / 1e3, list[1] / 1e3);
+            if (users == 100_000) {
+                long start = System.nanoTime();
+                int[] moved = StorageRebalancer.rebalance(new StorageLayout(flat.root(), 2));
+                System.out.printf("rebalanced %,d flat files into buckets in %,.1f ms (%d conflicts)%n",
+                        moved[0], (System.nanoTime() - start) / 1e6, moved[1]);
+            }
+        }
+    }
+
+    /**
+     * Compares durable asset writes with the text log synced on every write and with group commit through
+     * the journal, with each thread writing its own portfolio.
+     * @param dir Directory for generated files
+     * @throws IOException If the journal cannot be opened or closed
+     */
+    static void benchmarkJournal(Path dir) throws IOException {
+        System.out.println("=== Durable asset writes: fsync per write vs journal group commit ===");
+        int writes = 2000;
+        for (int threads : new int[] {1, 8, 32}) {
+            double[] perSecond = new double[2];
+            long syncs = 0;
+            for (int mode = 0; mode < 2; mode++) {
+                Path root = Files.createDirectories(dir.resolve("journal_" + threads + "_" + mode));
+                WriteAheadJournal journal = mode == 1 ? WriteAheadJournal.open(root.resolve(WriteAheadJournal.DIRECTORY), 8L << 20) : null;
+                InvestmentRepository[] repos = new InvestmentRepository[threads];
+                for (int t = 0; t < threads; t++) {
+                    repos[t] = new InvestmentRepository(root.resolve("investments_" + t + ".txt"), StorageFormat.TEXT, NO_CACHE, journal);
+                }
+                double nanos = runThreads(threads, t -> {
+                    try {
+                        for (int i = 0; i < writes; i++) {
+                            repos[t].save(new Asset("a" + i, "Asset " + i, "100.00", "stock"));
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                perSecond[mode] = threads * (double) writes / (nanos / 1e9);
+                if (journal != null) {
+                    syncs = journal.syncs();
+                    journal.close();
+                }
+            }
+            System.out.printf("%2d threads: fsync per write %,8.0f writes/s  group commit %,8.0f writes/s (%,.1fx), %,.1f writes per journal sync%n",
+                    threads, perSecond[0], perSecond[1], perSecond[1] / perSecond[0], threads * (double) writes / syncs);
+        }
+    }
+
+    /**
+     * Measures year-end zakat assessment with the rules engine, from columnar portfolios and from
+     * running totals, in investors per second.
+     */
+    static void benchmarkRules() {
+        System.out.println("=== Zakat rules: year-end assessment throughput ===");
+        String[] types = {"stock", "gold", "silver", "cash", "real-estate", "bond"};
+        ZakatRules rules = new ZakatRules.Builder().exempt("real-estate").rate("crops", 500, false)
+                .nisab(ZakatRules.NisabStandard.GOLD, 4_000_00).build();
+        LocalDate asOf = LocalDate.of(2026, 12, 31);
+        for (int investors : new int[] {10_000, 100_000}) {
+            Random random = new Random(investors);
+            List<ColumnarPortfolio> portfolios = new ArrayList<>(investors);
+            List<PortfolioTotals> totals = new ArrayList<>(investors);
+            List<LocalDate> hawlStarts = new ArrayList<>(investors);
+            long rows = 0;
+            for (int i = 0; i < investors; i++) {
+                ColumnarPortfolio.Builder builder = new ColumnarPortfolio.Builder();
+                int assets = 20 + random.nextInt(60);
+                for (int a = 0; a < assets; a++) {
+                    builder.put("a" + a, "Asset " + a, 100 + random.nextInt(5_000_000), types[random.nextInt(types.length)]);
+                }
+                ColumnarPortfolio portfolio = builder.build();
+                long[] sums = portfolio.sumByType();
+                Map<String, Long> byType = new LinkedHashMap<>();
+                for (int code = 0; code < sums.length; code++) {
+                    byType.put(portfolio.types().decode(code), sums[code]);
+                }
+                portfolios.add(portfolio);
+                totals.add(new PortfolioTotals(portfolio.sum(), byType, portfolio.size(), 0, 0));
+                hawlStarts.add(random.nextInt(4) == 0 ? null : asOf.minusDays(random.nextInt(2 * ZakatRules.HAWL_DAYS)));
+                rows += assets;
+            }
+            double columnar = measure(10, () -> sink += rules.assessAll(portfolios, hawlStarts, asOf).length);
+            double running = measure(10, () -> {
+                for (int i = 0; i < investors; i++) {
+                    sink += rules.assess(totals.get(i), hawlStarts.get(i), asOf).dueMinor();
+                }
+            });
+            System.out.printf("%,8d investors (%,d assets): columnar %,11.0f investors/s | running totals %,11.0f investors/s%n",
+                    investors, rows, investors / (columnar / 1e9), investors / (running / 1e9));
+        }
+    }
+
+    /**
+     * Measures the year-end batch job over generated users, some of them with superseded records, at
+     * several pool sizes, and a rerun that resumes from the finished users.
+     * @param dir Directory for generated files
+     * @throws IOException If the users or portfolios cannot be written, or the job fails
+     */
+    static void benchmarkYearEnd(Path dir) throws IOException {
+        System.out.println("=== Year-end batch job: zakat and CSV report per user ===");
+        int users = 5_000;
+        StorageLayout layout = new StorageLayout(Files.createDirectories(dir.resolve("yearend")), 2);
+        writeUsers(layout.usersFile(), users);
+        try (BufferedWriter writer = Files.newBufferedWriter(layout.usersFile(), StandardOpenOption.APPEND)) {
+            for (int i = 0; i < users; i += 10) {
+                writer.write(new Investor("USER" + i + "@example.com", "changed" + i, "User " + i).toFileString());
+                writer.newLine();
+            }
+        }
+        for (int u = 0; u < users; u++) {
+            Path file = layout.portfolioFile("user" + u + "@example.com");
+            Files.createDirectories(file.getParent());
+            writePortfolio(file, 20);
+        }
+        for (int threads : new int[] {1, 4, 16}) {
+            Path output = dir.resolve("yearend_out_" + threads);
+            YearEndBatchJob job = new YearEndBatchJob(layout, output, "csv", threads, ZakatRules.defaults(), LocalDate.of(2026, 12, 31));
+            YearEndBatchJob.Summary first = quietly(() -> runJob(job));
+            YearEndBatchJob.Summary rerun = quietly(() -> runJob(job));
+            System.out.printf("%2d threads: %,d users in %,.0f users/s (%,d duplicate records, %d failed) | rerun skipped %,d%n",
+                    threads, first.processed(), first.usersPerSecond(), first.duplicates(), first.failed(), rerun.skipped());
+        }
+    }
+
+    /**
+     * Measures what instrumentation adds to a hot path: a counter increment and a timed histogram record,
+     * from one thread and from eight contending threads, next to a cached asset lookup that carries both.
+     * @param dir Directory for generated files
+     * @throws IOException If the portfolio cannot be written or read
+     */
+    static void benchmarkMetrics(Path dir) throws IOException {
+        System.out.println("=== Metrics: recording overhead ===");
+        Metrics metrics = new Metrics();
+        Metrics.Counter counter = metrics.counter("bench.counter");
+        Metrics.Histogram histogram = metrics.histogram("bench.histogram");
+        int ops = 5_000_000;
+        for (int threads : new int[] {1, 8}) {
+            double increment = runThreads(threads, t -> {
+                for (int i = 0; i < ops; i++) {
+                    counter.increment();
+                }
+            }) / ((double) ops * threads);
+            double record = runThreads(threads, t -> {
+                for (int i = 0; i < ops; i++) {
+                    histogram.recordSince(System.nanoTime() - i);
+                }
+            }) / ((double) ops * threads);
+            System.out.printf("%d thread(s): counter %5.1f ns/op | timed histogram record %5.1f ns/op%n", threads, increment, record);
+        }
+        Path file = dir.resolve("investments_metrics.txt");
+        writePortfolio(file, 1_000);
+        InvestmentRepository repository = new InvestmentRepository(file, StorageFormat.TEXT, new PortfolioCache(64L << 20), null);
+        double lookup = measure(1_000_000, () -> {
+            try {
+                sink += repository.findById("a500").getValueMinor();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        double snapshot = measure(1_000, () -> sink += metrics.toText().length() + Metrics.SHARED.toJson().length());
+        System.out.printf("cached findById (one histogram, one cache counter) %,.0f ns/op | text and JSON snapshot %,.0f ns%n", lookup, snapshot);
+        System.out.println("portfolio.read " + Metrics.SHARED.toText().lines()
+                .filter(line -> line.startsWith("portfolio.read ")).findFirst().orElse("").substring("portfolio.read ".length()));
+    }
+
+    /**
+     * Times the user-facing hot paths over realistic generated data: user lookup against the users file size,
+     * {@code loadAll} and {@code saveAll} against the portfolio size, an edit through {@link InvestmentService},
+     * the zakat estimate and both report generators. Each score is the mean of
+     * {@code -Dinvestmate.bench.iterations} (5) timed iterations after as many warm-up ones, with the standard
+     * deviation across iterations as its error.
+     * Sizes come from {@code -Dinvestmate.bench.users} and {@code -Dinvestmate.bench.assets}, comma-separated
+     * ({@code 1000,100000} by default). With {@code -Dinvestmate.bench.csv=<file>} the scores are written as CSV;
+     * with {@code -Dinvestmate.bench.baseline=<file>} each is compared with the score of an earlier run.
+     * @param dir Directory for generated files
+     * @throws IOException If the data cannot be generated, or the CSV files cannot be read or written
+     */
+    static void benchmarkHotPaths(Path dir) throws IOException {
+        System.out.println("=== Hot paths: regression suite ===");
+        int iterations = Integer.getInteger("investmate.bench.iterations", 5);
+        Map<String, Double> baseline = readScores(System.getProperty("investmate.bench.baseline"));
+        List<String> scores = new ArrayList<>();
+        scores.add("benchmark,size,mean_ns,error_ns");
+        ScoreSink results = (name, size, score) -> {
+            String key = name + "," + size;
+            Double before = baseline.get(key);
+            System.out.printf("%-26s %,9d %,16.0f +- %,12.0f ns/op%s%n", name, size, score[0], score[1],
+                    before == null ? "" : String.format("  %+6.1f%% vs baseline", (score[0] / before - 1) * 100));
+            scores.add(key + "," + Math.round(score[0]) + "," + Math.round(score[1]));
+        };
+        for (int users : sizes("investmate.bench.users")) {
+            LongSupplier op = hotPath("findUserByEmail", users, dir);
+            results.add("findUserByEmail", users, sample(iterations, 100_000, () -> sink += op.getAsLong()));
+        }
+        for (int assets : sizes("investmate.bench.assets")) {
+            int ops = Math.max(1, 1_000_000 / assets);
+            for (String name : HOT_PATHS.subList(1, HOT_PATHS.size())) {
+                LongSupplier op = hotPath(name, assets, dir);
+                int count = name.equals("editInvestmentById") ? 500 : name.equals("estimateZakat") ? ops * 10 : ops;
+                results.add(name, assets, sample(iterations, count, () -> sink += op.getAsLong()));
+            }
+        }
+        String csv = System.getProperty("investmate.bench.csv");
+        if (csv != null) {
+            Files.write(Paths.get(csv), scores);
+            System.out.println("Scores written to " + csv);
+        }
+    }
+
+    /**
+     * Prepares one hot path of the regression suite over generated data. The harness above and the JMH benchmarks
+     * in the {@code jmh} module both measure the operations made here; JMH benchmarks cannot live in the default
+     * package, so they reach this method reflectively. Data files are generated in the directory on first use and
+     * reused by later calls for the same size.
+     * @param name One of {@link #HOT_PATHS}, or one of the operations the JMH module compares: {@code listSum} and
+     *        {@code columnarSum}, {@code listSumByType} and {@code columnarSumByType}, {@code aggregateFile},
+     *        {@code aggregateFileWithLog} and {@code aggregateColumnar}, {@code login}
+     * @param size PBKDF2 iterations for {@code login}, number of users for {@code findUserByEmail}, of assets otherwise
+     * @param dir Directory for generated files
+     * @return The operation; each call runs it once and returns a value to consume, so the JIT cannot drop the work
+     * @throws IOException If the data cannot be generated or loaded
+     * @throws IllegalArgumentException If the name is unknown
+     */
+    static LongSupplier hotPath(String name, int size, Path dir) throws IOException {
+        if (name.equals("login")) {
+            PasswordHasher hasher = new PasswordHasher(size);
+            Path file = dir.resolve("users_login_" + size + ".txt");
+            if (!Files.exists(file)) {
+                writeUsers(file, 16, hasher);
+            }
+            UserService service = new UserService(new UserRepository(file.toString()), hasher,
+                    new SessionManager(Duration.ofMinutes(1), Duration.ofMinutes(1), 16));
+            Random random = new Random(size);
+            return () -> {
+                int n = random.nextInt(16);
+                return service.login("user" + n + "@example.com", "secret" + n) == null ? 0 : 1;
+            };
+        }
+        if (name.equals("findUserByEmail")) {
+            Path file = dir.resolve("users_hot_" + size + ".txt");
+            if (!Files.exists(file)) {
+                writeUsers(file, size, FAST_HASHER);
+            }
+            UserRepository repository = new UserRepository(file.toString());
+            Random random = new Random(size);
+            return () -> repository.findUserByEmail("User" + random.nextInt(size) + "@Example.com") == null ? 0 : 1;
+        }
+        Path file = dir.resolve("investments_hot_" + size + ".txt");
+        if (!Files.exists(file)) {
+            writeRealisticPortfolio(file, size, 0.1, size);
+        }
+        InvestmentRepository uncached = new InvestmentRepository(file, StorageFormat.TEXT, NO_CACHE);
+        List<Asset> loaded = uncached.loadAll();
+        Path copy = dir.resolve("investments_hot_save_" + size + ".txt");
+        Path reports = Files.createDirectories(dir.resolve("reports_hot"));
+        Random random = new Random(size);
+        switch (name) {
+            case "loadAll":
+                return () -> io(() -> uncached.loadAll().size());
+            case "loadAllBinary":
+                Path log = dir.resolve("investments_hot_binary_" + size + ".txt");
+                new InvestmentRepository(log, StorageFormat.BINARY, NO_CACHE).saveAll(loaded);
+                InvestmentRepository binary = new InvestmentRepository(log, StorageFormat.BINARY, NO_CACHE);
+                return () -> io(() -> binary.loadAll().size());
+            case "saveAll":
+                InvestmentRepository saved = new InvestmentRepository(copy, StorageFormat.TEXT, NO_CACHE);
+                return () -> io(() -> {
+                    saved.saveAll(loaded);
+                    return loaded.size();
+                });
+            case "editInvestmentById":
+                new InvestmentRepository(copy, StorageFormat.TEXT, NO_CACHE).saveAll(loaded);
+                InvestmentService service = new InvestmentService(new InvestmentRepository(copy, StorageFormat.TEXT, new PortfolioCache(64L << 20)));
+                return () -> {
+                    Asset asset = loaded.get(random.nextInt(loaded.size()));
+                    return service.editInvestmentById(asset.getId(), asset.getName(), Money.format(random.nextInt(1_000_000_00)), asset.getType()) ? 1 : 0;
+                };
+            case "estimateZakat":
+                ZakatCalculator calculator = new ZakatCalculator();
+                return () -> calculator.estimateZakatMinor(loaded);
+            case "listSum":
+                return () -> {
+                    long total = 0;
+                    for (Asset a : loaded) {
+                        total += a.hasValidValue() ? a.getValueMinor() : 0;
+                    }
+                    return total;
+                };
+            case "columnarSum":
+                ColumnarPortfolio summed = ColumnarPortfolio.of(loaded);
+                return summed::sum;
+            case "listSumByType":
+                return () -> {
+                    Map<String, Long> totals = new HashMap<>();
+                    for (Asset a : loaded) {
+                        if (a.hasValidValue()) {
+                            totals.merge(a.getType(), a.getValueMinor(), Long::sum);
+                        }
+                    }
+                    return totals.size();
+                };
+            case "columnarSumByType":
+                ColumnarPortfolio columns = ColumnarPortfolio.of(loaded);
+                return () -> columns.sumByType()[0];
+            case "aggregateFile":
+                new InvestmentRepository(copy, StorageFormat.TEXT, NO_CACHE).saveAll(loaded);
+                ParallelAggregator compacted = new ParallelAggregator();
+                return () -> io(() -> compacted.aggregateFile(copy).total());
+            case "aggregateFileWithLog":
+                ParallelAggregator replayed = new ParallelAggregator();
+                return () -> io(() -> replayed.aggregateFile(file).total());
+            case "aggregateColumnar":
+                ParallelAggregator inMemory = new ParallelAggregator();
+                ColumnarPortfolio aggregated = ColumnarPortfolio.of(loaded);
+                return () -> inMemory.aggregate(aggregated).total();
+            case "complianceReport":
+                ComplianceReport compliance = new ComplianceReport(reports);
+                AssetSource assets = AssetSource.of(loaded);
+                return () -> io(() -> deleted(compliance.generateReport("bench@example.com", assets, 0)));
+            case "financialReportCsv":
+                FinancialReportGenerator financial = new FinancialReportGenerator(reports);
+                AssetSource source = AssetSource.of(loaded);
+                return () -> io(() -> deleted(financial.generateReport("bench@example.com", source, "csv")));
+            default:
+                throw new IllegalArgumentException("Unknown hot path: " + name);
+        }
+    }
+
+    /**
+     * Deletes a report a hot path just wrote, so repeated runs do not fill the disk.
+     * @param report Report file, or null if it was not written
+     * @return The report's size in bytes
+     * @throws IOException If the report was not written or cannot be deleted
+     */
+    private static long deleted(Path report) throws IOException {
+        if (report == null) {
+            throw new IOException("Report not written");
+        }
+        long size = Files.size(report);
+        Files.delete(report);
+        return size;
+    }
+
+    /**
+     * Runs an I/O step of a benchmark operation, rethrowing a failure unchecked.
+     * @param step Step to run
+     * @return The step's result
+     */
+    private static long io(IOAction<? extends Number> step) {
+        try {
+            return step.run().longValue();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Measures portfolio history over a year of revaluations: point-in-time reconstruction at several checkpoint
+     * ratios against replaying from the first checkpoint, and a daily value series in one pass against one reconstruction per day.
+     * @param dir Directory for generated files
+     * @throws IOException If the history cannot be written or read
+     */
+    static void benchmarkHistory(Path dir) throws IOException {
+        System.out.println("=== Portfolio history: point-in-time and value series ===");
+        String[] types = {"stock", "gold", "silver", "cash", "real-estate", "bond"};
+        int assets = 1_000;
+        int edits = 200_000;
+        long start = PortfolioHistory.endOfDay(LocalDate.of(2026, 1, 1));
+        long day = TimeUnit.DAYS.toMillis(1);
+        for (double ratio : new double[] {0.25, 1, 4, Double.POSITIVE_INFINITY}) {
+            Path text = dir.resolve("investments_history_" + ratio + ".txt");
+            PortfolioHistory history = new PortfolioHistory(PortfolioHistory.historyFile(text), PortfolioHistory.indexFile(text), ratio);
+            Random random = new Random(edits);
+            Map<String, Asset> live = new LinkedHashMap<>();
+            for (int i = 0; i < assets; i++) {
+                live.put("a" + i, new Asset("a" + i, "Asset " + i, 1_000_00 + random.nextInt(100_000_00), types[i % types.length]));
+            }
+            long writeStart = System.nanoTime();
+            history.checkpoint(start, AssetSource.of(live.values()));
+            for (int e = 0; e < edits; e++) {
+                String id = "a" + random.nextInt(assets);
+                Asset before = live.get(id);
+                Asset after = new Asset(id, before.getName(), Math.max(0, before.getValueMinor() + random.nextInt(20_000) - 10_000), before.getType());
+                live.put(id, after);
+                history.put(start + (long) e * 365 * day / edits, after, live);
+            }
+            double writeNanos = (double) (System.nanoTime() - writeStart) / edits;
+            double pointNanos = measure(200, () -> {
+                try {
+                    sink += history.at(start + (long) (random.nextDouble() * 365 * day)).sum();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            double seriesNanos = measure(20, () -> {
+                try {
+                    sink += history.series(start, start + 364 * day, day).totalAt(364);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            System.out.printf("%s: %,.1f bytes/edit, write %,6.0f ns/edit | as-of query %,9.0f us | 365-day series %,8.1f ms (%,.0f us/point)%n",
+                    ratio == Double.POSITIVE_INFINITY ? "one checkpoint  " : String.format("checkpoint ratio %4.2f", ratio),
+                    (double) history.bytes() / edits, writeNanos, pointNanos / 1e3, seriesNanos / 1e6, seriesNanos / 365 / 1e3);
+        }
+    }
+
+    /**
+     * Receives the scores of the regression suite.
+     */
+    private interface ScoreSink {
+        /**
+         * @param name Benchmark name
+         * @param size Number of users or assets generated for it
+         * @param score Mean nanoseconds per operation and its error
+         */
+        void add(String name, int size, double[] score);
+    }
+
+    /**
+     * @param property System property holding comma-separated sizes
+     * @return The sizes, or 1,000 and 100,000 if the property is unset
+     */
+    private static int[] sizes(String property) {
+        return Arrays.stream(System.getProperty(property, "1000,100000").split(","))
+                .map(String::trim).filter(size -> !size.isEmpty()).mapToInt(Integer::parseInt).toArray();
+    }
+
+    /**
+     * @param file CSV file written by an earlier run of the regression suite, or null
+     * @return Mean nanoseconds keyed by {@code benchmark,size}; empty without a file
+     * @throws IOException If the file cannot be read
+     */
+    private static Map<String, Double> readScores(String file) throws IOException {
+        Map<String, Double> scores = new HashMap<>();
+        if (file == null) {
+            return scores;
+        }
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            String[] fields = line.split(",");
+            if (fields.length == 4 && !fields[0].equals("benchmark")) {
+                scores.put(fields[0] + "," + fields[1], Double.parseDouble(fields[2]));
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Times an operation in repeated iterations with console output suppressed, after as many warm-up iterations.
+     * @param iterations Number of timed iterations
+     * @param ops Operations per iteration
+     * @param op Operation to measure
+     * @return Mean nanoseconds per operation across the iterations, and their standard deviation
+     */
+    static double[] sample(int iterations, int ops, Runnable op) {
+        double[] perOp = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            measure(ops, op);
+        }
+        for (int i = 0; i < iterations; i++) {
+            perOp[i] = quietly(() -> {
+                long start = System.nanoTime();
+                for (int n = 0; n < ops; n++) {
+                    op.run();
+                }
+                return (double) (System.nanoTime() - start) / ops;
+            });
+        }
+        double mean = Arrays.stream(perOp).average().orElse(0);
+        double variance = Arrays.stream(perOp).map(x -> (x - mean) * (x - mean)).sum() / Math.max(1, iterations - 1);
+        return new double[] {mean, Math.sqrt(variance)};
+    }
+
+    private static YearEndBatchJob.Summary runJob(YearEndBatchJob job) {
+        try {
+            return job.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Runs a body on several threads at once and waits for all of them.
+     * @param threads Number of threads
+     * @param body Called with each thread's number
+     * @return Nanoseconds from the common start until the last thread finished
+     */
+    static double runThreads(int threads, IntConsumer body) {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Throwable> failures = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    body.accept(thread);
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Stress thread failed", failures.get(0));
+        }
+        return elapsed;
+    }
+
+    /**
+     * Reads a file line by line the way the repositories used to.
+     * @param file File to read
+     * @param action Called with each line
+     */
+    static void readLines(Path file, Consumer<String> action) {
+        try (BufferedReader reader = Files.newBufferedReader(file, Charset.defaultCharset())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                action.accept(line);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a synthetic portfolio file in the plain {@code id,name,value,type} format.
+     * @param file Destination file
+     * @param assets Number of assets to write
+     * @throws IOException If writing fails
+     */
+    static void writePortfolio(Path file, int assets) throws IOException {
+        String[] types = {"stock", "gold", "silver", "cash", "real-estate", "bond"};
+        Random random = new Random(assets);
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int i = 0; i < assets; i++) {
+                long value = random.nextInt(100_000_000);
+                writer.write(new Asset("a" + i, "Asset " + (i % 5_000), value, types[i % types.length]).toFileString());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Writes a portfolio text log resembling a real one: named holdings of weighted types, values spread
+     * over several orders of magnitude with cents, and a share of later update and tombstone records.
+     * @param file Destination file
+     * @param assets Number of assets to add
+     * @param editFraction Update and tombstone records to append, as a fraction of the assets
+     * @param seed Seed for the random choices, so the same arguments give the same file
+     * @throws IOException If writing fails
+     */
+    static void writeRealisticPortfolio(Path file, int assets, double editFraction, long seed) throws IOException {
+        String[] types = {"stock", "stock", "stock", "stock", "cash", "cash", "gold", "bond", "silver", "real-estate"};
+        String[] names = {"Commercial International Bank", "Eastern Company", "Fawry", "Talaat Moustafa", "Savings account",
+                "Current account", "Gold bar 50g", "Gold coins", "Treasury bond", "Silver bullion", "Apartment in Nasr City", "Shop lease"};
+        Random random = new Random(seed);
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int i = 0; i < assets; i++) {
+                int kind = random.nextInt(types.length);
+                long value = (long) Math.exp(random.nextGaussian() * 1.5 + 11);
+                writer.write(new Asset("A" + Long.toString(seed, 36) + "-" + i, names[(kind + random.nextInt(2)) % names.length]
+                        + " " + (1 + random.nextInt(99)), value, types[kind]).toFileString());
+                writer.newLine();
+            }
+            for (int e = 0; e < (int) (assets * editFraction); e++) {
+                String id = "A" + Long.toString(seed, 36) + "-" + random.nextInt(assets);
+                if (random.nextInt(5) == 0) {
+                    writer.write("#DEL," + id);
+                } else {
+                    long value = (long) Math.exp(random.nextGaussian() * 1.5 + 11);
+                    writer.write("#UPD," + new Asset(id, names[random.nextInt(names.length)], value, types[random.nextInt(types.length)]).toFileString());
+                }
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * @return Heap in use after a best-effort garbage collection
+     */
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Writes a synthetic users file with plain-text passwords.
+     * @param file Destination file
+     * @param users Number of users to write
+     * @throws IOException If writing fails
+     */
+    static void writeUsers(Path file, int users) throws IOException {
+        writeUsers(file, users, null);
+    }
+
+    /**
+     * Writes a synthetic users file; user {@code n} has password {@code secret<n>}.
+     * @param file Destination file
+     * @param users Number of users to write
+     * @param hasher Hasher for the passwords, or null to store them as plain text
+     * @throws IOException If writing fails
+     */
+    static void writeUsers(Path file, int users, PasswordHasher hasher) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int i = 0; i < users; i++) {
+                String password = hasher == null ? "secret" + i : hasher.hash("secret" + i);
+                writer.write(new Investor("user" + i + "@example.com", password, "User " + i).toFileString());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Runs an operation repeatedly with console output suppressed.
+     * @param ops Number of operations to time (a tenth as many are run first as warm-up)
+     * @param op Operation to measure
+     * @return Average nanoseconds per operation
+     */
+    static double measure(int ops, Runnable op) {
+        return quietly(() -> {
+            for (int i = 0; i < ops / 10; i++) {
+                op.run();
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                op.run();
+            }
+            return (double) (System.nanoTime() - start) / ops;
+        });
+    }
+
+    /**
+     * Runs an action with {@code System.out} redirected to nowhere.
+     * @param action Action to run
+     */
+    static void quietly(Runnable action) {
+        quietly(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Evaluates a supplier with {@code System.out} redirected to nowhere.
+     * @param action Supplier to evaluate
+     * @return The supplier's result
+     */
+    static <T> T quietly(Supplier<T> action) {
+        PrintStream out = System.out;
+        System.setOut(QUIET);
+        try {
+            return action.get();
+        } finally {
+            System.setOut(out);
+        }
+    }
+}
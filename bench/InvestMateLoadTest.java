@@ -0,0 +1,178 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+/**
+ * Load-test client for {@link InvestMateServer}.
+ * Registers and logs in a set of investors, seeds their portfolios, then runs one caller per investor sending
+ * a mix of listing, add, edit, zakat and remove requests with its session token, and reports throughput with
+ * p50/p99 latency.
+ */
+class InvestMateLoadTest {
+    private static final int SEED_ASSETS = 20;
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final String baseUrl;
+
+    /**
+     * Constructs a client for a running server.
+     * @param baseUrl Server address, such as {@code http://localhost:8080}
+     */
+    public InvestMateLoadTest(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    /**
+     * Runs a load test against a server.
+     * @param args Server address (http://localhost:8080 by default), number of investors (50), requests per investor (200)
+     */
+    public static void main(String[] args) {
+        String url = args.length > 0 ? args[0] : "http://localhost:8080";
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        System.out.println(new InvestMateLoadTest(url).run(users, requests));
+    }
+
+    /**
+     * Registers and seeds the investors, then times the request mix.
+     * @param users Number of investors, each with its own caller thread
+     * @param requestsPerUser Requests each caller sends
+     * @return Latencies and error count of the timed requests
+     */
+    public Result run(int users, int requestsPerUser) {
+        String run = Long.toString(System.nanoTime(), 36);
+        String[] auth = new String[users];
+        for (int u = 0; u < users; u++) {
+            String email = "load" + run + "_" + u + "@example.com";
+            String credentials = "{\"email\":\"" + email + "\",\"password\":\"secret" + u + "\"";
+            send("POST", "/api/register", null, credentials + ",\"fullName\":\"Load User " + u + "\"}");
+            String login = request("POST", "/api/login", null, credentials + "}");
+            auth[u] = login == null ? null : "Bearer " + Json.parseObject(login).get("token");
+            for (int i = 0; i < SEED_ASSETS; i++) {
+                send("POST", "/api/assets", auth[u], asset("seed" + i, 1_000 + i));
+            }
+        }
+        long[][] latencies = new long[users][requestsPerUser];
+        AtomicInteger errors = new AtomicInteger();
+        double nanos = InvestMateBenchmark.runThreads(users, u -> {
+            for (int i = 0; i < requestsPerUser; i++) {
+                String id = "a" + (i / 5);
+                long start = System.nanoTime();
+                int status;
+                switch (i % 5) {
+                    case 0:
+                        status = send("POST", "/api/assets", auth[u], asset(id, 500 + i));
+                        break;
+                    case 1:
+                        status = send("GET", "/api/assets", auth[u], null);
+                        break;
+                    case 2:
+                        status = send("PUT", "/api/assets/" + id, auth[u], "{\"name\":\"Edited\",\"value\":\"750.25\",\"type\":\"gold\"}");
+                        break;
+                    case 3:
+                        status = send("GET", "/api/zakat", auth[u], null);
+                        break;
+                    default:
+                        status = send("DELETE", "/api/assets/" + id, auth[u], null);
+                }
+                latencies[u][i] = System.nanoTime() - start;
+                if (status < 200 || status >= 300) {
+                    errors.incrementAndGet();
+                }
+            }
+        });
+        long[] all = new long[users * requestsPerUser];
+        for (int u = 0; u < users; u++) {
+            System.arraycopy(latencies[u], 0, all, u * requestsPerUser, requestsPerUser);
+        }
+        Arrays.sort(all);
+        return new Result(all, errors.get(), nanos);
+    }
+
+    private static String asset(String id, int value) {
+        return "{\"id\":\"" + id + "\",\"name\":\"Asset " + id + "\",\"value\":\"" + value + ".50\",\"type\":\"stock\"}";
+    }
+
+    /**
+     * Sends one request and drains the response.
+     * @return HTTP status, or -1 if the request failed
+     */
+    private int send(String method, String path, String authorization, String json) {
+        HttpResponse<Void> response = exchange(method, path, authorization, json, HttpResponse.BodyHandlers.discarding());
+        return response == null ? -1 : response.statusCode();
+    }
+
+    /**
+     * Sends one request.
+     * @return The response body, or null if the request failed or was not successful
+     */
+    private String request(String method, String path, String authorization, String json) {
+        HttpResponse<String> response = exchange(method, path, authorization, json, HttpResponse.BodyHandlers.ofString());
+        return response == null || response.statusCode() / 100 != 2 ? null : response.body();
+    }
+
+    private <T> HttpResponse<T> exchange(String method, String path, String authorization, String json,
+            HttpResponse.BodyHandler<T> handler) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .method(method, json == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(json));
+        if (authorization != null) {
+            request.header("Authorization", authorization);
+        }
+        if (json != null) {
+            request.header("Content-Type", "application/json");
+        }
+        try {
+            return client.send(request.build(), handler);
+        } catch (IOException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Outcome of a load test.
+     */
+    static final class Result {
+        private final long[] sortedNanos;
+        private final int errors;
+        private final double elapsedNanos;
+
+        Result(long[] sortedNanos, int errors, double elapsedNanos) {
+            this.sortedNanos = sortedNanos;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @param quantile Quantile between 0 and 1
+         * @return Latency at the quantile in nanoseconds
+         */
+        long percentile(double quantile) {
+            if (sortedNanos.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(quantile * sortedNanos.length) - 1;
+            return sortedNanos[Math.max(0, Math.min(sortedNanos.length - 1, rank))];
+        }
+
+        /**
+         * @return Requests that failed or got a non-2xx status
+         */
+        int errors() {
+            return errors;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,d requests in %,.2f s (%,.0f req/s): p50 %,.2f ms  p99 %,.2f ms  max %,.2f ms, %d errors",
+                    sortedNanos.length, elapsedNanos / 1e9, sortedNanos.length / (elapsedNanos / 1e9),
+                    percentile(0.50) / 1e6, percentile(0.99) / 1e6, percentile(1.0) / 1e6, errors);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package investmate.jmh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parallel portfolio totals from the text log, with and without update and tombstone records to replay,
+ * against the same totals from a {@code ColumnarPortfolio} already in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class AggregationBenchmark {
+    @Param({"aggregateFile", "aggregateFileWithLog", "aggregateColumnar"})
+    public String path;
+
+    @Param({"100000", "1000000"})
+    public int size;
+
+    private Path dir;
+    private LongSupplier op;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("investmate-jmh");
+        op = HotPaths.open(path, size, dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        HotPaths.delete(dir);
+    }
+
+    @Benchmark
+    public long run() {
+        return op.getAsLong();
+    }
+}
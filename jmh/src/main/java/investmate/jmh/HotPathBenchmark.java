@@ -0,0 +1,65 @@
+package investmate.jmh;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The hot-path regression suite: user lookup against the number of users, and portfolio load, save, edit, zakat
+ * and both reports against the number of assets, over generated files resembling real ones. The same operations
+ * back the {@code hotpaths} scenario of the in-tree harness.
+ * <pre>
+ * gradle :jmh:jmh -Pjmh="HotPathBenchmark -rf csv -rff before.csv"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmark {
+    @Param({"findUserByEmail", "loadAll", "loadAllBinary", "saveAll", "editInvestmentById", "estimateZakat", "complianceReport", "financialReportCsv"})
+    public String path;
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private Path dir;
+    private PrintStream out;
+    private LongSupplier op;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("investmate-jmh");
+        op = HotPaths.open(path, size, dir);
+        out = HotPaths.silence();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.setOut(out);
+        HotPaths.delete(dir);
+    }
+
+    @Benchmark
+    public long run() {
+        return op.getAsLong();
+    }
+}
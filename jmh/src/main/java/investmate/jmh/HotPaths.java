@@ -0,0 +1,77 @@
+package investmate.jmh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Reaches the operations prepared by {@code InvestMateBenchmark.hotPath} in the root project's test fixtures.
+ * The harness lives in the default package, like the application, which named packages cannot import and JMH benchmarks cannot use,
+ * so the method is looked up reflectively once per trial; the operations themselves are called directly.
+ */
+final class HotPaths {
+    private static final PrintStream QUIET = new PrintStream(OutputStream.nullOutputStream());
+
+    private HotPaths() {
+    }
+
+    /**
+     * Prepares an operation over generated data.
+     * @param name Operation name, see {@code InvestMateBenchmark.hotPath}
+     * @param size Number of users or assets to generate
+     * @param dir Directory for the generated files
+     * @return The operation
+     * @throws IOException If the data cannot be generated
+     */
+    static LongSupplier open(String name, int size, Path dir) throws IOException {
+        try {
+            Method hotPath = Class.forName("InvestMateBenchmark").getDeclaredMethod("hotPath", String.class, int.class, Path.class);
+            hotPath.setAccessible(true);
+            return (LongSupplier) hotPath.invoke(null, name, size, dir);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Could not prepare " + name, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("InvestMateBenchmark.hotPath is not on the class path", e);
+        }
+    }
+
+    /**
+     * Silences the application's console messages for the rest of the trial.
+     * @return The stream to restore afterwards
+     */
+    static PrintStream silence() {
+        PrintStream out = System.out;
+        System.setOut(QUIET);
+        return out;
+    }
+
+    /**
+     * Deletes a directory of generated files.
+     * @param dir Directory to delete
+     * @throws IOException If a file cannot be deleted
+     */
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -1,9 +1,100 @@
 // User.java
 import java.util.Scanner;
 import java.io.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.UUID;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.function.Supplier;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantLock;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.SecretKeyFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import javax.crypto.spec.PBEKeySpec;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 /**
  * Abstract base class for all users in the system.
  * Defines common attributes and behaviors.
@@ -58,18 +149,31 @@ class Investor extends User {
 
     /**
      * Calculates zakat for investor and generates a zakat report.
+     * The zakat comes from the portfolio's running totals, assessed by the shared {@link ZakatRules} with the
+     * hawl taken as complete; with {@code -Dinvestmate.zakat.verify=true} the totals are first checked against
+     * a full recalculation.
      * @param repository The investment repository linked to this investor
      */
     public void viewZakatPanel(InvestmentRepository repository) {
         try {
-            List<Asset> assets = repository.loadAll();
-            ZakatCalculator calculator = new ZakatCalculator();
-            double zakatAmount = calculator.estimateZakat(assets);
+            if (Boolean.getBoolean("investmate.zakat.verify")) {
+                new InvestmentService(repository).verifyZakatTotals();
+            }
+            PortfolioTotals totals = repository.totals();
+            if (totals.invalidCount() > 0) {
+                System.out.println("Skipped " + totals.invalidCount() + " assets with invalid values.");
+            }
+            ZakatAssessment zakat = ZakatRules.shared().assess(totals);
+            long zakatMinor = zakat.dueMinor();
+            if (!zakat.nisabReached()) {
+                System.out.println("Your zakatable wealth of " + Money.format(zakat.zakatableMinor())
+                        + " EGP is below the nisab of " + Money.format(zakat.nisabMinor()) + " EGP.");
+            }
 
-            System.out.println("Your total zakat due is: " + zakatAmount + " EGP");
+            System.out.println("Your total zakat due is: " + Money.format(zakatMinor) + " EGP");
 
             ComplianceReport report = new ComplianceReport();
-            report.generateReport(assets, zakatAmount);
+            report.generateReport(email, repository, zakatMinor);
         } catch (IOException e) {
             System.out.println("Failed to load assets for zakat calculation.");
         }
@@ -78,395 +182,8132 @@ class Investor extends User {
     /**
      * Generates and exports a financial report.
      * @param repository Investment repository to fetch assets
-     * @param format Export format (PDF or Excel simulated as txt/csv)
+     * @param format Export format: PDF, Excel, CSV or TXT
      */
     public void generateFinancialReport(InvestmentRepository repository, String format) {
-        try {
-            List<Asset> assets = repository.loadAll();
-            FinancialReportGenerator generator = new FinancialReportGenerator();
-            generator.generateReport(assets, format);
-        } catch (IOException e) {
-            System.out.println("Failed to load assets for financial report.");
-        }
+        FinancialReportGenerator generator = new FinancialReportGenerator();
+        generator.generateReport(email, repository, format);
     }
 }
 
 /**
- * Utility class for storing and retrieving users from file.
+ * Reads comma-separated records straight out of a memory-mapped file.
+ * Lines and fields are located by scanning the mapped bytes; a field is only decoded into a
+ * String when asked for, and amounts are parsed from the bytes without decoding at all.
+ * Large files are mapped in windows, so any file size can be read.
  */
-class UserRepository {
-    private static final String FILE_NAME = "users.txt";
+final class MappedRecordReader {
+    private static final long WINDOW_BYTES = 1L << 28;
+    private static final int MAX_FIELDS = 8;
+
+    private final FileChannel channel;
+    private final long end;
+    private final boolean includeUnterminated;
+    private ByteBuffer window;
+    private long windowStart;
+    private int next;
+    private int lineStart;
+    private int lineEnd;
+    private final int[] fieldStarts = new int[MAX_FIELDS];
+    private final int[] fieldEnds = new int[MAX_FIELDS];
+    private int fields;
+    private byte[] scratch = new byte[128];
 
     /**
-     * Checks if an email is already registered.
-     * @param email Email to check
-     * @return true if email exists, false otherwise
+     * @param channel Open file to read
+     * @param start Offset of the first byte to read; must be the start of a line
+     * @param end Offset just past the last byte to read
+     * @param includeUnterminated Whether a last line without a newline is returned; when false it is
+     *        left unread (another writer may still be appending it)
+     * @throws IOException If the file cannot be mapped
      */
-    public boolean emailExists(String email) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(FILE_NAME))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts[0].equalsIgnoreCase(email)) {
+    MappedRecordReader(FileChannel channel, long start, long end, boolean includeUnterminated) throws IOException {
+        this.channel = channel;
+        this.end = end;
+        this.includeUnterminated = includeUnterminated;
+        map(start);
+    }
+
+    /**
+     * Advances to the next line.
+     * @return true if a line was read, false at the end of the range
+     * @throws IOException If the next window cannot be mapped or a line does not fit in one window
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            int limit = window.limit();
+            for (int i = next; i < limit; i++) {
+                if (window.get(i) == '\n') {
+                    setLine(next, i);
+                    next = i + 1;
+                    return true;
+                }
+            }
+            if (windowStart + limit >= end) {
+                if (includeUnterminated && next < limit) {
+                    setLine(next, limit);
+                    next = limit;
                     return true;
                 }
+                return false;
             }
-        } catch (IOException e) {}
-        return false;
+            if (next == 0) {
+                throw new IOException("Record longer than " + WINDOW_BYTES + " bytes at offset " + windowStart);
+            }
+            map(windowStart + next);
+        }
     }
 
     /**
-     * Saves a user to the users file.
-     * @param user User to save
-     * @throws IOException If file cannot be written
+     * @return File offset just past the last line returned by {@link #next}
      */
-    public void save(User user) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(FILE_NAME, true))) {
-            writer.write(user.toFileString());
-            writer.newLine();
-        }
+    public long position() {
+        return windowStart + next;
     }
 
     /**
-     * Finds a user by email.
-     * @param email Email to search for
-     * @return User object or null if not found
+     * @param prefix ASCII bytes to compare
+     * @return true if the current line starts with the prefix
      */
-    public User findUserByEmail(String email) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(FILE_NAME))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts[0].equalsIgnoreCase(email)) {
-                    return new Investor(parts[0], parts[1], parts[2]);
-                }
+    public boolean startsWith(byte[] prefix) {
+        if (lineEnd - lineStart < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (window.get(lineStart + i) != prefix[i]) {
+                return false;
             }
-        } catch (IOException e) {}
-        return null;
+        }
+        return true;
     }
-}
-
-/**
- * Handles business logic for user registration and login.
- */
-class UserService {
-    private UserRepository userRepo;
 
     /**
-     * Constructs a UserService with a given repository.
-     * @param repo Repository for user data
+     * Splits the current line on commas, like {@code String.split(",", limit)}:
+     * the last field keeps any remaining commas.
+     * @param limit Maximum number of fields, at most 8
+     * @return Number of fields found
      */
-    public UserService(UserRepository repo) {
-        this.userRepo = repo;
+    public int split(int limit) {
+        fields = 0;
+        int start = lineStart;
+        for (int i = lineStart; i < lineEnd && fields < limit - 1; i++) {
+            if (window.get(i) == ',') {
+                fieldStarts[fields] = start;
+                fieldEnds[fields++] = i;
+                start = i + 1;
+            }
+        }
+        fieldStarts[fields] = start;
+        fieldEnds[fields++] = lineEnd;
+        return fields;
     }
 
     /**
-     * Registers a user if email is not already used.
-     * @param user User to register
-     * @return true if registration succeeds, false otherwise
+     * @param i Field index from the last {@link #split}
+     * @return The field decoded as a String
      */
-    public boolean registerUser(User user) {
-        if (userRepo.emailExists(user.getEmail())) {
-            System.out.println("This email already exists.");
-            return false;
-        }
-        try {
-            userRepo.save(user);
-            System.out.println("User added successfully.");
-            return true;
-        } catch (Exception e) {
-            System.out.println("Failed to add user.");
-            return false;
+    public String field(int i) {
+        int length = fieldEnds[i] - fieldStarts[i];
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
         }
+        window.get(fieldStarts[i], scratch, 0, length);
+        return new String(scratch, 0, length, Charset.defaultCharset());
     }
 
     /**
-     * Validates login by checking credentials.
-     * @param email Email of user
-     * @param password Password of user
-     * @return true if credentials match, false otherwise
+     * @param i Field index from the last {@link #split}
+     * @return The field's raw bytes
      */
-    public boolean login(String email, String password) {
-        User user = userRepo.findUserByEmail(email);
-        if (user == null) {
-            System.out.println("This email has no account.");
+    public byte[] fieldBytes(int i) {
+        byte[] bytes = new byte[fieldEnds[i] - fieldStarts[i]];
+        window.get(fieldStarts[i], bytes);
+        return bytes;
+    }
+
+    /**
+     * @param i Field index from the last {@link #split}
+     * @param bytes Bytes to compare
+     * @return true if the field holds exactly these bytes
+     */
+    public boolean fieldEquals(int i, byte[] bytes) {
+        if (fieldEnds[i] - fieldStarts[i] != bytes.length) {
             return false;
         }
-        if (!user.password.equals(password)) {
-            System.out.println("Password is not correct.");
-            return false;
+        for (int j = 0; j < bytes.length; j++) {
+            if (window.get(fieldStarts[i] + j) != bytes[j]) {
+                return false;
+            }
         }
-        System.out.println("Login successful, hello " + user.fullName + "!");
         return true;
     }
-}
-
-/**
- * Represents a single asset in the investor's portfolio.
- */
-class Asset {
-    private String id;
-    private String name;
-    private String value;
-    private String type;
 
     /**
-     * Constructs an Asset object.
-     * @param id Asset ID
-     * @param name Asset name
-     * @param value Asset value
-     * @param type Asset type
+     * Parses a field as an amount in minor units, see {@link Money#parseMinor(String)}.
+     * Plain {@code [+-]digits[.d[d]]} amounts are parsed from the bytes without creating a String.
+     * @param i Field index from the last {@link #split}
+     * @return Amount in minor units, or {@link Money#INVALID}
      */
-    public Asset(String id, String name, String value, String type) {
-        this.id = id;
-        this.name = name;
-        this.value = value;
-        this.type = type;
+    public long minorField(int i) {
+        int pos = fieldStarts[i];
+        int to = fieldEnds[i];
+        boolean negative = false;
+        if (pos < to && (window.get(pos) == '-' || window.get(pos) == '+')) {
+            negative = window.get(pos) == '-';
+            pos++;
+        }
+        long units = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; pos < to; pos++) {
+            byte b = window.get(pos);
+            if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (b >= '0' && b <= '9' && decimals < 2 && units < Long.MAX_VALUE / 1000) {
+                units = units * 10 + (b - '0');
+                digits++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else {
+                return Money.parseMinor(field(i));
+            }
+        }
+        if (digits == 0) {
+            return Money.INVALID;
+        }
+        for (int d = Math.max(decimals, 0); d < 2; d++) {
+            units *= 10;
+        }
+        return negative ? -units : units;
     }
 
     /**
-     * @return Asset name
+     * @param i Field index from the last {@link #split}
+     * @return 64-bit FNV-1a hash of the field's bytes, equal for equal fields
      */
-    public String getName() {
-        return name;
+    public long fieldHash(int i) {
+        long hash = 0xcbf29ce484222325L;
+        for (int j = fieldStarts[i]; j < fieldEnds[i]; j++) {
+            hash = (hash ^ (window.get(j) & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
     }
 
     /**
-     * @return Asset value
+     * @return true if the current line has no bytes
      */
-    public String getValue() {
-        return value;
+    public boolean isBlank() {
+        return lineEnd == lineStart;
     }
 
-    /**
-     * @return CSV format of asset details
-     */
-    public String toFileString() {
-        return id + "," + name + "," + value + "," + type;
+    private void setLine(int start, int newline) {
+        lineStart = start;
+        lineEnd = newline > start && window.get(newline - 1) == '\r' ? newline - 1 : newline;
+        fields = 0;
+    }
+
+    private void map(long start) throws IOException {
+        long size = Math.min(WINDOW_BYTES, end - start);
+        window = size > 0 ? channel.map(FileChannel.MapMode.READ_ONLY, start, size) : ByteBuffer.allocate(0);
+        windowStart = start;
+        next = 0;
     }
 }
 
 /**
- * Manages asset storage for each user in separate files.
+ * Work done while holding a lock, which may fail with an I/O error.
  */
-class InvestmentRepository {
-    private String FILE_NAME;
-
+@FunctionalInterface
+interface IOAction<T> {
     /**
-     * Constructs repository for a specific user's assets.
-     * @param userEmail The user's email to derive filename
+     * @return The action's result
+     * @throws IOException If the action fails
      */
-    public InvestmentRepository(String userEmail) {
-        this.FILE_NAME = "investments_" + userEmail.replaceAll("@", "_at_") + ".txt";
-    }
+    T run() throws IOException;
+}
+
+/**
+ * Fixed set of locks handed out by key.
+ * Operations on the same key are serialized, while operations on different keys only wait for
+ * each other when their keys share a stripe; the number of locks stays fixed however many keys exist.
+ * Keys are case-insensitive so they can be email addresses.
+ */
+final class LockStripes {
+    private final ReentrantLock[] locks;
 
     /**
-     * Saves a single asset to the file.
-     * @param investment Asset to save
-     * @throws IOException If writing fails
+     * @param stripes Minimum number of locks; rounded up to a power of two
      */
-    public void save(Asset investment) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(FILE_NAME, true))) {
-            writer.write(investment.toFileString());
-            writer.newLine();
+    LockStripes(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
         }
     }
 
     /**
-     * Loads all assets from the user's file.
-     * @return List of all saved assets
-     * @throws IOException If reading fails
+     * @param key Key to lock
+     * @return The lock shared by all keys equal to this one, ignoring case
      */
-    public List<Asset> loadAll() throws IOException {
-        List<Asset> investments = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(FILE_NAME))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",", 4);
-                if (parts.length == 4) {
-                    investments.add(new Asset(parts[0], parts[1], parts[2], parts[3]));
-                }
-            }
-        }
-        return investments;
+    ReentrantLock lockFor(String key) {
+        int h = key.toLowerCase(Locale.ROOT).hashCode();
+        h ^= h >>> 16;
+        return locks[h & (locks.length - 1)];
     }
 
     /**
-     * Overwrites the file with updated asset list.
-     * @param investments List of updated assets
-     * @throws IOException If writing fails
+     * Runs an action holding the key's lock. The lock is reentrant, so the action may lock the key again.
+     * @param key Key to lock
+     * @param action Action to run
+     * @return The action's result
+     * @throws IOException If the action fails
      */
-    public void saveAll(List<Asset> investments) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(FILE_NAME))) {
-            for (Asset a : investments) {
-                writer.write(a.toFileString());
-                writer.newLine();
-            }
+    <T> T withLock(String key, IOAction<T> action) throws IOException {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            return action.run();
+        } finally {
+            lock.unlock();
         }
     }
 }
 
 /**
- * Provides services to add, edit, or delete assets.
+ * Exclusive {@link java.nio.channels.FileLock}s on lock files, serializing processes that share a data directory.
+ * OS file locks are held per process, not per thread, so callers must already exclude other threads of
+ * this process from the same lock file (see {@link LockStripes}); a thread that already holds a lock file
+ * may take it again.
  */
-class InvestmentService {
-    private InvestmentRepository repository;
+final class FileLocks {
+    private static final ThreadLocal<Set<Path>> HELD = ThreadLocal.withInitial(HashSet::new);
 
-    /**
-     * Constructs InvestmentService with the given repository.
-     * @param repository The investment repository for a user
-     */
-    public InvestmentService(InvestmentRepository repository) {
-        this.repository = repository;
+    private FileLocks() {
     }
 
     /**
-     * Adds a new investment.
-     * @param investment The asset to be added
-     * @return true if successful, false otherwise
+     * Runs an action holding an exclusive lock on a file, creating the file and its directory if needed.
+     * @param lockFile File to lock
+     * @param action Action to run
+     * @return The action's result
+     * @throws IOException If locking fails or the action fails
      */
-    public boolean addInvestment(Asset investment) {
-        if (investment == null || investment.toFileString().isBlank()) {
-            System.out.println("Invalid investment data.");
-            return false;
+    static <T> T exclusive(Path lockFile, IOAction<T> action) throws IOException {
+        Set<Path> held = HELD.get();
+        if (!held.add(lockFile)) {
+            return action.run();
         }
-        try {
-            repository.save(investment);
-            System.out.println("Investment added successfully.");
-            return true;
-        } catch (IOException e) {
-            System.out.println("Failed to add investment.");
-            return false;
+        try (FileChannel channel = open(lockFile)) {
+            channel.lock(); // released when the channel closes
+            return action.run();
+        } finally {
+            held.remove(lockFile);
         }
     }
 
-    /**
-     * Removes an investment by its ID.
-     * @param id The ID of the asset to remove
-     * @return true if removed, false otherwise
-     */
-    public boolean removeInvestmentById(String id) {
+    private static FileChannel open(Path lockFile) throws IOException {
         try {
-            List<Asset> all = repository.loadAll();
-            boolean removed = all.removeIf(asset -> asset.toFileString().startsWith(id + ","));
-            if (removed) {
-                repository.saveAll(all);
-                System.out.println("Investment removed successfully.");
-            } else {
-                System.out.println("Investment ID not found.");
-            }
-            return removed;
-        } catch (IOException e) {
-            System.out.println("Error while removing investment.");
-            return false;
+            return FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        } catch (NoSuchFileException e) {
+            Files.createDirectories(lockFile.getParent());
+            return FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
         }
     }
 
     /**
-     * Edits an existing investment.
-     * @param id Asset ID to edit
-     * @param newName New name
-     * @param newValue New value
-     * @param newType New type
-     * @return true if edited, false otherwise
+     * @param file Data file
+     * @return Lock file guarding it, kept next to it with a {@code .lock} extension
      */
-    public boolean editInvestmentById(String id, String newName, String newValue, String newType) {
-        try {
-            List<Asset> all = repository.loadAll();
-            boolean found = false;
-            for (int i = 0; i < all.size(); i++) {
-                Asset a = all.get(i);
-                if (a.toFileString().startsWith(id + ",")) {
-                    Asset updated = new Asset(id, newName, newValue, newType);
-                    all.set(i, updated);
-                    found = true;
-                    break;
-                }
-            }
-            if (found) {
-                repository.saveAll(all);
-                System.out.println("Investment updated successfully.");
-            } else {
-                System.out.println("Investment ID not found.");
-            }
-            return found;
-        } catch (IOException e) {
-            System.out.println("Error while editing investment.");
-            return false;
-        }
+    static Path lockFileFor(String file) {
+        return Paths.get(file + ".lock").toAbsolutePath().normalize();
     }
 }
 
 /**
- * Calculates zakat for a list of assets.
+ * Utility class for storing and retrieving users from file.
+ * Keeps a case-insensitive in-memory index of the file so lookups do not rescan it.
+ * Records are appended: a later record for an email replaces the earlier ones, which is how
+ * password changes are stored. Once a quarter of the records are superseded the file is rewritten
+ * without them, so replaced passwords do not linger on disk.
+ * Safe for concurrent use: registrations of the same email are serialized on a per-email lock stripe,
+ * and appends hold an exclusive lock on {@code <file>.lock} so other processes cannot interleave with them.
  */
-class ZakatCalculator {
-    private static final double ZAKAT_PERCENTAGE = 0.025;
+class UserRepository {
+    private static final LockStripes EMAIL_LOCKS = new LockStripes(64);
+    private static final LockStripes FILE_LOCKS = new LockStripes(16);
+    private static final Metrics.Counter LOOKUP_HITS = Metrics.SHARED.counter("users.lookup.hits");
+    private static final Metrics.Counter LOOKUP_MISSES = Metrics.SHARED.counter("users.lookup.misses");
+    private static final Metrics.Counter REFRESH_ERRORS = Metrics.SHARED.counter("users.refresh.errors");
+    private static final Metrics.Counter BYTES_PARSED = Metrics.SHARED.counter("users.bytesParsed");
+    private static final Metrics.Counter PARSE_ERRORS = Metrics.SHARED.counter("users.parseErrors");
+    private static final Metrics.Histogram WRITES = Metrics.SHARED.histogram("users.write");
+
+    private final String fileName;
+    private final Path lockFile;
+    private final Map<String, User> index = new ConcurrentHashMap<>();
+    private long indexedBytes = 0;
+    private Object indexedFileKey;
+    private int superseded = 0;
 
     /**
-     * Estimates zakat owed from a list of assets.
-     * @param assets List of user's assets
-     * @return Calculated zakat amount
+     * Constructs a repository backed by the users file in the storage root.
      */
-    public double estimateZakat(List<Asset> assets) {
-        double total = 0;
-        for (Asset asset : assets) {
-            try {
-                total += Double.parseDouble(asset.getValue());
-            } catch (NumberFormatException e) {
-                System.out.println("Skipping invalid asset value for: " + asset.getName());
-            }
-        }
-        return total * ZAKAT_PERCENTAGE;
+    public UserRepository() {
+        this(StorageLayout.SHARED.usersFile().toString());
     }
-}
 
-/**
- * Generates a zakat compliance report and saves it to file.
- */
-class ComplianceReport {
+    /**
+     * Constructs a repository backed by the given users file.
+     * @param fileName Path of the users file
+     */
+    public UserRepository(String fileName) {
+        this.fileName = fileName;
+        this.lockFile = FileLocks.lockFileFor(fileName);
+    }
 
     /**
-     * Writes zakat report to a file based on user's assets.
-     * @param assets List of user's assets
-     * @param zakatAmount Calculated zakat amount
+     * Checks if an email is already registered.
+     * @param email Email to check
+     * @return true if email exists, false otherwise
      */
-    public void generateReport(List<Asset> assets, double zakatAmount) {
-        try (FileWriter writer = new FileWriter("zakat_report.txt")) {
-            writer.write("=== Zakat Report ===\nAssets:\n");
-            for (Asset asset : assets) {
-                writer.write("- " + asset.getName() + ": " + asset.getValue() + " EGP\n");
-            }
-            writer.write("Total Zakat Due: " + zakatAmount + " EGP\n");
-            System.out.println("Zakat report generated successfully.");
-        } catch (IOException e) {
-            System.out.println("Error generating report.");
-        }
+    public boolean emailExists(String email) {
+        return lookup(email) != null;
     }
-}
 
-/**
- * Generates a financial report and exports it as txt or csv.
- */
-class FinancialReportGenerator {
+    /**
+     * Saves a user to the users file.
+     * @param user User to save
+     * @throws IOException If file cannot be written
+     */
+    public void save(User user) throws IOException {
+        append(user, false);
+    }
 
     /**
-     * Generates a financial report for user's assets in selected format.
-     * @param assets List of user's assets
-     * @param format Desired export format (PDF/Excel simulated)
+     * Saves a user unless the email is already registered, as one atomic step.
+     * The email is checked again against the file while it is locked, so the same email
+     * cannot be registered twice by concurrent threads or processes.
+     * @param user User to save
+     * @return true if the user was saved, false if the email already exists
+     * @throws IOException If file cannot be read or written
      */
-    public void generateReport(List<Asset> assets, String format) {
-        String fileName = "financial_report." + (format.equalsIgnoreCase("pdf") ? "txt" : "csv");
+    public boolean registerIfAbsent(User user) throws IOException {
+        return EMAIL_LOCKS.withLock(user.getEmail(), () -> lookup(user.getEmail()) == null && append(user, true));
+    }
 
-        try (FileWriter writer = new FileWriter(fileName)) {
-            writer.write("=== Financial Report ===\n");
-            writer.write("Asset ID, Name, Value (EGP), Type\n");
-            for (Asset asset : assets) {
-                writer.write(asset.toFileString() + "\n");
+    /**
+     * Appends a user record while holding the file lock.
+     * @param user User to save
+     * @param ifAbsent Whether to skip the append if the email is already in the file
+     * @return true if the record was appended
+     * @throws IOException If file cannot be read or written
+     */
+    private boolean append(User user, boolean ifAbsent) throws IOException {
+        return FILE_LOCKS.withLock(lockFile.toString(), () -> FileLocks.exclusive(lockFile, () -> {
+            if (ifAbsent) {
+                refresh();
+                if (index.containsKey(indexKey(user.getEmail()))) {
+                    return false;
+                }
             }
-            System.out.println("Report exported as: " + fileName);
+            write(user);
+            return true;
+        }));
+    }
+
+    /**
+     * Replaces a user's stored password, unless it has changed since it was read.
+     * The new record is appended and takes the place of the old one.
+     * @param email Email of the user
+     * @param expected Stored password the caller last saw
+     * @param replacement New stored password
+     * @return true if the password was replaced, false if the user is gone or the password already changed
+     * @throws IOException If file cannot be read or written
+     */
+    public boolean replacePassword(String email, String expected, String replacement) throws IOException {
+        return EMAIL_LOCKS.withLock(email, () -> FILE_LOCKS.withLock(lockFile.toString(), () -> FileLocks.exclusive(lockFile, () -> {
+            refresh();
+            User current = index.get(indexKey(email));
+            if (current == null || !current.password.equals(expected)) {
+                return false;
+            }
+            write(new Investor(current.email, replacement, current.fullName));
+            if (superseded >= Math.max(1, index.size() / 4)) {
+                compact();
+            }
+            return true;
+        })));
+    }
+
+    /**
+     * Rewrites the file with only the latest record of each user, in the order the users first registered.
+     * The caller holds the file lock.
+     * @throws IOException If file cannot be read or written
+     */
+    private void compact() throws IOException {
+        refresh();
+        Path file = Paths.get(fileName);
+        Path temp = file.resolveSibling(file.getFileName() + ".compact");
+        Set<String> written = new HashSet<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             BufferedWriter writer = new BufferedWriter(new FileWriter(temp.toFile()))) {
+            MappedRecordReader record = new MappedRecordReader(channel, 0, indexedBytes, false);
+            while (record.next()) {
+                if (record.split(3) == 3 && written.add(indexKey(record.field(0)))) {
+                    writer.write(index.get(indexKey(record.field(0))).toFileString());
+                    writer.newLine();
+                }
+            }
+        }
+        InvestmentRepository.moveAtomically(temp, file);
+        refresh();
+    }
+
+    /**
+     * Appends a record and indexes it. The caller holds the file lock.
+     * @param user User to write
+     * @throws IOException If file cannot be read or written
+     */
+    private void write(User user) throws IOException {
+        long start = System.nanoTime();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName, true))) {
+            writer.write(user.toFileString());
+            writer.newLine();
+        }
+        WRITES.recordSince(start);
+        refresh();
+    }
+
+    /**
+     * Finds a user by email.
+     * @param email Email to search for
+     * @return User object or null if not found
+     */
+    public User findUserByEmail(String email) {
+        return lookup(email);
+    }
+
+    /**
+     * Looks an email up in the index, reading any records appended to the file since the last lookup on a miss.
+     * A file that cannot be read answers from the index as it stands; the failure is counted in
+     * {@code users.refresh.errors}.
+     * @param email Email to search for
+     * @return Indexed user or null if not found
+     */
+    private User lookup(String email) {
+        if (email == null) {
+            return null;
+        }
+        String key = indexKey(email);
+        User user = index.get(key);
+        if (user == null) {
+            try {
+                refresh();
+            } catch (IOException e) {
+                REFRESH_ERRORS.recordError(e);
+            }
+            user = index.get(key);
+        }
+        (user == null ? LOOKUP_MISSES : LOOKUP_HITS).increment();
+        return user;
+    }
+
+    /**
+     * Brings the index up to date with the file.
+     * Only the bytes appended since the previous refresh are read; a trailing partial line
+     * (another writer still appending) is left for the next refresh. A file that shrank or was
+     * replaced by compaction is read again from the start.
+     * @throws IOException If reading fails
+     */
+    private synchronized void refresh() throws IOException {
+        Path file = Paths.get(fileName);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+        long length = attributes == null ? 0 : attributes.size();
+        Object fileKey = attributes == null ? null : attributes.fileKey();
+        if (length < indexedBytes || indexedBytes > 0 && !Objects.equals(fileKey, indexedFileKey)) {
+            index.clear();
+            indexedBytes = 0;
+            superseded = 0;
+        }
+        indexedFileKey = fileKey;
+        if (length == indexedBytes) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedRecordReader record = new MappedRecordReader(channel, indexedBytes, length, false);
+            while (record.next()) {
+                if (record.split(3) == 3) {
+                    String email = record.field(0);
+                    if (index.put(indexKey(email), new Investor(email, record.field(1), record.field(2))) != null) {
+                        superseded++;
+                    }
+                } else {
+                    PARSE_ERRORS.increment();
+                }
+            }
+            BYTES_PARSED.add(record.position() - indexedBytes);
+            indexedBytes = record.position();
+        }
+    }
+
+    /**
+     * @return Case-insensitive index key for an email
+     */
+    private static String indexKey(String email) {
+        return email.toLowerCase(Locale.ROOT);
+    }
+}
+
+/**
+ * Handles business logic for user registration and login.
+ * Passwords are stored as salted hashes; accounts still holding a plain-text password, or a hash
+ * weaker than the current cost, are rehashed on their next successful login.
+ * A successful login opens a {@link Session} whose token stands in for the credentials afterwards.
+ */
+class UserService {
+    private static final Metrics.Histogram LOGINS = Metrics.SHARED.histogram("users.login");
+    private static final Metrics.Histogram REGISTRATIONS = Metrics.SHARED.histogram("users.register");
+    private static final Metrics.Counter LOGIN_FAILURES = Metrics.SHARED.counter("users.login.failures");
+    private static final Metrics.Counter REHASH_ERRORS = Metrics.SHARED.counter("users.rehash.errors");
+    private static final Metrics.Counter REGISTER_ERRORS = Metrics.SHARED.counter("users.register.errors");
+
+    private UserRepository userRepo;
+    private final PasswordHasher hasher;
+    private final SessionManager sessions;
+
+    /**
+     * Constructs a UserService with a given repository, the shared password hasher and the shared sessions.
+     * @param repo Repository for user data
+     */
+    public UserService(UserRepository repo) {
+        this(repo, PasswordHasher.shared());
+    }
+
+    /**
+     * Constructs a UserService with a given repository and password hasher, using the shared sessions.
+     * @param repo Repository for user data
+     * @param hasher Hasher for stored passwords
+     */
+    public UserService(UserRepository repo, PasswordHasher hasher) {
+        this(repo, hasher, SessionManager.SHARED);
+    }
+
+    /**
+     * Constructs a UserService with a given repository, password hasher and sessions.
+     * @param repo Repository for user data
+     * @param hasher Hasher for stored passwords
+     * @param sessions Where sessions opened by login are kept
+     */
+    public UserService(UserRepository repo, PasswordHasher hasher, SessionManager sessions) {
+        this.userRepo = repo;
+        this.hasher = hasher;
+        this.sessions = sessions;
+    }
+
+    /**
+     * Registers a user if email is not already used.
+     * The password is always hashed before it is saved, even if it looks like a hash already;
+     * the user passed in is left unchanged.
+     * @param user User to register
+     * @return true if registration succeeds, false otherwise
+     */
+    public boolean registerUser(User user) {
+        long start = System.nanoTime();
+        try {
+            if (!userRepo.registerIfAbsent(new Investor(user.getEmail(), hasher.hash(user.password), user.fullName))) {
+                System.out.println("This email already exists.");
+                return false;
+            }
+            System.out.println("User added successfully.");
+            return true;
+        } catch (Exception e) {
+            REGISTER_ERRORS.recordError(e);
+            System.out.println("Failed to add user.");
+            return false;
+        } finally {
+            REGISTRATIONS.recordSince(start);
+        }
+    }
+
+    /**
+     * Validates login by checking credentials and opens a session for the user.
+     * @param email Email of user
+     * @param password Password of user
+     * @return The new session, or null if the credentials do not match
+     */
+    public Session login(String email, String password) {
+        long start = System.nanoTime();
+        try {
+            User user = userRepo.findUserByEmail(email);
+            if (user == null) {
+                LOGIN_FAILURES.increment();
+                System.out.println("This email has no account.");
+                return null;
+            }
+            String stored = user.password;
+            if (!hasher.verify(password, stored)) {
+                LOGIN_FAILURES.increment();
+                System.out.println("Password is not correct.");
+                return null;
+            }
+            if (hasher.needsRehash(stored)) {
+                try {
+                    userRepo.replacePassword(user.getEmail(), stored, hasher.hash(password));
+                } catch (IOException e) {
+                    // the old record still verifies; the rehash is retried on the next login
+                    REHASH_ERRORS.recordError(e);
+                }
+            }
+            System.out.println("Login successful, hello " + user.fullName + "!");
+            return sessions.create(user);
+        } finally {
+            LOGINS.recordSince(start);
+        }
+    }
+
+    /**
+     * Finds the session a token belongs to, without touching the users file.
+     * @param token Session token, may be null
+     * @return The live session, or null if the token is unknown or expired
+     */
+    public Session session(String token) {
+        return sessions.validate(token);
+    }
+
+    /**
+     * Ends a session.
+     * @param token Session token
+     * @return true if a live session was ended
+     */
+    public boolean logout(String token) {
+        return sessions.invalidate(token);
+    }
+}
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hashing.
+ * Hashes are stored as {@code pbkdf2-sha256$<iterations>$<salt>$<hash>} with Base64 salt and hash, so each
+ * record carries the cost it was made with and older records keep verifying after the cost is raised.
+ * Hashes are compared in constant time. Records that are still plain text are recognised and can be
+ * checked once and then rehashed.
+ * Hashing and verifying run on a fixed pool of verification threads, so a burst of logins costs at most
+ * one core per pool thread instead of one per caller.
+ */
+final class PasswordHasher {
+    private static final String PREFIX = "pbkdf2-sha256$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final int MIN_ITERATIONS = 10_000;
+    private static final int MAX_ITERATIONS = 10_000_000;
+    private static final int PROBE_ITERATIONS = 20_000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int iterations;
+    private final Executor executor;
+
+    /**
+     * Constructs a hasher verifying on the caller's thread.
+     * @param iterations PBKDF2 iteration count for new hashes
+     */
+    public PasswordHasher(int iterations) {
+        this(iterations, Runnable::run);
+    }
+
+    /**
+     * Constructs a hasher running on the given executor.
+     * @param iterations PBKDF2 iteration count for new hashes
+     * @param executor Executor the key derivations run on
+     */
+    public PasswordHasher(int iterations, Executor executor) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("iterations must be positive: " + iterations);
+        }
+        this.iterations = iterations;
+        this.executor = executor;
+    }
+
+    /**
+     * The hasher used by {@link UserService} unless another is given. Its cost is
+     * {@code -Dinvestmate.password.iterations} if set, otherwise calibrated on first use so one hash takes
+     * about {@code -Dinvestmate.password.targetMillis} (100 ms by default) on this host. It runs on
+     * {@code -Dinvestmate.password.threads} daemon threads, one per core by default.
+     * @return The shared hasher
+     */
+    static PasswordHasher shared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * Holds the shared hasher so it is only calibrated when first needed.
+     */
+    private static final class Shared {
+        static final PasswordHasher INSTANCE = create();
+
+        private static PasswordHasher create() {
+            int configured = Integer.getInteger("investmate.password.iterations", 0);
+            int iterations = configured > 0 ? configured
+                    : calibrate(Long.getLong("investmate.password.targetMillis", 100) * 1_000_000);
+            int threads = Integer.getInteger("investmate.password.threads", Runtime.getRuntime().availableProcessors());
+            AtomicInteger created = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), task -> {
+                Thread thread = new Thread(task, "password-verifier-" + created.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            return new PasswordHasher(iterations, pool);
+        }
+    }
+
+    /**
+     * Finds the iteration count at which one hash takes about the target time on this host.
+     * The probe runs ten times untimed first so the measurement is of compiled code.
+     * @param targetNanos Target time per hash
+     * @return Iteration count, rounded to a thousand and kept within sane bounds
+     */
+    static int calibrate(long targetNanos) {
+        byte[] salt = new byte[SALT_BYTES];
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 20; i++) {
+            long start = System.nanoTime();
+            derive("calibration", salt, PROBE_ITERATIONS);
+            if (i >= 10) {
+                best = Math.min(best, System.nanoTime() - start);
+            }
+        }
+        double iterations = (double) PROBE_ITERATIONS * targetNanos / Math.max(1, best);
+        long rounded = Math.round(iterations / 1_000) * 1_000;
+        return (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, rounded));
+    }
+
+    /**
+     * @return Iteration count used for new hashes
+     */
+    public int iterations() {
+        return iterations;
+    }
+
+    /**
+     * Hashes a password with a fresh random salt.
+     * @param password Plain-text password
+     * @return Stored form of the hash
+     */
+    public String hash(String password) {
+        return run(() -> {
+            byte[] salt = new byte[SALT_BYTES];
+            RANDOM.nextBytes(salt);
+            Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+            return PREFIX + iterations + "$" + base64.encodeToString(salt) + "$"
+                    + base64.encodeToString(derive(password, salt, iterations));
+        });
+    }
+
+    /**
+     * Checks a password against a stored record, hashed or still plain text.
+     * A record that starts like a hash but is malformed matches no password.
+     * @param password Password given by the user
+     * @param stored Stored hash, or the plain-text password of a record not yet migrated
+     * @return true if the password matches
+     */
+    public boolean verify(String password, String stored) {
+        return run(() -> {
+            String[] parts = split(stored);
+            if (parts == null) {
+                return !stored.startsWith(PREFIX)
+                        && MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+            }
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] expected = base64.decode(parts[2]);
+            return MessageDigest.isEqual(expected, derive(password, base64.decode(parts[1]), Integer.parseInt(parts[0])));
+        });
+    }
+
+    /**
+     * Tells whether a stored record should be replaced by a fresh hash after a successful login:
+     * it is plain text, or hashed with fewer iterations than this hasher uses.
+     * @param stored Stored record
+     * @return true if the record should be rehashed
+     */
+    public boolean needsRehash(String stored) {
+        String[] parts = split(stored);
+        return parts == null || Integer.parseInt(parts[0]) < iterations;
+    }
+
+    /**
+     * Tells stored records already migrated from plain text apart from those still to migrate.
+     * @param stored Stored record
+     * @return true if the record is a well-formed hash rather than a plain-text password
+     */
+    static boolean isHashed(String stored) {
+        return split(stored) != null;
+    }
+
+    /**
+     * Splits a stored hash into iterations, salt and hash.
+     * @return The three parts, or null if the record is not a well-formed hash: a positive iteration count
+     *         and a non-empty Base64 salt and hash
+     */
+    private static String[] split(String stored) {
+        if (stored == null || !stored.startsWith(PREFIX)) {
+            return null;
+        }
+        String[] parts = stored.substring(PREFIX.length()).split("\\$", -1);
+        if (parts.length != 3 || parts[0].isEmpty() || parts[0].length() > 9 || !parts[0].chars().allMatch(Character::isDigit)
+                || Integer.parseInt(parts[0]) < 1 || !isBase64(parts[1]) || !isBase64(parts[2])) {
+            return null;
+        }
+        return parts;
+    }
+
+    private static boolean isBase64(String text) {
+        if (text.isEmpty()) {
+            return false;
+        }
+        try {
+            return Base64.getDecoder().decode(text).length > 0;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs a derivation on the executor and waits for it.
+     */
+    private <T> T run(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, executor).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
+
+/**
+ * An authenticated session: the opaque token handed to the client and the user it stands for.
+ */
+final class Session {
+    private final String token;
+    private final User user;
+    final long createdNanos;
+    volatile long lastUsedNanos;
+
+    Session(String token, User user, long now) {
+        this.token = token;
+        this.user = user;
+        this.createdNanos = now;
+        this.lastUsedNanos = now;
+    }
+
+    /**
+     * @return Token identifying the session
+     */
+    public String token() {
+        return token;
+    }
+
+    /**
+     * @return The logged-in user, as loaded from the users file
+     */
+    public User user() {
+        return user;
+    }
+}
+
+/**
+ * Live sessions by token, so authenticated calls skip the users file and the password hash.
+ * Sessions end after a fixed lifetime, after a period without use, or on logout. The number of live
+ * sessions is capped: when full, the oldest session is dropped to make room. Checking a token is one
+ * map lookup and a timestamp write, and allocates nothing.
+ */
+final class SessionManager {
+    private static final int TOKEN_BYTES = 32;
+    private static final int SWEEP_EVERY = 1_024;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** Sessions of the process, configured by {@code -Dinvestmate.session.ttlMinutes}, {@code .idleMinutes} and {@code .max}. */
+    static final SessionManager SHARED = new SessionManager(
+            Duration.ofMinutes(Long.getLong("investmate.session.ttlMinutes", 8 * 60)),
+            Duration.ofMinutes(Long.getLong("investmate.session.idleMinutes", 30)),
+            Integer.getInteger("investmate.session.max", 100_000));
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Queue<String> creationOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger created = new AtomicInteger();
+    private final long ttlNanos;
+    private final long idleNanos;
+    private final int maxSessions;
+
+    /**
+     * Constructs a session manager.
+     * @param ttl Lifetime of a session from login
+     * @param idle How long a session may go unused
+     * @param maxSessions Most sessions live at once
+     */
+    public SessionManager(Duration ttl, Duration idle, int maxSessions) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("maxSessions must be positive: " + maxSessions);
+        }
+        this.ttlNanos = ttl.toNanos();
+        this.idleNanos = idle.toNanos();
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Starts a session for a user who has just authenticated.
+     * @param user The logged-in user
+     * @return The new session
+     */
+    public Session create(User user) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(bytes);
+        Session session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), user, System.nanoTime());
+        if (created.incrementAndGet() % SWEEP_EVERY == 0) {
+            sweep();
+        }
+        while (sessions.size() >= maxSessions) {
+            String oldest = creationOrder.poll();
+            if (oldest == null) {
+                break;
+            }
+            sessions.remove(oldest);
+        }
+        sessions.put(session.token(), session);
+        creationOrder.add(session.token());
+        return session;
+    }
+
+    /**
+     * Looks a token up and marks the session as used.
+     * @param token Token given by the client, may be null
+     * @return The live session, or null if the token is unknown or its session has expired
+     */
+    public Session validate(String token) {
+        if (token == null) {
+            return null;
+        }
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (expired(session, now)) {
+            sessions.remove(token, session);
+            return null;
+        }
+        session.lastUsedNanos = now;
+        return session;
+    }
+
+    /**
+     * Ends a session.
+     * @param token Token of the session
+     * @return true if a live session was ended
+     */
+    public boolean invalidate(String token) {
+        return token != null && sessions.remove(token) != null;
+    }
+
+    /**
+     * Removes expired sessions, and tokens of ended sessions from the eviction queue.
+     * Runs by itself every {@value #SWEEP_EVERY} logins.
+     */
+    public void sweep() {
+        long now = System.nanoTime();
+        sessions.values().removeIf(session -> expired(session, now));
+        creationOrder.removeIf(token -> !sessions.containsKey(token));
+    }
+
+    /**
+     * @return Number of sessions held, including expired ones not yet swept
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * @return Lifetime of a session in seconds
+     */
+    public long ttlSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(ttlNanos);
+    }
+
+    private boolean expired(Session session, long now) {
+        return now - session.createdNanos >= ttlNanos || now - session.lastUsedNanos >= idleNanos;
+    }
+}
+
+/**
+ * Represents a single asset in the investor's portfolio.
+ * The value is held in minor currency units (piastres), parsed once when the asset is created.
+ */
+class Asset {
+    private String id;
+    private String name;
+    private long valueMinor;
+    private String invalidValue;
+    private String type;
+
+    /**
+     * Constructs an Asset object.
+     * A value that cannot be parsed is kept as text and the asset is flagged as invalid.
+     * @param id Asset ID
+     * @param name Asset name
+     * @param value Asset value
+     * @param type Asset type
+     */
+    public Asset(String id, String name, String value, String type) {
+        this.id = id;
+        this.name = name;
+        this.valueMinor = Money.parseMinor(value);
+        this.invalidValue = valueMinor == Money.INVALID ? value : null;
+        this.type = type;
+    }
+
+    /**
+     * Constructs an Asset object from an already parsed value.
+     * @param id Asset ID
+     * @param name Asset name
+     * @param valueMinor Asset value in minor units
+     * @param type Asset type
+     */
+    public Asset(String id, String name, long valueMinor, String type) {
+        this.id = id;
+        this.name = name;
+        this.valueMinor = valueMinor;
+        this.type = type;
+    }
+
+    /**
+     * @return Asset ID
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return Asset name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Asset value
+     */
+    public String getValue() {
+        return invalidValue != null ? invalidValue : Money.format(valueMinor);
+    }
+
+    /**
+     * @return Asset value in minor units, or {@link Money#INVALID} if it could not be parsed
+     */
+    public long getValueMinor() {
+        return valueMinor;
+    }
+
+    /**
+     * @return true if the asset value was parsed successfully
+     */
+    public boolean hasValidValue() {
+        return invalidValue == null;
+    }
+
+    /**
+     * @return Asset type
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return CSV format of asset details
+     */
+    public String toFileString() {
+        return id + "," + name + "," + getValue() + "," + type;
+    }
+}
+
+/**
+ * Fixed-point money helpers. Amounts are longs counting minor units (1/100 EGP).
+ */
+final class Money {
+    /** Marker for a value that could not be parsed. */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private Money() {}
+
+    /**
+     * Parses a decimal amount such as {@code 1500}, {@code -3.5} or {@code 99.99} into minor units.
+     * Amounts with more than two decimals or in exponent notation are rounded half-up to the nearest minor unit.
+     * @param text Amount text
+     * @return Amount in minor units, or {@link #INVALID} if the text is not a number
+     */
+    public static long parseMinor(String text) {
+        if (text == null) {
+            return INVALID;
+        }
+        String s = text.trim();
+        int i = 0;
+        boolean negative = false;
+        if (i < s.length() && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        long units = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (c >= '0' && c <= '9' && decimals < 2 && units < Long.MAX_VALUE / 1000) {
+                units = units * 10 + (c - '0');
+                digits++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else {
+                return parseSlow(s);
+            }
+        }
+        if (digits == 0) {
+            return INVALID;
+        }
+        for (int d = Math.max(decimals, 0); d < 2; d++) {
+            units *= 10;
+        }
+        return negative ? -units : units;
+    }
+
+    /**
+     * Parses amounts the fast path does not handle (exponents, extra decimals, huge values).
+     * @param s Trimmed amount text
+     * @return Amount in minor units, or {@link #INVALID}
+     */
+    private static long parseSlow(String s) {
+        try {
+            return new BigDecimal(s).movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+        } catch (NumberFormatException | ArithmeticException e) {
+            return INVALID;
+        }
+    }
+
+    /**
+     * Formats minor units as a decimal amount with two fraction digits.
+     * @param minor Amount in minor units
+     * @return Formatted amount, e.g. {@code 1500.00}
+     */
+    public static String format(long minor) {
+        StringBuilder sb = new StringBuilder(24);
+        appendTo(sb, minor);
+        return sb.toString();
+    }
+
+    /**
+     * Appends minor units as a decimal amount with two fraction digits, without boxing.
+     * @param sb Destination
+     * @param minor Amount in minor units
+     */
+    public static void appendTo(StringBuilder sb, long minor) {
+        if (minor < 0) {
+            sb.append('-');
+        }
+        // read as unsigned, the negation is the magnitude even for Long.MIN_VALUE, which has no positive counterpart
+        long abs = minor < 0 ? -minor : minor;
+        long cents = Long.remainderUnsigned(abs, 100);
+        sb.append(Long.divideUnsigned(abs, 100)).append('.');
+        if (cents < 10) {
+            sb.append('0');
+        }
+        sb.append(cents);
+    }
+}
+
+/**
+ * Callback receiving assets one at a time from an {@link AssetSource}.
+ */
+interface AssetVisitor {
+    /**
+     * @param asset Next asset
+     * @throws IOException If the visitor fails to write its output
+     */
+    void visit(Asset asset) throws IOException;
+}
+
+/**
+ * Anything that can hand out a portfolio's assets one at a time, so consumers
+ * need not hold the whole portfolio in memory.
+ */
+interface AssetSource {
+    /**
+     * Passes every asset to the visitor in portfolio order.
+     * @param visitor Receiver of the assets
+     * @throws IOException If reading the assets or visiting them fails
+     */
+    void forEach(AssetVisitor visitor) throws IOException;
+
+    /**
+     * @param assets Assets already in memory
+     * @return Source iterating the given assets
+     */
+    static AssetSource of(Iterable<Asset> assets) {
+        return visitor -> {
+            for (Asset asset : assets) {
+                visitor.visit(asset);
+            }
+        };
+    }
+}
+
+/**
+ * On-disk layouts supported by {@link InvestmentRepository}.
+ */
+enum StorageFormat {
+    /** Everything in the text log {@code investments_<email>.txt}. */
+    TEXT,
+    /** A binary snapshot ({@code .bin}, see {@link BinaryPortfolioFile}) plus a text log of the changes made since. */
+    BINARY
+}
+
+/**
+ * Bounded, least-recently-used cache of loaded portfolios shared by all {@link InvestmentRepository}
+ * instances, so repeated lookups, zakat panels and reports need not replay the files again.
+ * Entries are weighed by an estimate of the heap their assets hold and the least recently used ones are
+ * evicted once the total exceeds the budget. Each entry remembers the length and modification time of
+ * the files it was loaded from and is discarded on lookup when they no longer match.
+ * Repositories write through: they append to the file and update the cached entry under the portfolio's lock.
+ */
+final class PortfolioCache {
+    /** Rough heap held per asset besides its characters: the object, its strings and its map entry. */
+    private static final long ASSET_OVERHEAD_BYTES = 200;
+    /** Rough heap held per byte of portfolio file once loaded, used to decide whether to load at all. */
+    private static final long BYTES_PER_FILE_BYTE = 8;
+
+    /** Cache used by default, sized by the {@code investmate.cache.bytes} system property (64 MB if unset). */
+    static final PortfolioCache SHARED = new PortfolioCache(Long.getLong("investmate.cache.bytes", 64L << 20));
+
+    /** Process-wide totals over all caches, for {@link Metrics}; each cache also keeps its own counts. */
+    private static final Metrics.Counter HITS = Metrics.SHARED.counter("cache.hits");
+    private static final Metrics.Counter MISSES = Metrics.SHARED.counter("cache.misses");
+    private static final Metrics.Counter EVICTIONS = Metrics.SHARED.counter("cache.evictions");
+    private static final Metrics.Counter INVALIDATIONS = Metrics.SHARED.counter("cache.invalidations");
+
+    private final long maxWeight;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * @param maxWeight Estimated heap budget in bytes; 0 disables caching
+     */
+    PortfolioCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * A loaded portfolio. Only read or changed while holding the portfolio's lock.
+     */
+    static final class Entry {
+        final Map<String, Asset> assets;
+        long[] stamp;
+        int logRecords;
+        /** Running totals of the assets, kept up to date with them once computed; null until first asked for. */
+        RunningTotals totals;
+        private long weight;
+        private boolean cached;
+
+        /**
+         * @param assets Live assets keyed by ID, in insertion order
+         * @param stamp Length and modification time of the files they were loaded from
+         * @param logRecords Records in the files
+         */
+        Entry(Map<String, Asset> assets, long[] stamp, int logRecords) {
+            this.assets = assets;
+            this.stamp = stamp;
+            this.logRecords = logRecords;
+        }
+    }
+
+    /**
+     * Looks a portfolio up, discarding the entry if its files have changed.
+     * @param key Portfolio key
+     * @param stamp Current length and modification time of the portfolio's files
+     * @return The entry, or null on a miss
+     */
+    synchronized Entry get(String key, long[] stamp) {
+        Entry entry = entries.get(key);
+        if (entry != null && !Arrays.equals(entry.stamp, stamp)) {
+            discard(key);
+            invalidations++;
+            INVALIDATIONS.increment();
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            MISSES.increment();
+        } else {
+            hits++;
+            HITS.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Caches a freshly loaded portfolio, evicting least recently used ones to make room.
+     * A portfolio heavier than the whole budget is not cached.
+     * @param key Portfolio key
+     * @param entry Loaded portfolio
+     */
+    synchronized void put(String key, Entry entry) {
+        discard(key);
+        entry.weight = entry.assets.size() * ASSET_OVERHEAD_BYTES;
+        if (entry.weight > maxWeight) {
+            return;
+        }
+        entry.weight = 0;
+        for (Asset a : entry.assets.values()) {
+            entry.weight += weigh(a);
+        }
+        if (entry.weight > maxWeight) {
+            return;
+        }
+        entries.put(key, entry);
+        entry.cached = true;
+        weight += entry.weight;
+        evict();
+    }
+
+    /**
+     * Accounts for an asset written through to a portfolio.
+     * @param entry Entry that was changed, cached or not
+     * @param before Asset replaced or removed, or null
+     * @param after Asset added or the replacement, or null
+     */
+    synchronized void changed(Entry entry, Asset before, Asset after) {
+        long delta = (after == null ? 0 : weigh(after)) - (before == null ? 0 : weigh(before));
+        entry.weight += delta;
+        if (entry.cached) {
+            weight += delta;
+            evict();
+        }
+    }
+
+    /**
+     * Drops a portfolio whose files were replaced wholesale.
+     * @param key Portfolio key
+     */
+    synchronized void invalidate(String key) {
+        if (discard(key)) {
+            invalidations++;
+            INVALIDATIONS.increment();
+        }
+    }
+
+    /**
+     * @param fileBytes Size of a portfolio's files
+     * @return true if a portfolio this size is small enough to load into the cache, taking at most a quarter of it
+     */
+    boolean admits(long fileBytes) {
+        return fileBytes <= maxWeight / 4 / BYTES_PER_FILE_BYTE;
+    }
+
+    /** @return Lookups answered from the cache */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /** @return Lookups that had to load the portfolio */
+    synchronized long misses() {
+        return misses;
+    }
+
+    /** @return Entries dropped to stay within the budget */
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    /** @return Entries dropped because their files changed */
+    synchronized long invalidations() {
+        return invalidations;
+    }
+
+    /** @return Number of cached portfolios */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return Estimated heap held by the cached portfolios, in bytes */
+    synchronized long weight() {
+        return weight;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d portfolios, %,d of %,d bytes, %d hits, %d misses, %d evictions, %d invalidations",
+                entries.size(), weight, maxWeight, hits, misses, evictions, invalidations);
+    }
+
+    private boolean discard(String key) {
+        Entry old = entries.remove(key);
+        if (old == null) {
+            return false;
+        }
+        weight -= old.weight;
+        old.cached = false;
+        return true;
+    }
+
+    private void evict() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            weight -= entry.weight;
+            entry.cached = false;
+            eldest.remove();
+            evictions++;
+            EVICTIONS.increment();
+        }
+    }
+
+    private static long weigh(Asset asset) {
+        return ASSET_OVERHEAD_BYTES + 2L * (asset.getId().length() + asset.getName().length() + asset.getType().length());
+    }
+}
+
+/**
+ * Manages asset storage for each user in separate files.
+ * The file is an append-only log: a plain line adds an asset, {@code #UPD,...} replaces one and
+ * {@code #DEL,<id>} removes one. Once superseded records outnumber live ones the file is compacted.
+ * In {@link StorageFormat#BINARY} mode compaction writes a binary snapshot and empties the text log.
+ * Live assets are kept in an ID-keyed index so lookups and edits never rescan the file. Indexes are shared
+ * between repositories through a {@link PortfolioCache}; a repository also keeps the last index it used,
+ * even if the cache has evicted it. {@link #forEach} streams the files instead when the index is not
+ * loaded and the portfolio is too large for the cache.
+ * Safe for concurrent use: every operation holds the lock stripe of the portfolio's file, so different
+ * users rarely contend, and an exclusive lock on {@code <file>.lock} against other processes. The index
+ * is reloaded if the files changed size or modification time since it was built, so several repositories
+ * (or processes) over the same portfolio stay consistent.
+ * Writes are durable once they return: each record goes through a {@link WriteAheadJournal} first, or,
+ * without one, the text log is synced after every write.
+ */
+class InvestmentRepository implements AssetSource {
+    private static final String UPDATE_RECORD = "#UPD";
+    private static final String DELETE_RECORD = "#DEL";
+    static final byte[] UPDATE_PREFIX = (UPDATE_RECORD + ",").getBytes(StandardCharsets.US_ASCII);
+    static final byte[] DELETE_PREFIX = (DELETE_RECORD + ",").getBytes(StandardCharsets.US_ASCII);
+    private static final int COMPACTION_MIN_RECORDS = 64;
+    private static final int WRITE_BUFFER_CHARS = 1 << 16;
+    private static final LockStripes PORTFOLIO_LOCKS = new LockStripes(64);
+    private static final Metrics.Histogram READS = Metrics.SHARED.histogram("portfolio.read");
+    private static final Metrics.Histogram WRITES = Metrics.SHARED.histogram("portfolio.write");
+    private static final Metrics.Histogram LOADS = Metrics.SHARED.histogram("portfolio.load");
+    private static final Metrics.Counter BYTES_PARSED = Metrics.SHARED.counter("portfolio.bytesParsed");
+    private static final Metrics.Counter PARSE_ERRORS = Metrics.SHARED.counter("portfolio.parseErrors");
+    private static final Metrics.Counter REWRITES = Metrics.SHARED.counter("portfolio.rewrites");
+    private static final Metrics.Counter HISTORY_ERRORS = Metrics.SHARED.counter("history.errors");
+
+    private String FILE_NAME;
+    private final String snapshotFile;
+    private final Path lockFile;
+    private final PortfolioCache cache;
+    private final String cacheKey;
+    private final Path totalsFile;
+    private final WriteAheadJournal journal;
+    private final String journalName;
+    private final PortfolioHistory history;
+    private PortfolioCache.Entry index;
+    private RunningTotals totals;
+
+    /**
+     * Constructs repository for a specific user's assets.
+     * @param userEmail The user's email to derive filename
+     */
+    public InvestmentRepository(String userEmail) {
+        this(userEmail, StorageFormat.TEXT);
+    }
+
+    /**
+     * Constructs repository for a specific user's assets in the given storage format.
+     * @param userEmail The user's email to derive filename
+     * @param format On-disk layout
+     */
+    public InvestmentRepository(String userEmail, StorageFormat format) {
+        this(portfolioFile(userEmail), format);
+    }
+
+    /**
+     * Constructs repository over an explicit portfolio file.
+     * @param file Path of the portfolio file
+     */
+    public InvestmentRepository(Path file) {
+        this(file, StorageFormat.TEXT);
+    }
+
+    /**
+     * Constructs repository over an explicit portfolio file in the given storage format.
+     * @param file Path of the text log; a binary snapshot lives next to it with a {@code .bin} extension
+     * @param format On-disk layout
+     */
+    public InvestmentRepository(Path file, StorageFormat format) {
+        this(file, format, PortfolioCache.SHARED);
+    }
+
+    /**
+     * Constructs repository over an explicit portfolio file, sharing loaded portfolios through the given cache.
+     * @param file Path of the text log
+     * @param format On-disk layout
+     * @param cache Cache of loaded portfolios
+     */
+    public InvestmentRepository(Path file, StorageFormat format, PortfolioCache cache) {
+        this(file, format, cache, WriteAheadJournal.shared());
+    }
+
+    /**
+     * Constructs repository over an explicit portfolio file, making writes durable through the given journal.
+     * @param file Path of the text log
+     * @param format On-disk layout
+     * @param cache Cache of loaded portfolios
+     * @param journal Journal for asset writes, or null to sync the text log on every write
+     */
+    public InvestmentRepository(Path file, StorageFormat format, PortfolioCache cache, WriteAheadJournal journal) {
+        this.FILE_NAME = file.toString();
+        this.snapshotFile = format == StorageFormat.BINARY ? snapshotFile(file).toString() : null;
+        this.lockFile = FileLocks.lockFileFor(FILE_NAME);
+        this.cache = cache;
+        this.cacheKey = format + ":" + lockFile;
+        this.totalsFile = totalsFile(file);
+        this.journal = journal;
+        this.journalName = file.toAbsolutePath().normalize().toString();
+        this.history = PortfolioHistory.ENABLED ? new PortfolioHistory(file) : null;
+    }
+
+    /**
+     * @param userEmail The user's email
+     * @return Text log file of the user's portfolio in the configured {@link StorageLayout}
+     */
+    static Path portfolioFile(String userEmail) {
+        return StorageLayout.SHARED.portfolioFile(userEmail);
+    }
+
+    /**
+     * @param textFile Text log file of a portfolio
+     * @return Binary snapshot file kept next to it in {@link StorageFormat#BINARY} mode
+     */
+    static Path snapshotFile(Path textFile) {
+        return Paths.get(textFile.toString().replaceFirst("\\.txt$", "") + ".bin");
+    }
+
+    /**
+     * @param textFile Text log file of a portfolio
+     * @return File next to it holding the portfolio's {@link RunningTotals}
+     */
+    static Path totalsFile(Path textFile) {
+        return Paths.get(textFile.toString().replaceFirst("\\.txt$", "") + ".totals");
+    }
+
+    /**
+     * Saves a single asset to the file.
+     * @param investment Asset to save
+     * @throws IOException If writing fails
+     * @throws IllegalArgumentException If an asset with the same ID is already saved
+     */
+    public void save(Asset investment) throws IOException {
+        if (!saveIfAbsent(investment)) {
+            throw new IllegalArgumentException("Duplicate asset ID: " + investment.getId());
+        }
+    }
+
+    /**
+     * Saves a single asset unless its ID is already saved, as one atomic step.
+     * @param investment Asset to save
+     * @return true if the asset was saved, false if the ID already exists
+     * @throws IOException If writing fails
+     */
+    public boolean saveIfAbsent(Asset investment) throws IOException {
+        return locked(WRITES, () -> {
+            Map<String, Asset> assets = index();
+            if (assets.containsKey(investment.getId())) {
+                return false;
+            }
+            append(investment.toFileString());
+            assets.put(investment.getId(), investment);
+            cache.changed(index, null, investment);
+            track(null, investment);
+            recordHistory(time -> history.put(time, investment, assets));
+            return true;
+        });
+    }
+
+    /**
+     * Saves many assets in one locked pass through a single buffered writer, skipping any whose ID is
+     * already saved or came earlier in the batch.
+     * The records bypass the journal: the text log is synced once, after the batch.
+     * If the batch fails part way, the assets written so far stay saved and the index is reloaded on next use.
+     * @param investments Assets to save, read one at a time
+     * @param flushRecords Number of records written between flushes of the buffer
+     * @param duplicates Receives each asset skipped for its ID
+     * @return Number of assets saved
+     * @throws IOException If reading the assets or writing fails
+     */
+    public int saveAllIfAbsent(AssetSource investments, int flushRecords, AssetVisitor duplicates) throws IOException {
+        if (flushRecords < 1) {
+            throw new IllegalArgumentException("flushRecords must be positive: " + flushRecords);
+        }
+        return locked(WRITES, () -> {
+            Map<String, Asset> assets = index();
+            RunningTotals running = index.totals;
+            checkpoint();
+            int[] saved = {0};
+            try (FileChannel channel = FileChannel.open(Paths.get(FILE_NAME),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 BufferedWriter writer = new BufferedWriter(Channels.newWriter(channel.position(trimTornLine(channel)),
+                         Charset.defaultCharset()), WRITE_BUFFER_CHARS)) {
+                investments.forEach(asset -> {
+                    if (assets.putIfAbsent(asset.getId(), asset) != null) {
+                        duplicates.visit(asset);
+                        return;
+                    }
+                    writer.write(asset.toFileString());
+                    writer.newLine();
+                    cache.changed(index, null, asset);
+                    if (running != null) {
+                        running.apply(null, asset);
+                    }
+                    if (++saved[0] % flushRecords == 0) {
+                        writer.flush();
+                    }
+                });
+                writer.flush();
+                channel.force(false);
+            } catch (IOException | RuntimeException e) {
+                index = null;
+                cache.invalidate(cacheKey);
+                throw e;
+            }
+            index.logRecords += saved[0];
+            index.stamp = stamp();
+            if (saved[0] > 0) {
+                recordHistory(time -> history.checkpoint(time, AssetSource.of(assets.values())));
+            }
+            return saved[0];
+        });
+    }
+
+    /**
+     * Finds a saved asset by its ID.
+     * @param id Asset ID
+     * @return The asset, or null if none has this ID
+     * @throws IOException If the file cannot be loaded
+     */
+    public Asset findById(String id) throws IOException {
+        return locked(READS, () -> index().get(id));
+    }
+
+    /**
+     * Replaces a saved asset by appending an update record.
+     * @param investment Asset carrying the ID to replace and its new details
+     * @return true if the asset existed and was replaced, false otherwise
+     * @throws IOException If writing fails
+     */
+    public boolean update(Asset investment) throws IOException {
+        return locked(WRITES, () -> {
+            Map<String, Asset> assets = index();
+            if (!assets.containsKey(investment.getId())) {
+                return false;
+            }
+            append(UPDATE_RECORD + "," + investment.toFileString());
+            Asset previous = assets.put(investment.getId(), investment);
+            cache.changed(index, previous, investment);
+            track(previous, investment);
+            recordHistory(time -> history.put(time, investment, assets));
+            compactIfNeeded();
+            return true;
+        });
+    }
+
+    /**
+     * Removes a saved asset by appending a tombstone record.
+     * @param id ID of the asset to remove
+     * @return true if the asset existed and was removed, false otherwise
+     * @throws IOException If writing fails
+     */
+    public boolean delete(String id) throws IOException {
+        return locked(WRITES, () -> {
+            Map<String, Asset> assets = index();
+            if (!assets.containsKey(id)) {
+                return false;
+            }
+            append(DELETE_RECORD + "," + id);
+            Asset previous = assets.remove(id);
+            cache.changed(index, previous, null);
+            track(previous, null);
+            recordHistory(time -> history.remove(time, id, assets));
+            compactIfNeeded();
+            return true;
+        });
+    }
+
+    /**
+     * Returns the portfolio's totals and per-type subtotals in constant time from the running totals,
+     * which add, edit and remove keep up to date in memory next to the loaded portfolio. They are recomputed
+     * in full only if missing or if the files were changed behind this repository's back, for example by
+     * {@link #saveAll}; without a loaded portfolio, totals stored by the last compaction are used if still current.
+     * @return Totals of the live assets
+     * @throws IOException If the totals have to be recomputed and reading fails
+     */
+    public PortfolioTotals totals() throws IOException {
+        return locked(READS, () -> runningTotals().toTotals());
+    }
+
+    /**
+     * Checks the running totals against a full recomputation, replacing them if they disagree.
+     * @return true if the running totals were correct
+     * @throws IOException If reading or writing fails
+     */
+    public boolean verifyTotals() throws IOException {
+        return locked(() -> {
+            RunningTotals running = runningTotals();
+            PortfolioTotals full = recomputeTotals();
+            if (running.matches(full)) {
+                return true;
+            }
+            RunningTotals corrected = RunningTotals.of(full, running.stamp);
+            if (current(stamp()) != null) {
+                index.totals = corrected;
+            } else {
+                totals = corrected;
+                corrected.write(totalsFile);
+            }
+            return false;
+        });
+    }
+
+    /**
+     * @return Running totals matching the files: those of the loaded portfolio, computed from it if need be,
+     *         or else the stored ones, or else recomputed from the files and stored
+     * @throws IOException If recomputing fails
+     */
+    private RunningTotals runningTotals() throws IOException {
+        long[] stamp = stamp();
+        PortfolioCache.Entry live = current(stamp);
+        if (live != null) {
+            if (live.totals == null) {
+                live.totals = RunningTotals.of(recomputeTotals(), stamp);
+            }
+            return live.totals;
+        }
+        RunningTotals running = storedTotals(stamp);
+        if (running == null) {
+            running = RunningTotals.of(recomputeTotals(), stamp);
+            running.write(totalsFile);
+            totals = running;
+        }
+        return running;
+    }
+
+    /**
+     * @param stamp Current stamp of the files
+     * @return The held or stored running totals if they describe the files as stamped, otherwise null
+     */
+    private RunningTotals storedTotals(long[] stamp) {
+        if (totals == null || !Arrays.equals(totals.stamp, stamp)) {
+            totals = RunningTotals.read(totalsFile);
+        }
+        return totals != null && Arrays.equals(totals.stamp, stamp) ? totals : null;
+    }
+
+    /**
+     * Aggregates the live assets from scratch, without the running totals.
+     * @return Totals of the live assets
+     * @throws IOException If reading fails
+     */
+    private PortfolioTotals recomputeTotals() throws IOException {
+        return aggregate(new ParallelAggregator());
+    }
+
+    /**
+     * Applies a change just made to the loaded portfolio to its running totals, if they have been computed.
+     * Nothing is written: the totals are stored when the portfolio is next compacted.
+     * @param removed Asset removed or replaced, or null
+     * @param added Asset added or the replacement, or null
+     */
+    private void track(Asset removed, Asset added) {
+        if (index.totals != null) {
+            index.totals.apply(removed, added);
+        }
+    }
+
+    /**
+     * Loads all assets of the user.
+     * @return List of all saved assets
+     * @throws IOException If reading fails
+     */
+    public List<Asset> loadAll() throws IOException {
+        return locked(READS, () -> new ArrayList<>(index().values()));
+    }
+
+    /**
+     * Streams the live assets in portfolio order.
+     * The index is used, and loaded if the portfolio fits the cache, so repeated reports are served from memory.
+     * Otherwise the files are read without materializing them: memory is bounded by the
+     * number of IDs touched by the text log since the last compaction, plus a hash per text record while
+     * looking for IDs added more than once, not by the portfolio size.
+     * The portfolio stays locked while it is streamed.
+     * @param visitor Receiver of the assets
+     * @throws IOException If reading fails or the visitor fails
+     */
+    public void forEach(AssetVisitor visitor) throws IOException {
+        locked(READS, () -> {
+            long[] stamp = stamp();
+            PortfolioCache.Entry live = current(stamp);
+            if (live == null && cache.admits(stamp[0] + (snapshotFile != null ? stamp[2] : 0))) {
+                live = load(stamp);
+            }
+            if (live != null) {
+                for (Asset a : live.assets.values()) {
+                    visitor.visit(a);
+                }
+                return null;
+            }
+            Map<String, LiveRecord> edited = resolveEditedIds();
+            scan(new RecordHandler() {
+                public void put(int position, AssetRecord record) throws IOException {
+                    String id = record.id();
+                    if (!edited.containsKey(id)) {
+                        visitor.visit(record.toAsset());
+                        return;
+                    }
+                    LiveRecord live = edited.get(id);
+                    if (live != null && live.position == position) {
+                        visitor.visit(live.asset);
+                    }
+                }
+
+                public void remove(int position, String id) {
+                }
+            });
+            return null;
+        });
+    }
+
+    /**
+     * Final state of an asset touched by the text log.
+     */
+    private static class LiveRecord {
+        private final int position;
+        private Asset asset;
+
+        /**
+         * @param position Record whose place the asset occupies in portfolio order
+         * @param asset Latest version of the asset
+         */
+        LiveRecord(int position, Asset asset) {
+            this.position = position;
+            this.asset = asset;
+        }
+    }
+
+    /**
+     * Finds the IDs that need replaying before records can be streamed: those named by update or
+     * tombstone records, those added by more than one line, as files written before adds were checked
+     * for duplicates may hold, and, over a binary snapshot, every ID in the text log. Then replays just those IDs.
+     * @return For each such ID, its final state, or null if it ends up removed
+     * @throws IOException If reading fails
+     */
+    private Map<String, LiveRecord> resolveEditedIds() throws IOException {
+        Map<String, LiveRecord> edited = new HashMap<>();
+        if (new File(FILE_NAME).exists()) {
+            try (FileChannel channel = FileChannel.open(Paths.get(FILE_NAME), StandardOpenOption.READ)) {
+                MappedRecordReader record = new MappedRecordReader(channel, 0, channel.size(), false);
+                long[] addedIds = new long[64];
+                int adds = 0;
+                while (record.next()) {
+                    if (record.startsWith(DELETE_PREFIX) || record.startsWith(UPDATE_PREFIX)) {
+                        record.split(3);
+                        edited.put(record.field(1), null);
+                    } else if (snapshotFile != null && record.split(2) == 2) {
+                        edited.put(record.field(0), null);
+                    } else if (snapshotFile == null && record.split(4) == 4) {
+                        if (adds == addedIds.length) {
+                            addedIds = Arrays.copyOf(addedIds, adds * 2);
+                        }
+                        addedIds[adds++] = record.fieldHash(0);
+                    }
+                }
+                long[] repeated = repeatedHashes(addedIds, adds);
+                if (repeated.length > 0) {
+                    record = new MappedRecordReader(channel, 0, channel.size(), false);
+                    while (record.next()) {
+                        if (!record.startsWith(DELETE_PREFIX) && !record.startsWith(UPDATE_PREFIX) && record.split(4) == 4
+                                && Arrays.binarySearch(repeated, record.fieldHash(0)) >= 0) {
+                            edited.put(record.field(0), null);
+                        }
+                    }
+                }
+            }
+        }
+        if (edited.isEmpty()) {
+            return edited;
+        }
+        scan(new RecordHandler() {
+            public void put(int position, AssetRecord record) {
+                String id = record.id();
+                if (!edited.containsKey(id)) {
+                    return;
+                }
+                LiveRecord live = edited.get(id);
+                if (live == null) {
+                    edited.put(id, new LiveRecord(position, record.toAsset()));
+                } else {
+                    live.asset = record.toAsset();
+                }
+            }
+
+            public void remove(int position, String id) {
+                edited.put(id, null);
+            }
+        });
+        return edited;
+    }
+
+    /**
+     * @param hashes ID hashes, sorted in place
+     * @param count Number of hashes in use
+     * @return The hashes that occur more than once, sorted; a hash collision only costs a replay
+     */
+    private static long[] repeatedHashes(long[] hashes, int count) {
+        Arrays.parallelSort(hashes, 0, count);
+        long[] repeated = new long[0];
+        int found = 0;
+        for (int i = 1; i < count; i++) {
+            if (hashes[i] == hashes[i - 1] && (found == 0 || repeated[found - 1] != hashes[i])) {
+                if (found == repeated.length) {
+                    repeated = Arrays.copyOf(repeated, Math.max(8, found * 2));
+                }
+                repeated[found++] = hashes[i];
+            }
+        }
+        return Arrays.copyOf(repeated, found);
+    }
+
+    /**
+     * Returns the ID index, from the cache if possible, otherwise replaying the files into it.
+     * @return Live assets keyed by ID, in insertion order
+     * @throws IOException If reading fails
+     */
+    private Map<String, Asset> index() throws IOException {
+        long[] stamp = stamp();
+        return (current(stamp) != null ? index : load(stamp)).assets;
+    }
+
+    /**
+     * Replays the files into a new index and offers it to the cache.
+     * @param stamp Length and modification time of the files, taken before reading them
+     * @return The loaded index
+     * @throws IOException If reading fails
+     */
+    private PortfolioCache.Entry load(long[] stamp) throws IOException {
+        long start = System.nanoTime();
+        Map<String, Asset> live = new LinkedHashMap<>();
+        int records = scan(new RecordHandler() {
+            public void put(int position, AssetRecord record) {
+                live.put(record.id(), record.toAsset());
+            }
+
+            public void remove(int position, String id) {
+                live.remove(id);
+            }
+        });
+        index = new PortfolioCache.Entry(live, stamp, records);
+        cache.put(cacheKey, index);
+        LOADS.recordSince(start);
+        return index;
+    }
+
+    /**
+     * Finds a loaded index that matches the files: the cached one, or else the one this repository used last.
+     * Indexes built before another repository or process changed the files are dropped.
+     * @param stamp Current length and modification time of the files
+     * @return The index, or null if none is loaded and current
+     */
+    private PortfolioCache.Entry current(long[] stamp) {
+        PortfolioCache.Entry cached = cache.get(cacheKey, stamp);
+        if (cached != null) {
+            index = cached;
+        } else if (index != null && !Arrays.equals(index.stamp, stamp)) {
+            index = null;
+        }
+        return index;
+    }
+
+    /**
+     * @return Length and modification time of the text log and the binary snapshot
+     */
+    private long[] stamp() {
+        File log = new File(FILE_NAME);
+        File snapshot = new File(snapshotFile != null ? snapshotFile : FILE_NAME);
+        return new long[] {log.length(), log.lastModified(), snapshot.length(), snapshot.lastModified()};
+    }
+
+    /**
+     * @return History of the portfolio's changes, or null if history is disabled
+     */
+    public PortfolioHistory history() {
+        return history;
+    }
+
+    /**
+     * Writes to the history after a change reached the portfolio, under the portfolio's lock.
+     * The change stands even if the history cannot be written; the failure is counted in {@code history.errors}
+     * and the next checkpoint brings the history back in line.
+     * @param write Write to make, given the current time
+     */
+    private void recordHistory(HistoryWrite write) {
+        if (history == null) {
+            return;
+        }
+        try {
+            write.run(System.currentTimeMillis());
+        } catch (IOException | RuntimeException e) {
+            HISTORY_ERRORS.recordError(e);
+        }
+    }
+
+    /**
+     * A write to the portfolio's history.
+     */
+    private interface HistoryWrite {
+        void run(long time) throws IOException;
+    }
+
+    /**
+     * Runs an action holding this portfolio's lock stripe and its lock file.
+     * @param action Action to run
+     * @return The action's result
+     * @throws IOException If locking fails or the action fails
+     */
+    private <T> T locked(IOAction<T> action) throws IOException {
+        return PORTFOLIO_LOCKS.withLock(lockFile.toString(), () -> FileLocks.exclusive(lockFile, action));
+    }
+
+    /**
+     * Runs an action holding the portfolio's locks and records how long the caller waited for it, locks included.
+     * @param timer Histogram receiving the time taken
+     * @param action Action to run
+     * @return The action's result
+     * @throws IOException If locking fails or the action fails
+     */
+    private <T> T locked(Metrics.Histogram timer, IOAction<T> action) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return locked(action);
+        } finally {
+            timer.recordSince(start);
+        }
+    }
+
+    /**
+     * Loads the portfolio into a column-oriented store for aggregation.
+     * If no index is loaded the text log is replayed straight into the columns,
+     * without creating an {@link Asset} per record.
+     * @return Columnar copy of the live assets
+     * @throws IOException If reading fails
+     */
+    public ColumnarPortfolio loadColumnar() throws IOException {
+        return locked(READS, () -> {
+            ColumnarPortfolio.Builder builder = new ColumnarPortfolio.Builder();
+            if (current(stamp()) != null) {
+                for (Asset a : index.assets.values()) {
+                    builder.put(a.getId(), a.getName(), a.getValueMinor(), a.getType());
+                }
+                return builder.build();
+            }
+            scan(new RecordHandler() {
+                public void put(int position, AssetRecord record) {
+                    record.putInto(builder);
+                }
+
+                public void remove(int position, String id) {
+                    builder.remove(id);
+                }
+            });
+            return builder.build();
+        });
+    }
+
+    /**
+     * Sums the portfolio and its per-type subtotals in parallel. Only reads: the files are never compacted here.
+     * A loaded index or a binary snapshot is aggregated in memory; otherwise the text file is split
+     * across the pool, see {@link ParallelAggregator#aggregateFile}.
+     * @param aggregator Aggregator to run
+     * @return Totals of the live assets
+     * @throws IOException If reading fails
+     */
+    public PortfolioTotals aggregate(ParallelAggregator aggregator) throws IOException {
+        return locked(() -> {
+            if (current(stamp()) != null || snapshotFile != null) {
+                return aggregator.aggregate(loadColumnar());
+            }
+            return aggregator.aggregateFile(Paths.get(FILE_NAME));
+        });
+    }
+
+    /**
+     * An add or update record met while scanning; only valid during the handler call.
+     */
+    private interface AssetRecord {
+        String id();
+
+        Asset toAsset();
+
+        void putInto(ColumnarPortfolio.Builder builder);
+    }
+
+    /**
+     * Receives the portfolio's records in order: binary snapshot first (if any), then the text log.
+     */
+    private interface RecordHandler {
+        /**
+         * @param position 1-based position of the record across both files
+         * @param record The add or update record
+         */
+        void put(int position, AssetRecord record) throws IOException;
+
+        /**
+         * @param position 1-based position of the record across both files
+         * @param id ID named by the tombstone
+         */
+        void remove(int position, String id) throws IOException;
+    }
+
+    /**
+     * Add or update line of the text log, decoded from the mapped bytes on demand.
+     */
+    private static class TextRecord implements AssetRecord {
+        private final MappedRecordReader record;
+        private int first;
+        private String id;
+
+        TextRecord(MappedRecordReader record) {
+            this.record = record;
+        }
+
+        /**
+         * Points this view at the reader's current line.
+         * @param first Field index of the asset ID
+         */
+        void reset(int first) {
+            this.first = first;
+            this.id = null;
+        }
+
+        public String id() {
+            if (id == null) {
+                id = record.field(first);
+            }
+            return id;
+        }
+
+        /**
+         * The value is parsed from the mapped bytes; its text is only decoded when it is not a valid amount.
+         */
+        public Asset toAsset() {
+            long value = record.minorField(first + 2);
+            if (value == Money.INVALID) {
+                return new Asset(id(), record.field(first + 1), record.field(first + 2), record.field(first + 3));
+            }
+            return new Asset(id(), record.field(first + 1), value, record.field(first + 3));
+        }
+
+        public void putInto(ColumnarPortfolio.Builder builder) {
+            builder.put(id(), record.field(first + 1), record.minorField(first + 2), record.field(first + 3));
+        }
+    }
+
+    /**
+     * Record of the binary snapshot, already decoded.
+     */
+    private static class SnapshotRecord implements AssetRecord {
+        private final Asset asset;
+
+        SnapshotRecord(Asset asset) {
+            this.asset = asset;
+        }
+
+        public String id() {
+            return asset.getId();
+        }
+
+        public Asset toAsset() {
+            return asset;
+        }
+
+        public void putInto(ColumnarPortfolio.Builder builder) {
+            builder.put(asset.getId(), asset.getName(), asset.getValueMinor(), asset.getType());
+        }
+    }
+
+    /**
+     * Reads the portfolio's files front to back, passing adds and updates as puts and tombstones as removes.
+     * Missing files are empty. Text lines with too few fields are skipped and counted in {@code portfolio.parseErrors}.
+     * A last line without a newline was torn by a crash while it was being appended, and is ignored.
+     * @param handler Receiver of the records
+     * @return Number of records read
+     * @throws IOException If reading fails or the handler fails
+     */
+    private int scan(RecordHandler handler) throws IOException {
+        int[] position = {0};
+        if (snapshotFile != null && new File(snapshotFile).exists()) {
+            BinaryPortfolioFile.read(Paths.get(snapshotFile), asset -> handler.put(++position[0], new SnapshotRecord(asset)));
+            BYTES_PARSED.add(new File(snapshotFile).length());
+        }
+        if (!new File(FILE_NAME).exists()) {
+            return position[0];
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(FILE_NAME), StandardOpenOption.READ)) {
+            MappedRecordReader record = new MappedRecordReader(channel, 0, channel.size(), false);
+            TextRecord text = new TextRecord(record);
+            while (record.next()) {
+                position[0]++;
+                if (record.startsWith(DELETE_PREFIX)) {
+                    record.split(2);
+                    handler.remove(position[0], record.field(1));
+                    continue;
+                }
+                int first = record.startsWith(UPDATE_PREFIX) ? 1 : 0;
+                if (record.split(first + 4) == first + 4) {
+                    text.reset(first);
+                    handler.put(position[0], text);
+                } else {
+                    PARSE_ERRORS.increment();
+                }
+            }
+            BYTES_PARSED.add(record.position());
+        }
+        return position[0];
+    }
+
+    /**
+     * Overwrites the file with updated asset list.
+     * The list is written to a temporary file which then atomically replaces the old one,
+     * so a crash leaves either the old or the new portfolio on disk.
+     * @param investments List of updated assets
+     * @throws IOException If writing fails
+     */
+    public void saveAll(List<Asset> investments) throws IOException {
+        locked(() -> {
+            rewrite(AssetSource.of(investments));
+            Map<String, Asset> live = new LinkedHashMap<>();
+            for (Asset a : investments) {
+                live.put(a.getId(), a);
+            }
+            index = new PortfolioCache.Entry(live, stamp(), investments.size());
+            cache.put(cacheKey, index);
+            recordHistory(time -> history.checkpoint(time, AssetSource.of(live.values())));
+            return null;
+        });
+    }
+
+    /**
+     * Overwrites the file with assets streamed from a source, without holding them in memory.
+     * @param investments Source of the new portfolio
+     * @throws IOException If reading the source or writing fails
+     */
+    public void saveAll(AssetSource investments) throws IOException {
+        locked(() -> {
+            rewrite(investments);
+            index = null;
+            cache.invalidate(cacheKey);
+            recordHistory(time -> history.checkpoint(time, this));
+            return null;
+        });
+    }
+
+    /**
+     * Rewrites the file with only its live assets, dropping superseded and tombstone records.
+     * The live assets are streamed, so compaction does not need the index in memory.
+     * Running totals that are current are stored alongside, stamped with the rewritten files.
+     * @throws IOException If reading or writing fails
+     */
+    public void compact() throws IOException {
+        locked(() -> {
+            long[] before = stamp();
+            PortfolioCache.Entry live = current(before);
+            RunningTotals running = live != null && live.totals != null ? live.totals : storedTotals(before);
+            int records = rewrite(this);
+            if (live != null) {
+                live.stamp = stamp();
+                live.logRecords = records;
+            }
+            if (running != null) {
+                running.stamp = stamp();
+                running.write(totalsFile);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Writes assets to a temporary file which then atomically replaces the portfolio file.
+     * In binary mode the assets become the new snapshot and the text log is emptied afterwards;
+     * a crash in between only leaves log records that replay to the same state.
+     * The journal is checkpointed first, so a crash can leave the old portfolio or the new one, but never
+     * journal records replayed over the new one.
+     * @param assets Assets to write
+     * @return Number of assets written
+     * @throws IOException If writing fails
+     */
+    private int rewrite(AssetSource assets) throws IOException {
+        REWRITES.increment();
+        checkpoint();
+        if (snapshotFile != null) {
+            int written = BinaryPortfolioFile.write(Paths.get(snapshotFile), assets);
+            Files.deleteIfExists(Paths.get(FILE_NAME));
+            return written;
+        }
+        Path target = Paths.get(FILE_NAME);
+        Path temp = Paths.get(FILE_NAME + ".tmp");
+        int[] written = {0};
+        try (FileOutputStream out = new FileOutputStream(temp.toFile());
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out))) {
+            assets.forEach(a -> {
+                writer.write(a.toFileString());
+                writer.newLine();
+                written[0]++;
+            });
+            writer.flush();
+            out.getFD().sync();
+        }
+        moveAtomically(temp, target);
+        syncDirectory(target.toAbsolutePath().getParent());
+        return written[0];
+    }
+
+    /**
+     * Replaces a file with another in one step where the file system allows it.
+     * @param source File to move
+     * @param target File to replace
+     * @throws IOException If the move fails
+     */
+    static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Makes a directory's entries durable, such as a file just renamed into it.
+     * Platforms that cannot sync a directory are left to make the rename durable on their own.
+     * @param dir Directory to sync
+     */
+    static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not every platform can open or sync a directory
+        }
+    }
+
+    /**
+     * Syncs a portfolio's text log under the portfolio's locks, so no write is halfway through it.
+     * Used by {@link WriteAheadJournal} checkpoints.
+     * @param textFile Text log of the portfolio
+     * @throws IOException If locking or syncing fails
+     */
+    static void syncLog(Path textFile) throws IOException {
+        Path lock = FileLocks.lockFileFor(textFile.toString());
+        PORTFOLIO_LOCKS.withLock(lock.toString(), () -> FileLocks.exclusive(lock, () -> {
+            try (FileChannel channel = FileChannel.open(textFile, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            } catch (NoSuchFileException e) {
+                return null; // compacted into a binary snapshot, which is synced when written
+            }
+            syncDirectory(textFile.getParent());
+            return null;
+        }));
+    }
+
+    /**
+     * Cuts off a last line that has no newline: the tail of a record whose append was torn by a crash.
+     * @param channel Text log, open for reading and writing
+     * @return Length of the log afterwards, where the next record goes
+     * @throws IOException If reading or truncating fails
+     */
+    static long trimTornLine(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer last = ByteBuffer.allocate(4096);
+        long end = size;
+        while (end > 0) {
+            last.clear().limit((int) Math.min(last.capacity(), end));
+            channel.read(last, end - last.limit());
+            int newline = last.limit() - 1;
+            while (newline >= 0 && last.get(newline) != '\n') {
+                newline--;
+            }
+            if (newline >= 0) {
+                end -= last.limit() - 1 - newline;
+                break;
+            }
+            end -= last.limit();
+        }
+        if (end < size) {
+            channel.truncate(end);
+        }
+        return end;
+    }
+
+    /**
+     * Syncs the text log and journals that its records need no replay, before the portfolio is
+     * written other than record by record through the journal.
+     * @throws IOException If syncing or journaling fails
+     */
+    private void checkpoint() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        if (new File(FILE_NAME).exists()) {
+            try (FileChannel channel = FileChannel.open(Paths.get(FILE_NAME), StandardOpenOption.WRITE)) {
+                channel.force(false);
+            }
+        }
+        journal.reset(journalName);
+    }
+
+    /**
+     * Compacts the file once superseded records outnumber live ones.
+     * @throws IOException If compaction fails
+     */
+    private void compactIfNeeded() throws IOException {
+        if (index.logRecords >= COMPACTION_MIN_RECORDS && index.logRecords > 2 * index.assets.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Appends one record line to the file, once it is durable in the journal, or else syncing the file.
+     * A line torn by an earlier crash is cut off first, so the record does not run on from it.
+     * @param record Record to append
+     * @throws IOException If writing fails
+     */
+    private void append(String record) throws IOException {
+        ByteBuffer line = Charset.defaultCharset().encode(record + System.lineSeparator());
+        try (FileChannel channel = FileChannel.open(Paths.get(FILE_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            boolean created = journal == null && channel.size() == 0;
+            long end = trimTornLine(channel);
+            if (journal != null) {
+                journal.append(journalName, end, record);
+            }
+            channel.position(end);
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            if (journal == null) {
+                channel.force(false);
+                if (created) {
+                    syncDirectory(Paths.get(FILE_NAME).toAbsolutePath().getParent());
+                }
+            }
+        }
+        index.logRecords++;
+        index.stamp = stamp();
+    }
+}
+
+/**
+ * Write-ahead journal that makes asset writes durable without syncing every portfolio file.
+ * A write appends its record to the journal and waits until the journal is synced; only then is the record
+ * appended to the portfolio's text log, which is left for the operating system to flush. Records appended
+ * while a sync is in progress go out together in the next one (group commit), so concurrent writes to any
+ * portfolios share a single {@code fsync}.
+ * <pre>
+ * record   payload length (int) | CRC32 of the payload (int) | payload
+ * APPEND   kind (byte) | text log path (unsigned short length, UTF-8) | offset in the text log (long) | log line (UTF-8)
+ * RESET    kind (byte) | text log path (unsigned short length, UTF-8)
+ * </pre>
+ * The journal is a series of segment files {@code <n>.wal} in its directory. When a segment grows past
+ * {@code -Dinvestmate.journal.segmentBytes} (8 MB by default) writing moves on to a new one, and a background
+ * checkpoint syncs the portfolios the old segment touched and deletes it. A {@link #RESET} record says that a
+ * portfolio's files were synced or replaced as a whole, so its earlier records must not be replayed.
+ * <p>
+ * Opening a journal replays the records left by a crash into their portfolios, up to the first torn or corrupt
+ * record; nothing after it was ever acknowledged. Each record carries the offset its line was written at, so
+ * replay cuts off a torn last line and appends only the records that start at or past the end of the text log;
+ * lines that had already reached it are not appended twice. Only one process can own a journal
+ * directory; the others, or all processes with {@code -Dinvestmate.journal=false}, get no shared journal and
+ * sync the portfolio file on every write instead.
+ */
+final class WriteAheadJournal implements Closeable {
+    static final byte APPEND = 1;
+    static final byte RESET = 2;
+    static final String DIRECTORY = "journal";
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final Metrics.Histogram SYNCS = Metrics.SHARED.histogram("journal.sync");
+    private static final Metrics.Histogram BATCH_BYTES = Metrics.SHARED.histogram("journal.batchBytes");
+    private static final Metrics.Counter CHECKPOINTS = Metrics.SHARED.counter("journal.checkpoints");
+    private static final Metrics.Counter CHECKPOINT_ERRORS = Metrics.SHARED.counter("journal.checkpoint.errors");
+    private static final Metrics.Counter REPLAYED = Metrics.SHARED.counter("journal.replayed");
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final FileChannel ownerLock;
+    private final Thread flusher;
+    private final ExecutorService checkpoints;
+    private final CRC32 crc = new CRC32();
+
+    // guarded by this
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer spare = ByteBuffer.allocate(1 << 16);
+    private Set<String> pendingFiles = new HashSet<>();
+    private long appended;
+    private long durable;
+    private long syncs;
+    private IOException failure;
+    private boolean closed;
+    private boolean stalled;
+
+    // flusher thread only
+    private FileChannel segment;
+    private long segmentNumber;
+    private long segmentSize;
+    private Set<String> segmentFiles = new HashSet<>();
+
+    /**
+     * Opens a journal, replaying what a previous process left in it.
+     * @param directory Journal directory, created if missing
+     * @param segmentBytes Size after which writing moves on to a new segment
+     * @throws IOException If another process owns the journal, or replay or opening the first segment fails
+     */
+    private WriteAheadJournal(Path directory, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        FileChannel lock = FileChannel.open(directory.resolve("journal.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            if (lock.tryLock() == null) {
+                throw new IOException("Journal " + directory + " is in use by another process");
+            }
+            List<Path> left = segments(directory);
+            replay(left);
+            for (Path file : left) {
+                Files.delete(file);
+            }
+            segmentNumber = left.isEmpty() ? 0 : number(left.get(left.size() - 1));
+            segment = newSegment(++segmentNumber);
+        } catch (OverlappingFileLockException e) {
+            lock.close();
+            throw new IOException("Journal " + directory + " is already open", e);
+        } catch (IOException | RuntimeException e) {
+            lock.close();
+            throw e;
+        }
+        this.ownerLock = lock;
+        this.checkpoints = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "journal-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Opens a journal, first replaying into their portfolios the records a crashed process left in it.
+     * @param directory Journal directory, created if missing
+     * @param segmentBytes Size after which writing moves on to a new segment
+     * @return The journal, owned by this process until closed
+     * @throws IOException If another process owns the journal, or replay fails
+     */
+    static WriteAheadJournal open(Path directory, long segmentBytes) throws IOException {
+        if (segmentBytes < 1) {
+            throw new IllegalArgumentException("segmentBytes must be positive: " + segmentBytes);
+        }
+        return new WriteAheadJournal(directory, segmentBytes);
+    }
+
+    /**
+     * The journal used by {@link InvestmentRepository} unless another is given: {@value #DIRECTORY} in the
+     * {@link StorageLayout#SHARED} root, opened when the first repository is created, so a crashed run is
+     * replayed before any portfolio is read, and checkpointed when the JVM shuts down.
+     * @return The shared journal, or null if journaling is disabled or another process owns the journal
+     */
+    static WriteAheadJournal shared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * Holds the shared journal so it is only opened, and replayed, when first needed.
+     */
+    private static final class Shared {
+        static final WriteAheadJournal INSTANCE = create();
+
+        private static WriteAheadJournal create() {
+            if (!Boolean.parseBoolean(System.getProperty("investmate.journal", "true"))) {
+                return null;
+            }
+            try {
+                WriteAheadJournal journal = open(StorageLayout.SHARED.root().resolve(DIRECTORY),
+                        Long.getLong("investmate.journal.segmentBytes", 8L << 20));
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        journal.close();
+                    } catch (IOException e) {
+                        System.out.println("Journal not checkpointed, it will be replayed on next start: " + e.getMessage());
+                    }
+                }, "journal-shutdown"));
+                return journal;
+            } catch (IOException e) {
+                System.out.println("Journal unavailable, every portfolio write will sync its file: " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Journals a record for a portfolio's text log and waits until it is durable.
+     * @param textFile Absolute path of the text log
+     * @param offset Offset in the text log the line is about to be written at
+     * @param line Record line, without a line separator
+     * @throws IOException If the journal cannot be written or was closed
+     */
+    public void append(String textFile, long offset, String line) throws IOException {
+        commit(enqueue(APPEND, textFile, offset, line));
+    }
+
+    /**
+     * Journals that a portfolio's files are durable as they are, so its earlier records are not replayed,
+     * and waits until that is durable.
+     * @param textFile Absolute path of the text log
+     * @throws IOException If the journal cannot be written or was closed
+     */
+    public void reset(String textFile) throws IOException {
+        commit(enqueue(RESET, textFile, -1, ""));
+    }
+
+    /**
+     * @return Number of syncs of the journal so far
+     */
+    public synchronized long syncs() {
+        return syncs;
+    }
+
+    /**
+     * Adds a record to the next batch.
+     * @param offset Offset in the text log, written for {@link #APPEND} records only
+     * @return Sequence number of the record
+     */
+    private synchronized long enqueue(byte kind, String textFile, long offset, String line) throws IOException {
+        if (failure != null) {
+            throw new IOException("Journal failed", failure);
+        }
+        if (closed) {
+            throw new IOException("Journal is closed");
+        }
+        byte[] file = textFile.getBytes(StandardCharsets.UTF_8);
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        if (file.length > 0xFFFF) {
+            throw new IllegalArgumentException("Path too long for the journal: " + textFile);
+        }
+        int length = 1 + 2 + file.length + (kind == APPEND ? 8 : 0) + text.length;
+        if (pending.remaining() < RECORD_HEADER_BYTES + length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + RECORD_HEADER_BYTES + length));
+            pending.flip();
+            pending = grown.put(pending);
+        }
+        int start = pending.position();
+        pending.putInt(length).putInt(0).put(kind).putShort((short) file.length).put(file);
+        if (kind == APPEND) {
+            pending.putLong(offset);
+        }
+        pending.put(text);
+        crc.reset();
+        crc.update(pending.array(), start + RECORD_HEADER_BYTES, length);
+        pending.putInt(start + 4, (int) crc.getValue());
+        pendingFiles.add(textFile);
+        notifyAll();
+        return ++appended;
+    }
+
+    /**
+     * Waits until a record is durable.
+     * @param sequence Sequence number of the record
+     * @throws IOException If syncing the journal failed, or the thread was interrupted while waiting
+     */
+    private synchronized void commit(long sequence) throws IOException {
+        while (durable < sequence) {
+            if (failure != null) {
+                throw new IOException("Journal failed", failure);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the journal");
+            }
+        }
+    }
+
+    /**
+     * Writes and syncs batches on the flusher thread until the journal is closed or fails. Syncing on a thread
+     * of its own also keeps an interrupted writer from closing the segment channel.
+     */
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer batch;
+            Set<String> files;
+            long upTo;
+            synchronized (this) {
+                while (pending.position() == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (pending.position() == 0) {
+                    return;
+                }
+                batch = pending;
+                pending = spare;
+                files = pendingFiles;
+                pendingFiles = new HashSet<>();
+                upTo = appended;
+            }
+            try {
+                long start = System.nanoTime();
+                batch.flip();
+                BATCH_BYTES.record(batch.remaining());
+                while (batch.hasRemaining()) {
+                    segmentSize += segment.write(batch);
+                }
+                segment.force(false);
+                SYNCS.recordSince(start);
+                segmentFiles.addAll(files);
+                if (segmentSize >= segmentBytes) {
+                    rotate();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                batch.clear();
+                spare = batch;
+                durable = upTo;
+                syncs++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Moves writing on to a new segment and hands the full one to the checkpoint thread.
+     */
+    private void rotate() throws IOException {
+        FileChannel full = segment;
+        Path fullFile = segmentFile(segmentNumber);
+        Set<String> touched = segmentFiles;
+        segment = newSegment(++segmentNumber);
+        segmentSize = 0;
+        segmentFiles = new HashSet<>();
+        full.close();
+        checkpoints.execute(() -> checkpoint(fullFile, touched));
+    }
+
+    /**
+     * Syncs the portfolios a full segment touched, then deletes it. Every writer holds its portfolio's lock
+     * from journaling a record until it reaches the text log, so syncing under that lock covers the record.
+     * If a checkpoint fails, no later segment is deleted either, so replay still sees every record after
+     * the last good checkpoint.
+     */
+    private void checkpoint(Path file, Set<String> touched) {
+        synchronized (this) {
+            if (stalled) {
+                return;
+            }
+        }
+        try {
+            for (String textFile : touched) {
+                InvestmentRepository.syncLog(Paths.get(textFile));
+            }
+            Files.delete(file);
+            InvestmentRepository.syncDirectory(directory);
+            CHECKPOINTS.increment();
+        } catch (IOException e) {
+            CHECKPOINT_ERRORS.recordError(e);
+            synchronized (this) {
+                stalled = true;
+            }
+            System.out.println("Journal checkpoint failed, segments are kept for replay: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the journal once pending records are durable, then checkpoints it, leaving it empty if nothing failed.
+     * @throws IOException If the last checkpoint fails or the files cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed && !flusher.isAlive()) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+            checkpoints.shutdown();
+            checkpoints.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted closing the journal");
+        }
+        boolean clean;
+        synchronized (this) {
+            clean = failure == null && !stalled;
+        }
+        try {
+            segment.close();
+            if (clean) {
+                for (String textFile : segmentFiles) {
+                    InvestmentRepository.syncLog(Paths.get(textFile));
+                }
+                Files.delete(segmentFile(segmentNumber));
+            }
+        } finally {
+            ownerLock.close();
+        }
+    }
+
+    private FileChannel newSegment(long number) throws IOException {
+        FileChannel channel = FileChannel.open(segmentFile(number), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        InvestmentRepository.syncDirectory(directory);
+        return channel;
+    }
+
+    private Path segmentFile(long number) {
+        return directory.resolve(String.format("%016d%s", number, SEGMENT_SUFFIX));
+    }
+
+    private static long number(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * @return Segment files in the directory, oldest first
+     */
+    private static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                if (file.getFileName().toString().matches("\\d+\\" + SEGMENT_SUFFIX)) {
+                    segments.add(file);
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(WriteAheadJournal::number));
+        return segments;
+    }
+
+    /**
+     * Replays segments into their portfolios' text logs and syncs them.
+     */
+    private static void replay(List<Path> segments) throws IOException {
+        Map<String, Tail> records = new LinkedHashMap<>();
+        CRC32 crc = new CRC32();
+        read:
+        for (Path file : segments) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+            while (data.remaining() >= RECORD_HEADER_BYTES) {
+                int length = data.getInt();
+                int checksum = data.getInt();
+                if (length < 3 || length > data.remaining()) {
+                    break read;
+                }
+                crc.reset();
+                crc.update(data.array(), data.position(), length);
+                if ((int) crc.getValue() != checksum) {
+                    break read;
+                }
+                int end = data.position() + length;
+                byte kind = data.get();
+                byte[] path = new byte[data.getShort() & 0xFFFF];
+                if (path.length + (kind == RESET ? 0 : 8) > end - data.position()) {
+                    break read;
+                }
+                data.get(path);
+                String textFile = new String(path, StandardCharsets.UTF_8);
+                if (kind == RESET) {
+                    records.put(textFile, new Tail());
+                    data.position(end);
+                    continue;
+                }
+                long offset = data.getLong();
+                byte[] line = new byte[end - data.position()];
+                data.get(line);
+                Tail tail = records.computeIfAbsent(textFile, f -> new Tail());
+                tail.offsets.add(offset);
+                tail.lines.add(new String(line, StandardCharsets.UTF_8));
+            }
+            if (data.hasRemaining()) {
+                break;
+            }
+        }
+        int count = 0;
+        int present = 0;
+        int portfolios = 0;
+        for (Map.Entry<String, Tail> entry : records.entrySet()) {
+            if (!entry.getValue().lines.isEmpty()) {
+                int appended = appendToLog(Paths.get(entry.getKey()), entry.getValue());
+                count += appended;
+                present += entry.getValue().lines.size() - appended;
+                portfolios += appended > 0 ? 1 : 0;
+            }
+        }
+        if (count > 0) {
+            REPLAYED.add(count);
+            System.out.println("Replayed " + count + " journal records into " + portfolios + " portfolios"
+                    + (present > 0 ? ", " + present + " were already in their logs." : "."));
+        }
+    }
+
+    /**
+     * Appends replayed records to a text log, first cutting off a line torn by the crash, and syncs it.
+     * Records whose offset lies before the end of the log had already reached it and are skipped.
+     * @return Number of records appended
+     */
+    private static int appendToLog(Path textFile, Tail tail) throws IOException {
+        Files.createDirectories(textFile.toAbsolutePath().getParent());
+        int appended = 0;
+        try (FileChannel channel = FileChannel.open(textFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long end = InvestmentRepository.trimTornLine(channel);
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < tail.lines.size(); i++) {
+                long offset = tail.offsets.get(i);
+                if (offset < end) {
+                    continue;
+                }
+                text.append(tail.lines.get(i)).append(System.lineSeparator());
+                appended++;
+            }
+            ByteBuffer bytes = Charset.defaultCharset().encode(text.toString());
+            channel.position(end);
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        }
+        InvestmentRepository.syncDirectory(textFile.toAbsolutePath().getParent());
+        return appended;
+    }
+
+    /**
+     * Records of one portfolio since its last reset: the text log offset of each line and the lines themselves.
+     */
+    private static final class Tail {
+        final List<Long> offsets = new ArrayList<>();
+        final List<String> lines = new ArrayList<>();
+    }
+}
+
+/**
+ * Binary portfolio snapshot with a header, length-prefixed records and a sparse offset index.
+ * <pre>
+ * header  magic "IMPF" (int) | version (short) | index stride (short) | record count (int)
+ *         | length of the records section (long) | CRC32 of the record payloads (int)
+ * record  payload length (varint) | id | name | value in minor units (zig-zag varint) | type
+ *         | raw value text, only if the value is invalid
+ * index   absolute file offset (long) of every stride-th record
+ * </pre>
+ * Strings are a varint byte count followed by UTF-8 bytes, so names may hold commas.
+ * A single record is found by jumping to the nearest indexed offset and skipping at most
+ * {@code stride - 1} records by their length prefixes.
+ */
+final class BinaryPortfolioFile {
+    static final int MAGIC = 0x494D5046;
+    static final short VERSION = 1;
+    static final int HEADER_BYTES = 24;
+    static final int INDEX_STRIDE = 16;
+
+    private BinaryPortfolioFile() {}
+
+    /**
+     * Writes assets to a temporary file which then atomically replaces the snapshot.
+     * @param file Snapshot file
+     * @param assets Assets to write
+     * @return Number of records written
+     * @throws IOException If reading the assets or writing fails
+     */
+    public static int write(Path file, AssetSource assets) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        long[][] offsets = {new long[64]};
+        int[] count = {0};
+        long[] position = {HEADER_BYTES};
+        try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+            data.write(new byte[HEADER_BYTES]);
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+            ByteArrayOutputStream prefix = new ByteArrayOutputStream(5);
+            assets.forEach(asset -> {
+                payload.reset();
+                writeString(payload, asset.getId());
+                writeString(payload, asset.getName());
+                writeVarint(payload, (asset.getValueMinor() << 1) ^ (asset.getValueMinor() >> 63));
+                writeString(payload, asset.getType());
+                if (!asset.hasValidValue()) {
+                    writeString(payload, asset.getValue());
+                }
+                if (count[0] % INDEX_STRIDE == 0) {
+                    int slot = count[0] / INDEX_STRIDE;
+                    if (slot == offsets[0].length) {
+                        offsets[0] = Arrays.copyOf(offsets[0], slot * 2);
+                    }
+                    offsets[0][slot] = position[0];
+                }
+                count[0]++;
+                prefix.reset();
+                writeVarint(prefix, payload.size());
+                byte[] bytes = payload.toByteArray();
+                crc.update(bytes);
+                prefix.writeTo(data);
+                data.write(bytes);
+                position[0] += prefix.size() + bytes.length;
+            });
+            for (int i = 0; i < (count[0] + INDEX_STRIDE - 1) / INDEX_STRIDE; i++) {
+                data.writeLong(offsets[0][i]);
+            }
+            data.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short) INDEX_STRIDE).putInt(count[0])
+                    .putLong(position[0] - HEADER_BYTES).putInt((int) crc.getValue()).flip();
+            out.getChannel().write(header, 0);
+            out.getFD().sync();
+        }
+        InvestmentRepository.moveAtomically(temp, file);
+        InvestmentRepository.syncDirectory(file.toAbsolutePath().getParent());
+        return count[0];
+    }
+
+    /**
+     * Reads every record in order. The checksum covers all record payloads, so a corrupt
+     * file is reported once all records have been read.
+     * @param file Snapshot file
+     * @param visitor Receiver of the assets
+     * @throws IOException If reading fails, the file is not a snapshot, or the checksum does not match
+     */
+    public static void read(Path file, AssetVisitor visitor) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            byte[] headerBytes = in.readNBytes(HEADER_BYTES);
+            ByteBuffer header = readHeader(ByteBuffer.wrap(headerBytes), file);
+            int count = header.getInt(8);
+            int expectedCrc = header.getInt(20);
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[256];
+            for (int i = 0; i < count; i++) {
+                int length = (int) readVarint(in);
+                if (length > buffer.length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                if (in.readNBytes(buffer, 0, length) != length) {
+                    throw new EOFException("Truncated record " + i + " in " + file);
+                }
+                crc.update(buffer, 0, length);
+                visitor.visit(decode(ByteBuffer.wrap(buffer, 0, length)));
+            }
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IOException("Checksum mismatch in " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads a single record through the offset index, without reading the file up to it.
+     * @param file Snapshot file
+     * @param recordIndex 0-based record number
+     * @return The asset stored at that position
+     * @throws IOException If reading fails or the index is out of range
+     */
+    public static Asset readRecord(Path file, int recordIndex) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(readFully(channel, 0, HEADER_BYTES), file);
+            int stride = header.getShort(6);
+            int count = header.getInt(8);
+            if (recordIndex < 0 || recordIndex >= count) {
+                throw new IOException("Record " + recordIndex + " out of range 0.." + (count - 1) + " in " + file);
+            }
+            long indexOffset = HEADER_BYTES + header.getLong(12);
+            long offset = readFully(channel, indexOffset + 8L * (recordIndex / stride), 8).getLong();
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel.position(offset)), 4096);
+            for (int i = 0; i < recordIndex % stride; i++) {
+                long length = readVarint(in);
+                if (in.skip(length) != length) {
+                    throw new EOFException("Truncated record in " + file);
+                }
+            }
+            int length = (int) readVarint(in);
+            return decode(ByteBuffer.wrap(in.readNBytes(length)));
+        }
+    }
+
+    /**
+     * @param file Snapshot file
+     * @return Number of records in the snapshot
+     * @throws IOException If the header cannot be read
+     */
+    public static int recordCount(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readHeader(readFully(channel, 0, HEADER_BYTES), file).getInt(8);
+        }
+    }
+
+    /**
+     * @param file Snapshot file
+     * @return Source streaming the snapshot's records
+     */
+    public static AssetSource source(Path file) {
+        return visitor -> read(file, visitor);
+    }
+
+    private static ByteBuffer readHeader(ByteBuffer header, Path file) throws IOException {
+        if (header.limit() < HEADER_BYTES || header.getInt(0) != MAGIC) {
+            throw new IOException("Not a binary portfolio file: " + file);
+        }
+        if (header.getShort(4) != VERSION) {
+            throw new IOException("Unsupported binary portfolio version " + header.getShort(4) + " in " + file);
+        }
+        return header;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of binary portfolio file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static Asset decode(ByteBuffer record) {
+        String id = readString(record);
+        String name = readString(record);
+        long zigzag = readVarint(record);
+        long value = (zigzag >>> 1) ^ -(zigzag & 1);
+        String type = readString(record);
+        if (value == Money.INVALID) {
+            return new Asset(id, name, readString(record), type);
+        }
+        return new Asset(id, name, value, type);
+    }
+
+    static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = (int) readVarint(in);
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated binary portfolio file");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+    }
+}
+
+/**
+ * Command-line tool converting portfolios between the text log and the binary snapshot format.
+ * <pre>
+ * java -cp bin PortfolioFormatMigrator to-binary &lt;text file&gt; &lt;binary file&gt;
+ * java -cp bin PortfolioFormatMigrator to-text &lt;binary file&gt; &lt;text file&gt;
+ * java -cp bin PortfolioFormatMigrator user &lt;email&gt; text|binary
+ * </pre>
+ * The {@code user} form converts a user's portfolio in place, so that a repository opened
+ * in the target format sees exactly the same assets.
+ */
+class PortfolioFormatMigrator {
+
+    /**
+     * Entry point of the migration tool.
+     * @param args Command and its operands, see the class description
+     * @throws IOException If a file cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("to-binary")) {
+            int records = toBinary(Paths.get(args[1]), Paths.get(args[2]));
+            System.out.println("Wrote " + records + " records to " + args[2]);
+        } else if (args.length == 3 && args[0].equals("to-text")) {
+            toText(Paths.get(args[1]), Paths.get(args[2]));
+            System.out.println("Wrote " + args[2]);
+        } else if (args.length == 3 && args[0].equals("user")) {
+            migrateUser(args[1], StorageFormat.valueOf(args[2].toUpperCase(Locale.ROOT)));
+            System.out.println("Portfolio of " + args[1] + " is now stored as " + args[2]);
+        } else {
+            System.out.println("Usage: PortfolioFormatMigrator to-binary <text> <binary> | to-text <binary> <text>"
+                    + " | user <email> text|binary");
+        }
+    }
+
+    /**
+     * Converts a text portfolio file (log records included) into a binary snapshot.
+     * @param text Source text file
+     * @param binary Target binary file
+     * @return Number of records written
+     * @throws IOException If reading or writing fails
+     */
+    static int toBinary(Path text, Path binary) throws IOException {
+        return BinaryPortfolioFile.write(binary, new InvestmentRepository(text));
+    }
+
+    /**
+     * Converts a binary snapshot into a compacted text portfolio file.
+     * @param binary Source binary file
+     * @param text Target text file
+     * @throws IOException If reading or writing fails
+     */
+    static void toText(Path binary, Path text) throws IOException {
+        new InvestmentRepository(text).saveAll(BinaryPortfolioFile.source(binary));
+    }
+
+    /**
+     * Converts a user's portfolio in place.
+     * @param email User's email
+     * @param target Format to convert to
+     * @throws IOException If reading or writing fails
+     */
+    static void migrateUser(String email, StorageFormat target) throws IOException {
+        InvestmentRepository binary = new InvestmentRepository(email, StorageFormat.BINARY);
+        if (target == StorageFormat.BINARY) {
+            binary.compact();
+            return;
+        }
+        Path text = InvestmentRepository.portfolioFile(email);
+        new InvestmentRepository(text).saveAll(binary);
+        Files.deleteIfExists(InvestmentRepository.snapshotFile(text));
+    }
+}
+
+/**
+ * Where user data lives: {@code users.txt} in a storage root, and each portfolio's files in a bucket
+ * directory {@code <root>/portfolios/<xx>/<yy>/} chosen by hashing the portfolio's file name, so no
+ * directory holds more than a small share of the portfolios however many users there are.
+ * The root is {@code -Dinvestmate.storage.root} (the working directory by default) and the number of
+ * bucket levels, 256 buckets each, is {@code -Dinvestmate.storage.levels} (2 by default; 0 keeps the old
+ * flat layout). A portfolio still stored flat in the root is used where it is until
+ * {@link StorageRebalancer} moves it.
+ */
+final class StorageLayout {
+    static final StorageLayout SHARED = new StorageLayout(
+            Paths.get(System.getProperty("investmate.storage.root", ".")), Integer.getInteger("investmate.storage.levels", 2));
+
+    static final String PORTFOLIOS = "portfolios";
+    static final int MAX_LEVELS = 4;
+
+    private final Path root;
+    private final int levels;
+    private volatile Boolean flatPortfolios;
+
+    /**
+     * Constructs a layout.
+     * @param root Storage root
+     * @param levels Number of bucket directory levels, 0 to {@value #MAX_LEVELS}
+     */
+    public StorageLayout(Path root, int levels) {
+        if (levels < 0 || levels > MAX_LEVELS) {
+            throw new IllegalArgumentException("levels must be between 0 and " + MAX_LEVELS + ": " + levels);
+        }
+        this.root = root;
+        this.levels = levels;
+    }
+
+    /**
+     * @return Storage root
+     */
+    public Path root() {
+        return root;
+    }
+
+    /**
+     * @return Number of bucket directory levels
+     */
+    public int levels() {
+        return levels;
+    }
+
+    /**
+     * @return The users file
+     */
+    public Path usersFile() {
+        return root.resolve("users.txt");
+    }
+
+    /**
+     * Finds a user's portfolio text log. The bucket directory is created when the portfolio is first locked.
+     * @param userEmail The user's email
+     * @return Text log of the portfolio: in its bucket, or flat in the root if it has not been moved yet
+     */
+    public Path portfolioFile(String userEmail) {
+        String name = portfolioFileName(userEmail);
+        Path file = bucket(name).resolve(name);
+        if (levels > 0 && hasFlatPortfolios() && !Files.exists(file)) {
+            Path flat = root.resolve(name);
+            if (Files.exists(flat)) {
+                return flat;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Tells whether any portfolio is still stored flat in the root. The root is looked at once, so once
+     * everything has been moved, resolving a portfolio costs no file system calls.
+     * @return true if the root held a flat portfolio when first checked
+     */
+    private boolean hasFlatPortfolios() {
+        Boolean found = flatPortfolios;
+        if (found == null) {
+            try (DirectoryStream<Path> flat = Files.newDirectoryStream(root, "investments_*.txt")) {
+                found = flat.iterator().hasNext();
+            } catch (NoSuchFileException e) {
+                found = false;
+            } catch (IOException e) {
+                found = true;
+            }
+            flatPortfolios = found;
+        }
+        return found;
+    }
+
+    /**
+     * @param userEmail The user's email
+     * @return File name of the user's portfolio text log
+     */
+    static String portfolioFileName(String userEmail) {
+        return "investments_" + userEmail.replaceAll("@", "_at_") + ".txt";
+    }
+
+    /**
+     * Picks the directory for a portfolio: one byte of the CRC-32 of its text log's name per level.
+     * @param textFileName File name of the portfolio text log
+     * @return Directory holding the portfolio's files
+     */
+    Path bucket(String textFileName) {
+        return levels == 0 ? root : bucket(root.resolve(PORTFOLIOS), textFileName);
+    }
+
+    /**
+     * Picks a bucket directory for a name below another base directory, with this layout's number of levels.
+     * @param base Directory the buckets are created in
+     * @param name Name to hash
+     * @return Bucket directory for the name, or the base itself with no levels
+     */
+    Path bucket(Path base, String name) {
+        CRC32 crc = new CRC32();
+        crc.update(name.getBytes(StandardCharsets.UTF_8));
+        long hash = crc.getValue();
+        Path dir = base;
+        for (int level = 0; level < levels; level++) {
+            dir = dir.resolve(String.format("%02x", (hash >>> (8 * level)) & 0xff));
+        }
+        return dir;
+    }
+}
+
+/**
+ * Offline tool moving portfolio files to where the current {@link StorageLayout} wants them: flat files in
+ * the root into their buckets, or bucketed files into new buckets after the number of levels changed.
+ * A portfolio's log, binary snapshot, running totals and lock file move together. Run it while the
+ * application is stopped; the tool first replays whatever the application left in its journal.
+ * <pre>
+ * java -cp bin StorageRebalancer [root] [levels]
+ * </pre>
+ */
+class StorageRebalancer {
+    private static final Pattern PORTFOLIO_FILE = Pattern.compile("(investments_.+)\\.(txt|bin|totals|history|hidx)(\\.lock|\\.tmp)?");
+
+    /**
+     * Entry point of the rebalancing tool.
+     * @param args Storage root and number of levels, by default those of the running configuration
+     * @throws IOException If the files cannot be listed or moved
+     */
+    public static void main(String[] args) throws IOException {
+        StorageLayout layout = new StorageLayout(
+                args.length > 0 ? Paths.get(args[0]) : StorageLayout.SHARED.root(),
+                args.length > 1 ? Integer.parseInt(args[1]) : StorageLayout.SHARED.levels());
+        WriteAheadJournal.open(layout.root().resolve(WriteAheadJournal.DIRECTORY), 1).close(); // replays into the old paths
+        int[] result = rebalance(layout);
+        System.out.println("Moved " + result[0] + " files; " + result[1] + " left in place because the target already exists.");
+    }
+
+    /**
+     * Moves every portfolio file under the layout's root into its bucket and removes emptied bucket directories.
+     * @param layout Layout to move the files into
+     * @return Number of files moved and number skipped because a file of the same name was already in place
+     * @throws IOException If the files cannot be listed or moved
+     */
+    static int[] rebalance(StorageLayout layout) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> flat = Files.list(layout.root())) {
+            flat.filter(Files::isRegularFile).forEach(files::add);
+        }
+        Path buckets = layout.root().resolve(StorageLayout.PORTFOLIOS);
+        if (Files.isDirectory(buckets)) {
+            try (Stream<Path> nested = Files.walk(buckets, StorageLayout.MAX_LEVELS + 1)) {
+                nested.filter(Files::isRegularFile).forEach(files::add);
+            }
+        }
+        int moved = 0;
+        int conflicts = 0;
+        for (Path file : files) {
+            Matcher name = PORTFOLIO_FILE.matcher(file.getFileName().toString());
+            if (!name.matches()) {
+                continue;
+            }
+            Path target = layout.bucket(name.group(1) + ".txt").resolve(file.getFileName());
+            if (target.equals(file)) {
+                continue;
+            }
+            if (Files.exists(target)) {
+                conflicts++;
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+            InvestmentRepository.moveAtomically(file, target);
+            moved++;
+        }
+        if (Files.isDirectory(buckets)) {
+            removeEmptyDirectories(buckets);
+        }
+        return new int[] {moved, conflicts};
+    }
+
+    /**
+     * Deletes the empty directories below a directory, deepest first.
+     */
+    private static void removeEmptyDirectories(Path dir) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(dir, StorageLayout.MAX_LEVELS)) {
+            walk.filter(Files::isDirectory).filter(d -> !d.equals(dir)).forEach(dirs::add);
+        }
+        dirs.sort(Comparator.comparingInt(Path::getNameCount).reversed());
+        for (Path d : dirs) {
+            try (Stream<Path> entries = Files.list(d)) {
+                if (entries.findAny().isPresent()) {
+                    continue;
+                }
+            }
+            Files.deleteIfExists(d);
+        }
+    }
+}
+
+/**
+ * Dictionary encoding for asset types: each distinct type string gets a dense int code.
+ */
+final class TypeDictionary {
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> types = new ArrayList<>();
+
+    /**
+     * Returns the code of a type, assigning the next free code on first sight.
+     * @param type Asset type
+     * @return Type code
+     */
+    public int encode(String type) {
+        Integer code = codes.get(type);
+        if (code == null) {
+            code = types.size();
+            codes.put(type, code);
+            types.add(type);
+        }
+        return code;
+    }
+
+    /**
+     * @param type Asset type
+     * @return Type code, or -1 if the type has not been encoded
+     */
+    public int codeOf(String type) {
+        Integer code = codes.get(type);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * @param code Type code
+     * @return Type string for the code
+     */
+    public String decode(int code) {
+        return types.get(code);
+    }
+
+    /**
+     * @return Number of distinct types
+     */
+    public int size() {
+        return types.size();
+    }
+}
+
+/**
+ * Read-only, column-oriented copy of a portfolio for aggregation over large numbers of assets.
+ * Values live in one {@code long[]} of minor units and types in an {@code int[]} of dictionary codes,
+ * so sums scan contiguous primitive memory. Assets with an invalid value are left out and only counted.
+ */
+final class ColumnarPortfolio {
+    private final String[] ids;
+    private final String[] names;
+    private final long[] values;
+    private final int[] typeCodes;
+    private final int size;
+    private final int invalidCount;
+    private final TypeDictionary types;
+
+    private ColumnarPortfolio(String[] ids, String[] names, long[] values, int[] typeCodes, int size,
+                              int invalidCount, TypeDictionary types) {
+        this.ids = ids;
+        this.names = names;
+        this.values = values;
+        this.typeCodes = typeCodes;
+        this.size = size;
+        this.invalidCount = invalidCount;
+        this.types = types;
+    }
+
+    /**
+     * Builds a columnar copy of a list of assets.
+     * @param assets Assets to copy
+     * @return Columnar portfolio
+     */
+    public static ColumnarPortfolio of(Iterable<Asset> assets) {
+        Builder builder = new Builder();
+        for (Asset a : assets) {
+            builder.put(a.getId(), a.getName(), a.getValueMinor(), a.getType());
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return Number of assets with a valid value
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Number of assets left out because their value could not be parsed
+     */
+    public int invalidCount() {
+        return invalidCount;
+    }
+
+    /**
+     * @return Dictionary of the type codes used by this portfolio
+     */
+    public TypeDictionary types() {
+        return types;
+    }
+
+    /**
+     * @param row Row index
+     * @return Asset ID at the row
+     */
+    public String idAt(int row) {
+        return ids[row];
+    }
+
+    /**
+     * @param row Row index
+     * @return Asset name at the row
+     */
+    public String nameAt(int row) {
+        return names[row];
+    }
+
+    /**
+     * @param row Row index
+     * @return Asset value in minor units at the row
+     */
+    public long valueAt(int row) {
+        return values[row];
+    }
+
+    /**
+     * @param row Row index
+     * @return Asset type code at the row
+     */
+    public int typeCodeAt(int row) {
+        return typeCodes[row];
+    }
+
+    /**
+     * @return Sum of all values in minor units
+     */
+    public long sum() {
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            total += values[i];
+        }
+        return total;
+    }
+
+    /**
+     * @return Sum of values per type, indexed by type code
+     */
+    public long[] sumByType() {
+        long[] totals = new long[types.size()];
+        for (int i = 0; i < size; i++) {
+            totals[typeCodes[i]] += values[i];
+        }
+        return totals;
+    }
+
+    /**
+     * @return Smallest value in minor units, or 0 for an empty portfolio
+     */
+    public long min() {
+        if (size == 0) {
+            return 0;
+        }
+        long min = values[0];
+        for (int i = 1; i < size; i++) {
+            min = Math.min(min, values[i]);
+        }
+        return min;
+    }
+
+    /**
+     * @return Largest value in minor units, or 0 for an empty portfolio
+     */
+    public long max() {
+        if (size == 0) {
+            return 0;
+        }
+        long max = values[0];
+        for (int i = 1; i < size; i++) {
+            max = Math.max(max, values[i]);
+        }
+        return max;
+    }
+
+    /**
+     * Accumulates rows with the same put/remove semantics as the portfolio file:
+     * a put for a known ID replaces that row in place, a remove drops it.
+     */
+    static final class Builder {
+        private final TypeDictionary types = new TypeDictionary();
+        private final Map<String, String> namePool = new HashMap<>();
+        private final Map<String, Integer> rowById = new HashMap<>();
+        private String[] ids = new String[16];
+        private String[] names = new String[16];
+        private long[] values = new long[16];
+        private int[] typeCodes = new int[16];
+        private boolean[] removed = new boolean[16];
+        private int rows;
+
+        /**
+         * Adds or replaces a row.
+         * @param id Asset ID
+         * @param name Asset name
+         * @param valueMinor Value in minor units, or {@link Money#INVALID}
+         * @param type Asset type
+         */
+        public void put(String id, String name, long valueMinor, String type) {
+            Integer existing = rowById.get(id);
+            int row;
+            if (existing != null) {
+                row = existing;
+            } else {
+                if (rows == values.length) {
+                    grow();
+                }
+                row = rows++;
+                rowById.put(id, row);
+                ids[row] = id;
+            }
+            String pooled = namePool.putIfAbsent(name, name);
+            names[row] = pooled != null ? pooled : name;
+            values[row] = valueMinor;
+            typeCodes[row] = types.encode(type);
+            removed[row] = false;
+        }
+
+        /**
+         * Drops the row with the given ID, if any.
+         * @param id Asset ID
+         */
+        public void remove(String id) {
+            Integer row = rowById.remove(id);
+            if (row != null) {
+                removed[row] = true;
+            }
+        }
+
+        /**
+         * @return Portfolio holding the live rows in insertion order
+         */
+        public ColumnarPortfolio build() {
+            int size = 0;
+            int invalid = 0;
+            for (int i = 0; i < rows; i++) {
+                if (removed[i]) {
+                    continue;
+                }
+                if (values[i] == Money.INVALID) {
+                    invalid++;
+                    continue;
+                }
+                ids[size] = ids[i];
+                names[size] = names[i];
+                values[size] = values[i];
+                typeCodes[size] = typeCodes[i];
+                size++;
+            }
+            return new ColumnarPortfolio(Arrays.copyOf(ids, size), Arrays.copyOf(names, size),
+                    Arrays.copyOf(values, size), Arrays.copyOf(typeCodes, size), size, invalid, types);
+        }
+
+        private void grow() {
+            int capacity = values.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+            typeCodes = Arrays.copyOf(typeCodes, capacity);
+            removed = Arrays.copyOf(removed, capacity);
+        }
+    }
+}
+
+/**
+ * Totals produced by one aggregation pass over a portfolio.
+ */
+final class PortfolioTotals {
+    private final long total;
+    private final Map<String, Long> byType;
+    private final int assetCount;
+    private final int invalidCount;
+    private final int logRecords;
+
+    /**
+     * @param total Sum of valid values in minor units
+     * @param byType Sum of valid values per asset type
+     * @param assetCount Number of assets with a valid value
+     * @param invalidCount Number of assets skipped for an invalid value
+     * @param logRecords Number of update/tombstone records seen (file aggregation only)
+     */
+    PortfolioTotals(long total, Map<String, Long> byType, int assetCount, int invalidCount, int logRecords) {
+        this.total = total;
+        this.byType = byType;
+        this.assetCount = assetCount;
+        this.invalidCount = invalidCount;
+        this.logRecords = logRecords;
+    }
+
+    /**
+     * @return Sum of valid values in minor units
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * @return Sum of valid values per asset type, in minor units
+     */
+    public Map<String, Long> byType() {
+        return byType;
+    }
+
+    /**
+     * @return Number of assets with a valid value
+     */
+    public int assetCount() {
+        return assetCount;
+    }
+
+    /**
+     * @return Number of assets skipped for an invalid value
+     */
+    public int invalidCount() {
+        return invalidCount;
+    }
+
+    /**
+     * @return Number of update/tombstone records seen; non-zero means the file is due for compaction
+     */
+    public int logRecords() {
+        return logRecords;
+    }
+
+    /**
+     * @return Zakat due by the shared {@link ZakatRules}, with the hawl taken as complete, in minor units
+     */
+    public long zakat() {
+        return ZakatRules.shared().assess(this).dueMinor();
+    }
+}
+
+/**
+ * Running totals of a portfolio, kept up to date by applying each add, edit and removal as a delta
+ * so zakat can be answered without reading the portfolio. Held in memory with the loaded portfolio, and
+ * written next to it in a small {@code .totals} file when it is compacted or when the totals were recomputed
+ * without loading it, stamped with the length and modification time of the portfolio files they describe;
+ * stored totals whose stamp no longer matches are recomputed instead of trusted.
+ * Totals take the same view as {@link ParallelAggregator}: types whose subtotal is zero are left out.
+ */
+final class RunningTotals {
+    private static final String HEADER = "#TOTALS 1";
+
+    private long total;
+    private final Map<String, Long> byType = new LinkedHashMap<>();
+    private int assetCount;
+    private int invalidCount;
+    long[] stamp;
+
+    private RunningTotals(long[] stamp) {
+        this.stamp = stamp;
+    }
+
+    /**
+     * @param totals Totals from a full aggregation
+     * @param stamp Stamp of the files they were computed from
+     * @return Running totals starting from them
+     */
+    static RunningTotals of(PortfolioTotals totals, long[] stamp) {
+        RunningTotals running = new RunningTotals(stamp);
+        running.total = totals.total();
+        running.byType.putAll(totals.byType());
+        running.assetCount = totals.assetCount();
+        running.invalidCount = totals.invalidCount();
+        return running;
+    }
+
+    /**
+     * Applies one change to the portfolio.
+     * @param removed Asset removed or replaced, or null
+     * @param added Asset added or the replacement, or null
+     */
+    void apply(Asset removed, Asset added) {
+        if (removed != null) {
+            add(removed, -1);
+        }
+        if (added != null) {
+            add(added, 1);
+        }
+    }
+
+    private void add(Asset asset, int sign) {
+        if (!asset.hasValidValue()) {
+            invalidCount += sign;
+            return;
+        }
+        long value = Math.multiplyExact(asset.getValueMinor(), (long) sign);
+        total = Math.addExact(total, value);
+        assetCount += sign;
+        long subtotal = Math.addExact(byType.getOrDefault(asset.getType(), 0L), value);
+        if (subtotal == 0) {
+            byType.remove(asset.getType());
+        } else {
+            byType.put(asset.getType(), subtotal);
+        }
+    }
+
+    /**
+     * @return Snapshot of the totals
+     */
+    PortfolioTotals toTotals() {
+        return new PortfolioTotals(total, new LinkedHashMap<>(byType), assetCount, invalidCount, 0);
+    }
+
+    /**
+     * @param other Totals from a full aggregation
+     * @return true if both agree on the total, every subtotal and the asset counts
+     */
+    boolean matches(PortfolioTotals other) {
+        return total == other.total() && byType.equals(other.byType())
+                && assetCount == other.assetCount() && invalidCount == other.invalidCount();
+    }
+
+    /**
+     * Writes the totals to a temporary file which then replaces the old one.
+     * Not synced: after a crash the stamp tells stale totals apart, and they are recomputed.
+     * @param file Totals file
+     * @throws IOException If writing fails
+     */
+    void write(Path file) throws IOException {
+        Path temp = Paths.get(file + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp)) {
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write("stamp," + stamp[0] + "," + stamp[1] + "," + stamp[2] + "," + stamp[3]);
+            writer.newLine();
+            writer.write("count," + assetCount + "," + invalidCount);
+            writer.newLine();
+            writer.write("total," + total);
+            writer.newLine();
+            for (Map.Entry<String, Long> e : byType.entrySet()) {
+                writer.write("type," + e.getValue() + "," + e.getKey());
+                writer.newLine();
+            }
+        }
+        InvestmentRepository.moveAtomically(temp, file);
+    }
+
+    /**
+     * @param file Totals file
+     * @return The stored totals, or null if the file is missing or unreadable
+     */
+    static RunningTotals read(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return null;
+            }
+            RunningTotals running = new RunningTotals(new long[4]);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",", 3);
+                if (parts[0].equals("stamp")) {
+                    String[] stamp = line.split(",");
+                    for (int i = 0; i < 4; i++) {
+                        running.stamp[i] = Long.parseLong(stamp[i + 1]);
+                    }
+                } else if (parts[0].equals("count")) {
+                    running.assetCount = Integer.parseInt(parts[1]);
+                    running.invalidCount = Integer.parseInt(parts[2]);
+                } else if (parts[0].equals("total")) {
+                    running.total = Long.parseLong(parts[1]);
+                } else if (parts[0].equals("type")) {
+                    running.byType.put(parts[2], Long.parseLong(parts[1]));
+                }
+            }
+            return running;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+}
+
+/**
+ * Versioned history of a portfolio, for valuations as of a past date and value-over-time charts.
+ * Every change to the portfolio is appended as a timestamped record of the asset changed. Once the deltas since the last checkpoint take
+ * as many bytes as that checkpoint ({@code -Dinvestmate.history.checkpointRatio} times as many, 1 by default), and
+ * after every wholesale rewrite, a full checkpoint of the live assets is appended. A query then reads about two
+ * checkpoints' worth of bytes at most, and checkpoints take about as much room as the deltas, whatever the size
+ * of the portfolio.
+ * <pre>
+ * record      payload length (int) | payload
+ * PUT         kind (byte) | milliseconds since the previous record (varint) | id | name | type | value (zigzag varint)
+ * REMOVE      kind (byte) | milliseconds since the previous record (varint) | id
+ * CHECKPOINT  kind (byte) | epoch milliseconds (varint) | per asset: id | name | type | value (zigzag varint)
+ * </pre>
+ * Strings are a varint length and UTF-8 bytes, as in {@link BinaryPortfolioFile}. A PUT stores the asset's value
+ * as it stands, not its change, so a record lost in a crash cannot throw later values off: each PUT is right on
+ * its own.
+ * Each checkpoint's time and offset are appended to the {@code .hidx} file as two longs; a query binary searches
+ * it for the last checkpoint at or before the time asked for, reading O(log n) entries, then replays forward.
+ * Replay keeps the assets in primitive columns with running totals per type, so a series of points costs one
+ * pass over the records whatever the number of points.
+ * <p>
+ * The files live next to the text log as {@code <portfolio>.history} and {@code <portfolio>.hidx}. They are
+ * written under the portfolio's lock after the text log, and not synced: a crash can lose the latest entries or
+ * leave a torn record, which the next writer cuts off. The portfolio stays authoritative and the next checkpoint,
+ * taken from its live assets, brings the history back in line. Readers take no lock and stop at the first
+ * incomplete record.
+ */
+final class PortfolioHistory {
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    static final byte CHECKPOINT = 3;
+    static final int INDEX_ENTRY_BYTES = 16;
+    /** Whether repositories record history, set by {@code -Dinvestmate.history} (true by default). */
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("investmate.history", "true"));
+    static final double CHECKPOINT_RATIO = Double.parseDouble(System.getProperty("investmate.history.checkpointRatio", "1"));
+    /** Largest number of points a {@link #series} may return. */
+    static final int MAX_POINTS = 100_000;
+
+    private final Path file;
+    private final Path indexFile;
+    private final double checkpointRatio;
+
+    // writer state, loaded on the first write; only used under the portfolio's lock
+    private boolean opened;
+    private long end;
+    private long lastTime;
+    private long checkpointBytes;
+    private long deltaBytes;
+
+    /**
+     * @param textFile Text log of the portfolio
+     */
+    PortfolioHistory(Path textFile) {
+        this(historyFile(textFile), indexFile(textFile), CHECKPOINT_RATIO);
+    }
+
+    /**
+     * @param file History file
+     * @param indexFile Checkpoint index file
+     * @param checkpointRatio Bytes of deltas, per byte of the last checkpoint, after which a checkpoint is taken
+     */
+    PortfolioHistory(Path file, Path indexFile, double checkpointRatio) {
+        if (!(checkpointRatio > 0)) {
+            throw new IllegalArgumentException("checkpointRatio must be positive: " + checkpointRatio);
+        }
+        this.file = file;
+        this.indexFile = indexFile;
+        this.checkpointRatio = checkpointRatio;
+    }
+
+    /**
+     * @param date Day in the system time zone
+     * @return Epoch milliseconds of the last moment of the day
+     */
+    static long endOfDay(LocalDate date) {
+        return date.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli() - 1;
+    }
+
+    /**
+     * @param textFile Text log file of a portfolio
+     * @return File next to it holding the portfolio's history
+     */
+    static Path historyFile(Path textFile) {
+        return Paths.get(textFile.toString().replaceFirst("\\.txt$", "") + ".history");
+    }
+
+    /**
+     * @param textFile Text log file of a portfolio
+     * @return File next to it indexing the checkpoints of the portfolio's history
+     */
+    static Path indexFile(Path textFile) {
+        return Paths.get(textFile.toString().replaceFirst("\\.txt$", "") + ".hidx");
+    }
+
+    /**
+     * Records an asset added or replaced. The caller holds the portfolio's lock.
+     * A history that does not exist yet starts with a checkpoint of the live assets instead.
+     * @param time Epoch milliseconds of the change
+     * @param after The new asset
+     * @param live Live assets after the change
+     * @throws IOException If the history cannot be read or written
+     */
+    void put(long time, Asset after, Map<String, Asset> live) throws IOException {
+        ByteArrayOutputStream payload = delta(PUT, time, after.getId());
+        BinaryPortfolioFile.writeString(payload, after.getName());
+        BinaryPortfolioFile.writeString(payload, after.getType());
+        long value = after.getValueMinor();
+        BinaryPortfolioFile.writeVarint(payload, (value << 1) ^ (value >> 63));
+        append(time, payload, live);
+    }
+
+    /**
+     * Records an asset removed. The caller holds the portfolio's lock.
+     * @param time Epoch milliseconds of the change
+     * @param id ID of the removed asset
+     * @param live Live assets after the change
+     * @throws IOException If the history cannot be read or written
+     */
+    void remove(long time, String id, Map<String, Asset> live) throws IOException {
+        append(time, delta(REMOVE, time, id), live);
+    }
+
+    /**
+     * Records the full portfolio, after it was rewritten as a whole. The caller holds the portfolio's lock.
+     * @param time Epoch milliseconds of the rewrite
+     * @param live Source of the live assets
+     * @throws IOException If the history cannot be read or written, or reading the assets fails
+     */
+    void checkpoint(long time, AssetSource live) throws IOException {
+        open();
+        long at = Math.max(time, lastTime);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel.position(end + 4)), 1 << 16);
+            ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+            record.write(CHECKPOINT);
+            BinaryPortfolioFile.writeVarint(record, at);
+            record.writeTo(out);
+            long[] length = {record.size()};
+            live.forEach(asset -> {
+                record.reset();
+                BinaryPortfolioFile.writeString(record, asset.getId());
+                BinaryPortfolioFile.writeString(record, asset.getName());
+                BinaryPortfolioFile.writeString(record, asset.getType());
+                BinaryPortfolioFile.writeVarint(record, (asset.getValueMinor() << 1) ^ (asset.getValueMinor() >> 63));
+                record.writeTo(out);
+                length[0] += record.size();
+            });
+            out.flush();
+            if (length[0] > Integer.MAX_VALUE) {
+                throw new IOException("Portfolio too large for a history checkpoint: " + length[0] + " bytes");
+            }
+            // the length goes in last: until then the record reads as incomplete
+            writeFully(channel, ByteBuffer.allocate(4).putInt(0, (int) length[0]), end);
+            try (FileChannel index = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                writeFully(index, ByteBuffer.allocate(INDEX_ENTRY_BYTES).putLong(0, at).putLong(8, end), -1);
+            }
+            end += 4 + length[0];
+            lastTime = at;
+            checkpointBytes = 4 + length[0];
+            deltaBytes = 0;
+        } catch (IOException | RuntimeException e) {
+            opened = false;
+            throw e;
+        }
+    }
+
+    /**
+     * Reconstructs the portfolio as it stood at a point in time.
+     * @param time Epoch milliseconds
+     * @return The live assets at that time, or null if the history starts later
+     * @throws IOException If the history cannot be read
+     */
+    public ColumnarPortfolio at(long time) throws IOException {
+        long offset = checkpointAtOrBefore(time);
+        if (offset < 0) {
+            return null;
+        }
+        Replay state = new Replay(true);
+        try (RecordReader records = new RecordReader(file, offset)) {
+            while (records.next() && records.time <= time) {
+                records.applyTo(state);
+            }
+        }
+        return state.started ? state.toColumnar() : null;
+    }
+
+    /**
+     * Samples the portfolio's total and per-type values at regular times, reading forward through the records.
+     * Where a checkpoint lies between one point and the next, reading jumps to the last such checkpoint, so
+     * points far apart cost one checkpoint and at most a checkpoint interval of deltas each, and points close
+     * together cost one pass. Times before the history starts are left out.
+     * @param from Epoch milliseconds of the first point
+     * @param to Epoch milliseconds no point may pass
+     * @param step Milliseconds between points
+     * @return The points
+     * @throws IOException If the history cannot be read
+     * @throws IllegalArgumentException If the range is empty, the step is not positive or there are too many points
+     */
+    public ValueSeries series(long from, long to, long step) throws IOException {
+        if (step <= 0 || to < from || (to - from) / step >= MAX_POINTS) {
+            throw new IllegalArgumentException("A series needs from <= to, a positive step and at most " + MAX_POINTS + " points");
+        }
+        ValueSeries series = new ValueSeries((int) ((to - from) / step) + 1);
+        long[] checkpoints = readIndex();
+        if (checkpoints.length == 0 && !Files.exists(file)) {
+            return series;
+        }
+        Replay state = new Replay(false);
+        long next = from;
+        RecordReader records = new RecordReader(file, checkpoints.length == 0 ? 0 : checkpoints[1]);
+        try {
+            while (next <= to) {
+                long jump = lastCheckpointAtOrBefore(checkpoints, next);
+                if (jump > records.position) {
+                    records.close();
+                    records = new RecordReader(file, jump);
+                }
+                if (!records.next()) {
+                    break;
+                }
+                for (; next < records.time && next <= to; next += step) {
+                    if (state.started) {
+                        series.add(next, state);
+                    }
+                }
+                records.applyTo(state);
+            }
+        } finally {
+            records.close();
+        }
+        for (; next <= to && state.started; next += step) {
+            series.add(next, state);
+        }
+        return series;
+    }
+
+    /**
+     * @return The whole checkpoint index as time, offset pairs
+     */
+    private long[] readIndex() throws IOException {
+        if (!Files.exists(indexFile)) {
+            return new long[0];
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+        long[] entries = new long[bytes.limit() / INDEX_ENTRY_BYTES * 2];
+        bytes.asLongBuffer().get(entries);
+        return entries;
+    }
+
+    /**
+     * @param checkpoints Index as time, offset pairs
+     * @param time Epoch milliseconds
+     * @return Offset of the last checkpoint taken at or before the time, or -1 if none
+     */
+    private static long lastCheckpointAtOrBefore(long[] checkpoints, long time) {
+        int low = 0;
+        int high = checkpoints.length / 2 - 1;
+        long found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (checkpoints[2 * middle] <= time) {
+                found = checkpoints[2 * middle + 1];
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return Size of the history and index files in bytes
+     */
+    long bytes() {
+        return file.toFile().length() + indexFile.toFile().length();
+    }
+
+    private ByteArrayOutputStream delta(byte kind, long time, String id) throws IOException {
+        open();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        payload.write(kind);
+        BinaryPortfolioFile.writeVarint(payload, Math.max(0, time - lastTime));
+        BinaryPortfolioFile.writeString(payload, id);
+        return payload;
+    }
+
+    /**
+     * Appends a delta, or a checkpoint of the live assets if the history has none yet or is due for one.
+     */
+    private void append(long time, ByteArrayOutputStream payload, Map<String, Asset> live) throws IOException {
+        if (checkpointBytes < 0 || deltaBytes + 4 + payload.size() >= checkpointRatio * checkpointBytes) {
+            checkpoint(time, AssetSource.of(live.values()));
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(4 + payload.size());
+        record.putInt(payload.size()).put(payload.toByteArray()).flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            writeFully(channel, record, end);
+        } catch (IOException e) {
+            opened = false;
+            throw e;
+        }
+        end += record.limit();
+        lastTime = Math.max(time, lastTime);
+        deltaBytes += record.limit();
+    }
+
+    /**
+     * Loads the writer state from the end of the history, unless it still matches the file: another repository
+     * over the same portfolio may have written since. Reads from the last indexed checkpoint on, cutting off a torn
+     * record at the end, and drops index entries past the end.
+     */
+    private void open() throws IOException {
+        long size = file.toFile().length();
+        if (opened && size == end) {
+            return;
+        }
+        long[] last = lastIndexEntry(size);
+        end = last == null ? 0 : last[1];
+        lastTime = 0;
+        checkpointBytes = -1;
+        deltaBytes = 0;
+        try (RecordReader records = new RecordReader(file, end)) {
+            while (records.next()) {
+                if (records.kind == CHECKPOINT) {
+                    checkpointBytes = records.position - end;
+                    deltaBytes = 0;
+                } else {
+                    deltaBytes += records.position - end;
+                }
+                lastTime = records.time;
+                end = records.position;
+            }
+        }
+        if (end < size) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+            if (last != null && last[1] >= end) {
+                open();
+                return;
+            }
+        }
+        opened = true;
+    }
+
+    /**
+     * @param size Length of the history file
+     * @return Time and offset of the last indexed checkpoint that starts within the file, or null if none;
+     *         later entries (and a torn entry) are cut off the index
+     */
+    private long[] lastIndexEntry(long size) throws IOException {
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+        try (FileChannel index = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long entries = index.size() / INDEX_ENTRY_BYTES;
+            long[] entry = null;
+            while (entries > 0) {
+                entry = readEntry(index, entries - 1);
+                if (entry[1] < size) {
+                    break;
+                }
+                entry = null;
+                entries--;
+            }
+            if (index.size() != entries * INDEX_ENTRY_BYTES) {
+                index.truncate(entries * INDEX_ENTRY_BYTES);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Binary searches the index for the last checkpoint taken at or before a time.
+     * @param time Epoch milliseconds
+     * @return Offset of the checkpoint, 0 for a history without an index, or -1 if every checkpoint is later
+     */
+    private long checkpointAtOrBefore(long time) throws IOException {
+        if (!Files.exists(indexFile)) {
+            return Files.exists(file) ? 0 : -1;
+        }
+        try (FileChannel index = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            long low = 0;
+            long high = index.size() / INDEX_ENTRY_BYTES - 1;
+            long found = -1;
+            while (low <= high) {
+                long middle = (low + high) >>> 1;
+                long[] entry = readEntry(index, middle);
+                if (entry[0] <= time) {
+                    found = entry[1];
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return found;
+        }
+    }
+
+    private static long[] readEntry(FileChannel index, long entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+        while (buffer.hasRemaining()) {
+            if (index.read(buffer, entry * INDEX_ENTRY_BYTES + buffer.position()) < 0) {
+                throw new EOFException("Truncated history index entry " + entry);
+            }
+        }
+        return new long[] {buffer.getLong(0), buffer.getLong(8)};
+    }
+
+    /**
+     * @param position Offset to write at, or -1 for the channel's own position
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (position < 0) {
+                channel.write(buffer);
+            } else {
+                channel.write(buffer, position + buffer.position());
+            }
+        }
+    }
+
+    /**
+     * Reads the records of the history in order from an offset, stopping at the end or at an incomplete record.
+     */
+    private static final class RecordReader implements Closeable {
+        private final DataInputStream in;
+        private ByteBuffer payload = ByteBuffer.allocate(256);
+        byte kind;
+        long time;
+        long position;
+
+        RecordReader(Path file, long offset) throws IOException {
+            InputStream stream = Files.exists(file)
+                    ? Files.newInputStream(file, StandardOpenOption.READ) : InputStream.nullInputStream();
+            stream.skipNBytes(Math.min(offset, file.toFile().length()));
+            this.in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+            this.position = offset;
+        }
+
+        /**
+         * Reads the next record's kind and time.
+         * @return false at the end of the history or at an incomplete record
+         */
+        boolean next() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            if (length <= 0) {
+                return false;
+            }
+            if (length > payload.capacity()) {
+                payload = ByteBuffer.allocate(Math.max(length, payload.capacity() * 2));
+            }
+            if (in.readNBytes(payload.array(), 0, length) != length) {
+                return false;
+            }
+            payload.clear().limit(length);
+            kind = payload.get();
+            long stamp = BinaryPortfolioFile.readVarint(payload);
+            time = kind == CHECKPOINT ? stamp : time + stamp;
+            position += 4 + length;
+            return true;
+        }
+
+        /**
+         * Applies the current record.
+         */
+        void applyTo(Replay state) {
+            if (kind == CHECKPOINT) {
+                state.clear();
+                while (payload.hasRemaining()) {
+                    state.put(BinaryPortfolioFile.readString(payload), payload);
+                }
+            } else if (kind == PUT) {
+                state.put(BinaryPortfolioFile.readString(payload), payload);
+            } else if (kind == REMOVE) {
+                state.remove(BinaryPortfolioFile.readString(payload));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Portfolio state during replay, in primitive columns, with its total and per-type totals kept up to date.
+     */
+    static final class Replay {
+        final TypeDictionary types = new TypeDictionary();
+        private final boolean keepNames;
+        private final Map<String, Integer> rowById = new HashMap<>();
+        private String[] ids = new String[16];
+        private String[] names = new String[16];
+        private long[] values = new long[16];
+        private int[] typeCodes = new int[16];
+        private int rows;
+        private final Map<String, String> namePool = new HashMap<>();
+        boolean started;
+        long total;
+        long[] byType = new long[8];
+
+        /**
+         * @param keepNames Whether asset names are decoded and kept, for rebuilding the portfolio
+         */
+        Replay(boolean keepNames) {
+            this.keepNames = keepNames;
+        }
+
+        void clear() {
+            rowById.clear();
+            rows = 0;
+            total = 0;
+            Arrays.fill(byType, 0);
+            started = true;
+        }
+
+        /**
+         * Adds or replaces an asset whose name, type and value follow in the record.
+         */
+        void put(String id, ByteBuffer record) {
+            String name = keepNames ? BinaryPortfolioFile.readString(record) : skipString(record);
+            int code = types.encode(BinaryPortfolioFile.readString(record));
+            if (code >= byType.length) {
+                byType = Arrays.copyOf(byType, byType.length * 2);
+            }
+            long zigzag = BinaryPortfolioFile.readVarint(record);
+            long value = (zigzag >>> 1) ^ -(zigzag & 1);
+            Integer existing = rowById.get(id);
+            int row;
+            if (existing != null) {
+                row = existing;
+                count(row, -1);
+            } else {
+                if (rows == values.length) {
+                    ids = Arrays.copyOf(ids, rows * 2);
+                    names = Arrays.copyOf(names, rows * 2);
+                    values = Arrays.copyOf(values, rows * 2);
+                    typeCodes = Arrays.copyOf(typeCodes, rows * 2);
+                }
+                row = rows++;
+                rowById.put(id, row);
+                ids[row] = id;
+            }
+            if (keepNames) {
+                String pooled = namePool.putIfAbsent(name, name);
+                names[row] = pooled != null ? pooled : name;
+            }
+            values[row] = value;
+            typeCodes[row] = code;
+            count(row, 1);
+        }
+
+        void remove(String id) {
+            Integer row = rowById.remove(id);
+            if (row != null) {
+                count(row, -1);
+                ids[row] = null;
+            }
+        }
+
+        private void count(int row, int sign) {
+            if (values[row] == Money.INVALID) {
+                return;
+            }
+            int code = typeCodes[row];
+            total += sign * values[row];
+            byType[code] += sign * values[row];
+        }
+
+        /**
+         * @return The live assets in the order they were first added
+         */
+        ColumnarPortfolio toColumnar() {
+            ColumnarPortfolio.Builder builder = new ColumnarPortfolio.Builder();
+            for (int row = 0; row < rows; row++) {
+                if (ids[row] != null) {
+                    builder.put(ids[row], names[row], values[row], types.decode(typeCodes[row]));
+                }
+            }
+            return builder.build();
+        }
+
+        private static String skipString(ByteBuffer record) {
+            int length = (int) BinaryPortfolioFile.readVarint(record);
+            record.position(record.position() + length);
+            return null;
+        }
+    }
+}
+
+/**
+ * Portfolio values sampled over time by {@link PortfolioHistory#series}, held in primitive columns:
+ * one row per point, with the total and the subtotal of each asset type in minor units.
+ */
+final class ValueSeries {
+    private final long[] times;
+    private final long[] totals;
+    private final List<long[]> byType = new ArrayList<>();
+    private TypeDictionary types = new TypeDictionary();
+    private int size;
+
+    /**
+     * @param capacity Largest number of points
+     */
+    ValueSeries(int capacity) {
+        this.times = new long[capacity];
+        this.totals = new long[capacity];
+    }
+
+    /**
+     * Appends a point holding the replayed portfolio's current totals.
+     */
+    void add(long time, PortfolioHistory.Replay state) {
+        types = state.types;
+        while (byType.size() < types.size()) {
+            byType.add(new long[times.length]);
+        }
+        times[size] = time;
+        totals[size] = state.total;
+        for (int code = 0; code < types.size(); code++) {
+            byType.get(code)[size] = state.byType[code];
+        }
+        size++;
+    }
+
+    /** @return Number of points */
+    public int size() {
+        return size;
+    }
+
+    /** @return Asset types of the subtotals; a type's code selects its column */
+    public TypeDictionary types() {
+        return types;
+    }
+
+    /**
+     * @param point Point index
+     * @return Epoch milliseconds of the point
+     */
+    public long timeAt(int point) {
+        return times[point];
+    }
+
+    /**
+     * @param point Point index
+     * @return Total value of the valid assets at the point, in minor units
+     */
+    public long totalAt(int point) {
+        return totals[point];
+    }
+
+    /**
+     * @param typeCode Type code in {@link #types()}
+     * @param point Point index
+     * @return Total value of the type at the point, in minor units
+     */
+    public long typeTotalAt(int typeCode, int point) {
+        return byType.get(typeCode)[point];
+    }
+}
+
+/**
+ * Sums portfolio values and per-type subtotals on a fork/join pool.
+ * Values are integer minor units combined with exact addition, so the result is identical
+ * to the sequential {@link ZakatCalculator} whatever the split or the number of threads.
+ */
+class ParallelAggregator {
+    private static final int ROWS_PER_TASK = 1 << 16;
+    private static final long MIN_BYTES_PER_CHUNK = 1 << 20;
+    private static final long MAX_BYTES_PER_CHUNK = 1 << 28;
+    private static final byte[] LOG_RECORD_PREFIX = {'#'};
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructs an aggregator on the common fork/join pool.
+     */
+    public ParallelAggregator() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructs an aggregator on the given pool.
+     * @param pool Pool running the aggregation tasks
+     */
+    public ParallelAggregator(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Aggregates assets already in memory.
+     * @param assets Assets to aggregate
+     * @return Totals of the assets
+     */
+    public PortfolioTotals aggregate(List<Asset> assets) {
+        return aggregate(ColumnarPortfolio.of(assets));
+    }
+
+    /**
+     * Aggregates a columnar portfolio, splitting it into row ranges.
+     * @param portfolio Portfolio to aggregate
+     * @return Totals of the portfolio
+     */
+    public PortfolioTotals aggregate(ColumnarPortfolio portfolio) {
+        long[] sums = pool.invoke(new RowRangeTask(portfolio, 0, portfolio.size()));
+        Map<String, Long> byType = new LinkedHashMap<>();
+        for (int code = 0; code < portfolio.types().size(); code++) {
+            if (sums[code + 1] != 0) {
+                byType.put(portfolio.types().decode(code), sums[code + 1]);
+            }
+        }
+        return new PortfolioTotals(sums[0], byType, portfolio.size(), portfolio.invalidCount(), 0);
+    }
+
+    /**
+     * Aggregates a portfolio file by splitting it at line boundaries and parsing the chunks in parallel.
+     * Chunks also collect a hash of every asset ID. Update and tombstone records, or an ID on more than
+     * one line, cannot be resolved chunk by chunk: if there are any, the file is replayed front to back
+     * with the same last-record-wins rules as loading, and the live assets are aggregated instead.
+     * A last line without a newline was torn while being appended and is ignored, as when the portfolio is loaded.
+     * @param file Portfolio file in the plain {@code id,name,value,type} format
+     * @return Totals of the file's records
+     * @throws IOException If the file cannot be read
+     */
+    public PortfolioTotals aggregateFile(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return new PortfolioTotals(0, new LinkedHashMap<>(), 0, 0, 0);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] bounds = chunkBounds(channel);
+            ChunkTotals totals;
+            try {
+                totals = pool.invoke(new ChunkRangeTask(channel, bounds, 0, bounds.length - 1));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (totals.logRecords == 0 && !totals.hasDuplicateIds()) {
+                return totals.toTotals();
+            }
+            return replay(channel, bounds[bounds.length - 1], totals.logRecords);
+        }
+    }
+
+    /**
+     * Replays a file's adds, updates and tombstones into columns and aggregates the live assets.
+     * @param channel Open portfolio file
+     * @param end Offset just past the last byte to read
+     * @param logRecords Number of update/tombstone records found by the chunk pass
+     * @return Totals of the live assets
+     * @throws IOException If the file cannot be read
+     */
+    private PortfolioTotals replay(FileChannel channel, long end, int logRecords) throws IOException {
+        ColumnarPortfolio.Builder builder = new ColumnarPortfolio.Builder();
+        MappedRecordReader record = new MappedRecordReader(channel, 0, end, false);
+        while (record.next()) {
+            if (record.startsWith(InvestmentRepository.DELETE_PREFIX)) {
+                record.split(2);
+                builder.remove(record.field(1));
+                continue;
+            }
+            int first = record.startsWith(InvestmentRepository.UPDATE_PREFIX) ? 1 : 0;
+            if (record.split(first + 4) == first + 4) {
+                builder.put(record.field(first), record.field(first + 1), record.minorField(first + 2), record.field(first + 3));
+            }
+        }
+        PortfolioTotals live = aggregate(builder.build());
+        return new PortfolioTotals(live.total(), live.byType(), live.assetCount(), live.invalidCount(), logRecords);
+    }
+
+    /**
+     * Splits a file into chunks that each start at the beginning of a line.
+     * @param channel File to split
+     * @return Chunk boundaries: chunk i covers {@code [bounds[i], bounds[i + 1])}
+     * @throws IOException If the file cannot be read
+     */
+    private long[] chunkBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long chunk = Math.min(MAX_BYTES_PER_CHUNK,
+                Math.max(MIN_BYTES_PER_CHUNK, size / (pool.getParallelism() * 4L)));
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long position = chunk;
+        while (position < size) {
+            long lineStart = -1;
+            long scan = position;
+            while (lineStart < 0 && scan < size) {
+                probe.clear();
+                int read = channel.read(probe, scan);
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == '\n') {
+                        lineStart = scan + i + 1;
+                        break;
+                    }
+                }
+                scan += read;
+            }
+            if (lineStart < 0 || lineStart >= size) {
+                break;
+            }
+            bounds.add(lineStart);
+            position = lineStart + chunk;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Sums a range of columnar rows. Result slot 0 is the total, slot {@code code + 1} the subtotal of a type.
+     */
+    private static class RowRangeTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+        private final ColumnarPortfolio portfolio;
+        private final int from;
+        private final int to;
+
+        RowRangeTask(ColumnarPortfolio portfolio, int from, int to) {
+            this.portfolio = portfolio;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from <= ROWS_PER_TASK) {
+                long[] sums = new long[portfolio.types().size() + 1];
+                for (int row = from; row < to; row++) {
+                    long value = portfolio.valueAt(row);
+                    sums[0] = Math.addExact(sums[0], value);
+                    sums[portfolio.typeCodeAt(row) + 1] = Math.addExact(sums[portfolio.typeCodeAt(row) + 1], value);
+                }
+                return sums;
+            }
+            int mid = (from + to) >>> 1;
+            RowRangeTask left = new RowRangeTask(portfolio, from, mid);
+            left.fork();
+            long[] sums = new RowRangeTask(portfolio, mid, to).compute();
+            long[] other = left.join();
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] = Math.addExact(sums[i], other[i]);
+            }
+            return sums;
+        }
+    }
+
+    /**
+     * Partial totals of one or more file chunks, with types keyed by their raw bytes.
+     */
+    private static class ChunkTotals {
+        private long total;
+        private int assetCount;
+        private int invalidCount;
+        private int logRecords;
+        private final List<byte[]> typeKeys = new ArrayList<>();
+        private long[] typeTotals = new long[8];
+        private long[] idHashes = new long[64];
+        private int ids;
+
+        /**
+         * Records the hash of an asset ID.
+         */
+        void addId(long hash) {
+            if (ids == idHashes.length) {
+                idHashes = Arrays.copyOf(idHashes, ids * 2);
+            }
+            idHashes[ids++] = hash;
+        }
+
+        /**
+         * @return true if two records may share an ID; a hash collision only costs a replay
+         */
+        boolean hasDuplicateIds() {
+            Arrays.parallelSort(idHashes, 0, ids);
+            for (int i = 1; i < ids; i++) {
+                if (idHashes[i] == idHashes[i - 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Adds a value to the subtotal of the type held in a field of the current record.
+         */
+        void addToType(MappedRecordReader record, int field, long value) {
+            for (int i = 0; i < typeKeys.size(); i++) {
+                if (record.fieldEquals(field, typeKeys.get(i))) {
+                    typeTotals[i] = Math.addExact(typeTotals[i], value);
+                    return;
+                }
+            }
+            addType(record.fieldBytes(field), value);
+        }
+
+        /**
+         * Adds a value to the subtotal of a type given by its bytes.
+         */
+        void addToType(byte[] type, long value) {
+            for (int i = 0; i < typeKeys.size(); i++) {
+                if (Arrays.equals(typeKeys.get(i), type)) {
+                    typeTotals[i] = Math.addExact(typeTotals[i], value);
+                    return;
+                }
+            }
+            addType(type, value);
+        }
+
+        private void addType(byte[] key, long value) {
+            if (typeKeys.size() == typeTotals.length) {
+                typeTotals = Arrays.copyOf(typeTotals, typeTotals.length * 2);
+            }
+            typeTotals[typeKeys.size()] = value;
+            typeKeys.add(key);
+        }
+
+        /**
+         * Folds another chunk's totals into these, keeping types in first-seen order.
+         */
+        ChunkTotals merge(ChunkTotals other) {
+            total = Math.addExact(total, other.total);
+            assetCount += other.assetCount;
+            invalidCount += other.invalidCount;
+            logRecords += other.logRecords;
+            if (ids + other.ids > idHashes.length) {
+                idHashes = Arrays.copyOf(idHashes, Math.max(ids + other.ids, idHashes.length * 2));
+            }
+            System.arraycopy(other.idHashes, 0, idHashes, ids, other.ids);
+            ids += other.ids;
+            for (int i = 0; i < other.typeKeys.size(); i++) {
+                addToType(other.typeKeys.get(i), other.typeTotals[i]);
+            }
+            return this;
+        }
+
+        PortfolioTotals toTotals() {
+            Map<String, Long> byType = new LinkedHashMap<>();
+            for (int i = 0; i < typeKeys.size(); i++) {
+                byType.merge(new String(typeKeys.get(i), Charset.defaultCharset()), typeTotals[i], Math::addExact);
+            }
+            return new PortfolioTotals(total, byType, assetCount, invalidCount, logRecords);
+        }
+    }
+
+    /**
+     * Parses a range of file chunks, splitting the range in half until one chunk is left.
+     */
+    private static class ChunkRangeTask extends RecursiveTask<ChunkTotals> {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final int from;
+        private final int to;
+
+        ChunkRangeTask(FileChannel channel, long[] bounds, int from, int to) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected ChunkTotals compute() {
+            if (to - from == 1) {
+                try {
+                    return parseChunk(new MappedRecordReader(channel, bounds[from], bounds[to], false));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int mid = (from + to) >>> 1;
+            ChunkRangeTask left = new ChunkRangeTask(channel, bounds, from, mid);
+            left.fork();
+            ChunkTotals right = new ChunkRangeTask(channel, bounds, mid, to).compute();
+            return left.join().merge(right);
+        }
+
+        /**
+         * Parses every line of a chunk; values and types are read from the mapped bytes without decoding.
+         */
+        private static ChunkTotals parseChunk(MappedRecordReader record) throws IOException {
+            ChunkTotals totals = new ChunkTotals();
+            while (record.next()) {
+                if (record.isBlank()) {
+                    continue;
+                }
+                if (record.startsWith(LOG_RECORD_PREFIX)) {
+                    totals.logRecords++;
+                    continue;
+                }
+                if (record.split(4) != 4) {
+                    continue;
+                }
+                totals.addId(record.fieldHash(0));
+                long value = record.minorField(2);
+                if (value == Money.INVALID) {
+                    totals.invalidCount++;
+                    continue;
+                }
+                totals.total = Math.addExact(totals.total, value);
+                totals.assetCount++;
+                totals.addToType(record, 3, value);
+            }
+            return totals;
+        }
+    }
+}
+
+/**
+ * Provides services to add, edit, or delete assets.
+ */
+class InvestmentService {
+    static final int DEFAULT_FLUSH_RECORDS = 4_096;
+    private static final Metrics.Counter ERRORS = Metrics.SHARED.counter("investments.errors");
+
+    private InvestmentRepository repository;
+
+    /**
+     * Constructs InvestmentService with the given repository.
+     * @param repository The investment repository for a user
+     */
+    public InvestmentService(InvestmentRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Adds a new investment.
+     * @param investment The asset to be added
+     * @return true if successful, false otherwise
+     */
+    public boolean addInvestment(Asset investment) {
+        String rejection = rejectionReason(investment);
+        if (rejection != null) {
+            System.out.println(rejection);
+            return false;
+        }
+        try {
+            if (!repository.saveIfAbsent(investment)) {
+                System.out.println("Investment ID already exists.");
+                return false;
+            }
+            System.out.println("Investment added successfully.");
+            return true;
+        } catch (IOException e) {
+            ERRORS.recordError(e);
+            System.out.println("Failed to add investment.");
+            return false;
+        }
+    }
+
+    /**
+     * Adds many investments in one batch: each is validated like {@link #addInvestment}, and the valid ones
+     * are written through one buffered writer, skipping IDs that already exist.
+     * @param investments Assets to add
+     * @return Counts of accepted and rejected assets
+     */
+    public ImportResult addInvestments(Iterable<Asset> investments) {
+        return addInvestments(investments, DEFAULT_FLUSH_RECORDS);
+    }
+
+    /**
+     * Adds many investments in one batch.
+     * @param investments Assets to add
+     * @param flushRecords Number of records written between flushes
+     * @return Counts of accepted and rejected assets
+     */
+    public ImportResult addInvestments(Iterable<Asset> investments, int flushRecords) {
+        ImportResult result = new ImportResult();
+        addInvestments(visitor -> {
+            for (Asset investment : investments) {
+                String rejection = rejectionReason(investment);
+                if (rejection == null) {
+                    visitor.visit(investment);
+                } else {
+                    result.reject(investment == null ? "null" : "ID " + investment.getId(), rejection);
+                }
+            }
+        }, flushRecords, result);
+        return result;
+    }
+
+    /**
+     * Writes already validated investments in one batch, recording duplicates and the outcome in the result.
+     * @param investments Valid assets to add
+     * @param flushRecords Number of records written between flushes
+     * @param result Result to complete
+     */
+    void addInvestments(AssetSource investments, int flushRecords, ImportResult result) {
+        try {
+            int saved = repository.saveAllIfAbsent(investments, flushRecords,
+                    duplicate -> result.reject("ID " + duplicate.getId(), "Investment ID already exists."));
+            result.accept(saved);
+            System.out.println("Imported " + result.accepted() + " investments, rejected " + result.rejected() + ".");
+        } catch (IOException | UncheckedIOException e) {
+            ERRORS.recordError(e);
+            result.fail();
+            System.out.println("Failed to import investments.");
+        }
+    }
+
+    /**
+     * Removes an investment by its ID.
+     * @param id The ID of the asset to remove
+     * @return true if removed, false otherwise
+     */
+    public boolean removeInvestmentById(String id) {
+        try {
+            boolean removed = repository.delete(id);
+            if (removed) {
+                System.out.println("Investment removed successfully.");
+            } else {
+                System.out.println("Investment ID not found.");
+            }
+            return removed;
+        } catch (IOException e) {
+            ERRORS.recordError(e);
+            System.out.println("Error while removing investment.");
+            return false;
+        }
+    }
+
+    /**
+     * Edits an existing investment.
+     * @param id Asset ID to edit
+     * @param newName New name
+     * @param newValue New value
+     * @param newType New type
+     * @return true if edited, false otherwise
+     */
+    public boolean editInvestmentById(String id, String newName, String newValue, String newType) {
+        Asset updated = new Asset(id, newName, newValue, newType);
+        if (!updated.hasValidValue()) {
+            System.out.println("Invalid investment value.");
+            return false;
+        }
+        if (!isStorable(updated)) {
+            System.out.println("Investment ID and name must not contain commas or line breaks.");
+            return false;
+        }
+        try {
+            boolean found = repository.update(updated);
+            if (found) {
+                System.out.println("Investment updated successfully.");
+            } else {
+                System.out.println("Investment ID not found.");
+            }
+            return found;
+        } catch (IOException e) {
+            ERRORS.recordError(e);
+            System.out.println("Error while editing investment.");
+            return false;
+        }
+    }
+
+    /**
+     * Checks the running zakat totals against a full recalculation, repairing them if they disagree.
+     * @return true if the running totals were correct
+     */
+    public boolean verifyZakatTotals() {
+        try {
+            if (repository.verifyTotals()) {
+                System.out.println("Zakat totals verified.");
+                return true;
+            }
+            System.out.println("Zakat totals did not match a full recalculation and were rebuilt.");
+            return false;
+        } catch (IOException e) {
+            ERRORS.recordError(e);
+            System.out.println("Failed to verify zakat totals.");
+            return false;
+        }
+    }
+
+    /**
+     * Applies the checks every new investment must pass.
+     * @param investment Asset to check
+     * @return Message explaining why the asset is rejected, or null if it is valid
+     */
+    static String rejectionReason(Asset investment) {
+        if (investment == null || investment.toFileString().isBlank()) {
+            return "Invalid investment data.";
+        }
+        if (!investment.hasValidValue()) {
+            return "Invalid investment value.";
+        }
+        if (!isStorable(investment)) {
+            return "Investment ID and name must not contain commas or line breaks.";
+        }
+        return null;
+    }
+
+    /**
+     * Checks that an asset survives the comma-separated text log: the ID and name may not hold
+     * commas, and no field may hold a line break.
+     * @param asset Asset to check
+     * @return true if the asset can be written to the log
+     */
+    private static boolean isStorable(Asset asset) {
+        return asset.getId().indexOf(',') < 0 && asset.getName().indexOf(',') < 0
+                && asset.toFileString().indexOf('\n') < 0 && asset.toFileString().indexOf('\r') < 0;
+    }
+}
+
+/**
+ * Outcome of a batch import: how many assets were accepted and rejected, with the first few reasons.
+ */
+final class ImportResult {
+    private static final int MAX_REPORTED = 20;
+
+    private int accepted;
+    private int rejected;
+    private boolean failed;
+    private final List<String> rejections = new ArrayList<>();
+
+    /**
+     * @param count Number of assets saved
+     */
+    void accept(int count) {
+        accepted += count;
+    }
+
+    /**
+     * @param where Row or asset rejected
+     * @param reason Why it was rejected
+     */
+    void reject(String where, String reason) {
+        rejected++;
+        if (rejections.size() < MAX_REPORTED) {
+            rejections.add(where + ": " + reason);
+        }
+    }
+
+    /**
+     * Marks the import as stopped by an I/O error.
+     */
+    void fail() {
+        failed = true;
+    }
+
+    /**
+     * @return Number of assets saved
+     */
+    public int accepted() {
+        return accepted;
+    }
+
+    /**
+     * @return Number of rows or assets rejected
+     */
+    public int rejected() {
+        return rejected;
+    }
+
+    /**
+     * @return true if an I/O error stopped the import; assets accepted before it stay saved
+     */
+    public boolean failed() {
+        return failed;
+    }
+
+    /**
+     * @return Reasons for the first rejections, at most 20
+     */
+    public List<String> rejections() {
+        return rejections;
+    }
+
+    @Override
+    public String toString() {
+        return accepted + " accepted, " + rejected + " rejected" + (failed ? ", failed" : "");
+    }
+}
+
+/**
+ * Imports assets in bulk from a CSV file with {@code id,name,value,type} rows, such as a broker export.
+ * An optional header row starting with {@code id} is skipped, as are blank lines. Rows are read from the
+ * memory-mapped file one at a time and saved in one batch through {@link InvestmentService#addInvestments}.
+ * Fields are plain comma-separated text: quoting is not supported, which is enough because IDs and names
+ * may not contain commas and the type, the last field, may.
+ */
+class AssetCsvImporter {
+    private final InvestmentService service;
+    private final int flushRecords;
+
+    /**
+     * @param service Service of the portfolio to import into
+     * @param flushRecords Number of records written between flushes
+     */
+    public AssetCsvImporter(InvestmentService service, int flushRecords) {
+        this.service = service;
+        this.flushRecords = flushRecords;
+    }
+
+    /**
+     * Imports a CSV file.
+     * @param file CSV file to read
+     * @return Counts of accepted and rejected rows
+     */
+    public ImportResult importFile(Path file) {
+        ImportResult result = new ImportResult();
+        if (!Files.exists(file)) {
+            System.out.println("Import file not found: " + file);
+            result.fail();
+            return result;
+        }
+        service.addInvestments(visitor -> {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedRecordReader record = new MappedRecordReader(channel, 0, channel.size(), true);
+                int line = 0;
+                while (record.next()) {
+                    line++;
+                    if (record.isBlank()) {
+                        continue;
+                    }
+                    if (record.split(4) < 4) {
+                        result.reject("line " + line, "Expected id,name,value,type.");
+                        continue;
+                    }
+                    if (line == 1 && record.field(0).equalsIgnoreCase("id")) {
+                        continue;
+                    }
+                    long value = record.minorField(2);
+                    Asset asset = value == Money.INVALID
+                            ? new Asset(record.field(0), record.field(1), record.field(2), record.field(3))
+                            : new Asset(record.field(0), record.field(1), value, record.field(3));
+                    String rejection = InvestmentService.rejectionReason(asset);
+                    if (rejection == null) {
+                        visitor.visit(asset);
+                    } else {
+                        result.reject("line " + line, rejection);
+                    }
+                }
+            }
+        }, flushRecords, result);
+        return result;
+    }
+
+    /**
+     * Command-line entry point: {@code AssetCsvImporter <email> <file.csv> [flushRecords]}.
+     * @param args Email of the portfolio owner, CSV file, and optionally the flush size
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: AssetCsvImporter <email> <file.csv> [flushRecords]");
+            return;
+        }
+        int flushRecords = args.length > 2 ? Integer.parseInt(args[2]) : InvestmentService.DEFAULT_FLUSH_RECORDS;
+        InvestmentService service = new InvestmentService(new InvestmentRepository(args[0]));
+        ImportResult result = new AssetCsvImporter(service, flushRecords).importFile(Paths.get(args[1]));
+        for (String rejection : result.rejections()) {
+            System.out.println("  " + rejection);
+        }
+    }
+}
+
+/**
+ * Calculates zakat for a list of assets by the {@link ZakatRules}, with the hawl taken as complete.
+ * Sums are exact: they run over minor units and only the final share is rounded (half-up).
+ */
+class ZakatCalculator {
+    private final ZakatRules rules;
+
+    /**
+     * Constructs a calculator applying the shared rules.
+     */
+    public ZakatCalculator() {
+        this(ZakatRules.shared());
+    }
+
+    /**
+     * Constructs a calculator applying the given rules.
+     * @param rules Zakat rules
+     */
+    public ZakatCalculator(ZakatRules rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Estimates zakat owed from a list of assets.
+     * @param assets List of user's assets
+     * @return Calculated zakat amount
+     */
+    public double estimateZakat(List<Asset> assets) {
+        return estimateZakatMinor(assets) / 100.0;
+    }
+
+    /**
+     * Estimates zakat owed from a list of assets in minor units.
+     * @param assets List of user's assets
+     * @return Calculated zakat amount in minor units
+     */
+    public long estimateZakatMinor(List<Asset> assets) {
+        try {
+            return estimateZakatMinor(AssetSource.of(assets));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Estimates zakat owed in minor units, reading the assets one at a time.
+     * @param assets Source of the user's assets
+     * @return Calculated zakat amount in minor units
+     * @throws IOException If reading the assets fails
+     */
+    public long estimateZakatMinor(AssetSource assets) throws IOException {
+        Map<String, Long> byType = new HashMap<>();
+        assets.forEach(asset -> {
+            if (asset.hasValidValue()) {
+                byType.merge(asset.getType(), asset.getValueMinor(), Math::addExact);
+            } else {
+                System.out.println("Skipping invalid asset value for: " + asset.getName());
+            }
+        });
+        return rules.assess(byType, null, null).dueMinor();
+    }
+}
+
+/**
+ * Zakat rules per asset type. Each type has a rate in basis points, zero for an exempt type, and says
+ * whether it is due only once a hawl, a lunar year of {@value #HAWL_DAYS} days, has passed since the
+ * investor's wealth reached the nisab. Types without a rule of their own follow the fallback rule,
+ * {@value #STANDARD_RATE_BASIS_POINTS} basis points after a hawl.
+ * The nisab is the value of {@value #GOLD_NISAB_GRAMS} g of gold or {@value #SILVER_NISAB_GRAMS} g of silver.
+ * Zakat is due only once the zakatable wealth, all non-exempt types together, reaches it; without a metal
+ * price the nisab is zero.
+ * Rules are compiled into flat tables indexed by {@link TypeDictionary} code, so a columnar portfolio is
+ * assessed in one branch-free pass summing its value column by type code, followed by a few multiplications
+ * per type.
+ */
+final class ZakatRules {
+    static final int HAWL_DAYS = 354;
+    static final int GOLD_NISAB_GRAMS = 85;
+    static final int SILVER_NISAB_GRAMS = 595;
+    static final long STANDARD_RATE_BASIS_POINTS = 250;
+
+    /**
+     * Metal whose weight sets the nisab.
+     */
+    enum NisabStandard {
+        GOLD(GOLD_NISAB_GRAMS),
+        SILVER(SILVER_NISAB_GRAMS);
+
+        final int grams;
+
+        NisabStandard(int grams) {
+            this.grams = grams;
+        }
+    }
+
+    private final Map<String, Rule> rules;
+    private final Rule fallback;
+    private final long nisabMinor;
+
+    private ZakatRules(Map<String, Rule> rules, Rule fallback, long nisabMinor) {
+        this.rules = rules;
+        this.fallback = fallback;
+        this.nisabMinor = nisabMinor;
+    }
+
+    /**
+     * The rules used unless others are given: those in the file {@code -Dinvestmate.zakat.rules} if set,
+     * otherwise the {@link #defaults()}, with the nisab in {@code -Dinvestmate.zakat.nisab} (gold by default)
+     * priced per gram by {@code -Dinvestmate.zakat.goldPrice} or {@code -Dinvestmate.zakat.silverPrice}.
+     * @return The shared rules
+     */
+    static ZakatRules shared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * Holds the shared rules so the rules file is only read when first needed.
+     */
+    private static final class Shared {
+        static final ZakatRules INSTANCE = create();
+
+        private static ZakatRules create() {
+            Builder builder = defaultRules();
+            String file = System.getProperty("investmate.zakat.rules");
+            if (file != null) {
+                try {
+                    builder = load(Paths.get(file));
+                } catch (IOException | IllegalArgumentException e) {
+                    System.out.println("Could not read zakat rules from " + file + ", using the defaults: " + e.getMessage());
+                }
+            }
+            NisabStandard standard = NisabStandard.valueOf(System.getProperty("investmate.zakat.nisab", "gold").toUpperCase(Locale.ROOT));
+            long price = Money.parseMinor(System.getProperty(
+                    standard == NisabStandard.GOLD ? "investmate.zakat.goldPrice" : "investmate.zakat.silverPrice", "0"));
+            if (price == Money.INVALID || price < 0) {
+                System.out.println("Invalid " + standard.name().toLowerCase(Locale.ROOT) + " price, zakat is assessed without a nisab.");
+                price = 0;
+            }
+            return builder.nisab(standard, price).build();
+        }
+    }
+
+    /**
+     * @return The default rules: real estate exempt, every other type at the standard rate after a hawl, no nisab
+     */
+    static ZakatRules defaults() {
+        return defaultRules().build();
+    }
+
+    private static Builder defaultRules() {
+        return new Builder().exempt("real-estate");
+    }
+
+    /**
+     * Reads rules from a file of {@code type,rate[,nohawl]} lines, the rate a percentage such as {@code 2.5}
+     * or the word {@code exempt}; the type {@code *} sets the fallback rule. Blank lines and lines starting
+     * with {@code #} are skipped.
+     * @param file Rules file
+     * @return Builder holding the rules, with no nisab yet
+     * @throws IOException If reading fails
+     * @throws IllegalArgumentException If a line is malformed
+     */
+    static Builder load(Path file) throws IOException {
+        Builder builder = new Builder();
+        int number = 0;
+        for (String line : Files.readAllLines(file)) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s*,\\s*");
+            if (fields.length < 2 || fields.length > 3 || (fields.length == 3 && !fields[2].equalsIgnoreCase("nohawl"))) {
+                throw new IllegalArgumentException("Line " + number + ": expected type,rate[,nohawl]");
+            }
+            long basisPoints = fields[1].equalsIgnoreCase("exempt") ? 0 : Money.parseMinor(fields[1]);
+            if (basisPoints == Money.INVALID || basisPoints < 0 || basisPoints > 10_000) {
+                throw new IllegalArgumentException("Line " + number + ": invalid rate " + fields[1]);
+            }
+            builder.rate(fields[0], basisPoints, fields.length < 3);
+        }
+        return builder;
+    }
+
+    /**
+     * @return Nisab in minor units, zero if none applies
+     */
+    public long nisabMinor() {
+        return nisabMinor;
+    }
+
+    /**
+     * @param type Asset type, in any case
+     * @return Rate of the type in basis points, zero if exempt
+     */
+    public long rateOf(String type) {
+        return rule(type).basisPoints;
+    }
+
+    /**
+     * Assesses a portfolio's running totals with the hawl taken as complete.
+     * @param totals Totals of the portfolio
+     * @return The assessment
+     */
+    public ZakatAssessment assess(PortfolioTotals totals) {
+        return assess(totals.byType(), null, null);
+    }
+
+    /**
+     * Assesses a portfolio's running totals, which costs one rule lookup per asset type.
+     * @param totals Totals of the portfolio
+     * @param hawlStart Day the investor's wealth reached the nisab, or null if unknown, taking the hawl as complete
+     * @param asOf Day of the assessment
+     * @return The assessment
+     */
+    public ZakatAssessment assess(PortfolioTotals totals, LocalDate hawlStart, LocalDate asOf) {
+        return assess(totals.byType(), hawlStart, asOf);
+    }
+
+    /**
+     * Assesses per-type subtotals.
+     * @param byType Value per asset type in minor units
+     * @param hawlStart Day the investor's wealth reached the nisab, or null if unknown, taking the hawl as complete
+     * @param asOf Day of the assessment, unused if hawlStart is null
+     * @return The assessment
+     */
+    public ZakatAssessment assess(Map<String, Long> byType, LocalDate hawlStart, LocalDate asOf) {
+        Table table = new Table(byType.size());
+        long[] sums = new long[byType.size()];
+        int code = 0;
+        for (Map.Entry<String, Long> type : byType.entrySet()) {
+            table.set(code, rule(type.getKey()));
+            sums[code++] = type.getValue();
+        }
+        return assess(sums, table, hawlComplete(hawlStart, asOf));
+    }
+
+    /**
+     * Assesses a columnar portfolio in one pass over its value and type columns.
+     * @param portfolio Portfolio to assess
+     * @param hawlStart Day the investor's wealth reached the nisab, or null if unknown, taking the hawl as complete
+     * @param asOf Day of the assessment, unused if hawlStart is null
+     * @return The assessment
+     */
+    public ZakatAssessment assess(ColumnarPortfolio portfolio, LocalDate hawlStart, LocalDate asOf) {
+        return assess(portfolio.sumByType(), compile(portfolio.types()), hawlComplete(hawlStart, asOf));
+    }
+
+    /**
+     * Assesses many investors at once, as at year-end. A type dictionary shared by several portfolios
+     * is compiled only once.
+     * @param portfolios Portfolios to assess
+     * @param hawlStarts For each portfolio, the day the investor's wealth reached the nisab, or null if unknown
+     * @param asOf Day of the assessment
+     * @return Assessments in the order of the portfolios
+     */
+    public ZakatAssessment[] assessAll(List<ColumnarPortfolio> portfolios, List<LocalDate> hawlStarts, LocalDate asOf) {
+        if (hawlStarts.size() != portfolios.size()) {
+            throw new IllegalArgumentException("Expected " + portfolios.size() + " hawl start days, got " + hawlStarts.size());
+        }
+        ZakatAssessment[] assessments = new ZakatAssessment[portfolios.size()];
+        TypeDictionary compiledFor = null;
+        Table table = null;
+        for (int i = 0; i < assessments.length; i++) {
+            ColumnarPortfolio portfolio = portfolios.get(i);
+            if (portfolio.types() != compiledFor) {
+                compiledFor = portfolio.types();
+                table = compile(compiledFor);
+            }
+            assessments[i] = assess(portfolio.sumByType(), table, hawlComplete(hawlStarts.get(i), asOf));
+        }
+        return assessments;
+    }
+
+    /**
+     * Resolves the rule of every type in a dictionary into tables indexed by type code.
+     * @param types Type dictionary of a portfolio
+     * @return Rule tables
+     */
+    Table compile(TypeDictionary types) {
+        Table table = new Table(types.size());
+        for (int code = 0; code < types.size(); code++) {
+            table.set(code, rule(types.decode(code)));
+        }
+        return table;
+    }
+
+    /**
+     * Weighs per-type sums by the rule tables: masks instead of branches pick the zakatable types and
+     * those whose hawl has passed, and the due amount is rounded half-up once, on the whole.
+     */
+    private ZakatAssessment assess(long[] sums, Table table, boolean hawlComplete) {
+        long afterHawl = hawlComplete ? 1 : 0;
+        long zakatable = 0;
+        long weighted = 0;
+        for (int code = 0; code < sums.length; code++) {
+            zakatable = Math.addExact(zakatable, sums[code] * table.zakatable[code]);
+            long due = 1 - table.hawl[code] + table.hawl[code] * afterHawl;
+            weighted = Math.addExact(weighted, Math.multiplyExact(sums[code], table.basisPoints[code] * due));
+        }
+        boolean reached = zakatable > 0 && zakatable >= nisabMinor;
+        long dueMinor = reached ? Math.max(0, Math.floorDiv(Math.addExact(weighted, 5_000), 10_000)) : 0;
+        return new ZakatAssessment(zakatable, nisabMinor, dueMinor, reached, hawlComplete);
+    }
+
+    private static boolean hawlComplete(LocalDate hawlStart, LocalDate asOf) {
+        return hawlStart == null || !asOf.isBefore(hawlStart.plusDays(HAWL_DAYS));
+    }
+
+    /**
+     * Looks a type up as given first, so the usual lower-case types cost one map lookup and no copy.
+     * Nothing is cached per type: types come from user input, and remembering each would grow without bound.
+     */
+    private Rule rule(String type) {
+        Rule rule = rules.get(type);
+        return rule != null ? rule : rules.getOrDefault(type.toLowerCase(Locale.ROOT), fallback);
+    }
+
+    /**
+     * Rate and hawl requirement of one asset type.
+     */
+    private static final class Rule {
+        final long basisPoints;
+        final boolean hawl;
+
+        Rule(long basisPoints, boolean hawl) {
+            this.basisPoints = basisPoints;
+            this.hawl = hawl;
+        }
+    }
+
+    /**
+     * Rules resolved for the codes of one type dictionary, as 0/1 masks and rates.
+     */
+    static final class Table {
+        final long[] basisPoints;
+        final long[] zakatable;
+        final long[] hawl;
+
+        Table(int types) {
+            basisPoints = new long[types];
+            zakatable = new long[types];
+            hawl = new long[types];
+        }
+
+        private void set(int code, Rule rule) {
+            basisPoints[code] = rule.basisPoints;
+            zakatable[code] = rule.basisPoints > 0 ? 1 : 0;
+            hawl[code] = rule.hawl ? 1 : 0;
+        }
+    }
+
+    /**
+     * Collects rules per type; later rules for a type replace earlier ones.
+     */
+    static final class Builder {
+        private final Map<String, Rule> rules = new HashMap<>();
+        private Rule fallback = new Rule(STANDARD_RATE_BASIS_POINTS, true);
+        private long nisabMinor;
+
+        /**
+         * Sets the rule of a type.
+         * @param type Asset type, matched in any case; {@code *} sets the fallback rule
+         * @param basisPoints Rate in basis points, 0 to exempt the type
+         * @param hawl Whether zakat on the type is due only after a hawl
+         * @return This builder
+         */
+        public Builder rate(String type, long basisPoints, boolean hawl) {
+            if (basisPoints < 0 || basisPoints > 10_000) {
+                throw new IllegalArgumentException("Rate must be between 0 and 10000 basis points: " + basisPoints);
+            }
+            Rule rule = new Rule(basisPoints, hawl);
+            if (type.equals("*")) {
+                fallback = rule;
+            } else {
+                rules.put(type.toLowerCase(Locale.ROOT), rule);
+            }
+            return this;
+        }
+
+        /**
+         * Exempts a type from zakat.
+         * @param type Asset type
+         * @return This builder
+         */
+        public Builder exempt(String type) {
+            return rate(type, 0, false);
+        }
+
+        /**
+         * Sets the nisab from the price of its metal.
+         * @param standard Metal the nisab is weighed in
+         * @param pricePerGramMinor Price of one gram in minor units, 0 for no nisab
+         * @return This builder
+         */
+        public Builder nisab(NisabStandard standard, long pricePerGramMinor) {
+            nisabMinor = Math.multiplyExact(pricePerGramMinor, standard.grams);
+            return this;
+        }
+
+        /**
+         * @return The rules
+         */
+        public ZakatRules build() {
+            return new ZakatRules(new HashMap<>(rules), fallback, nisabMinor);
+        }
+    }
+}
+
+/**
+ * Outcome of assessing one portfolio against the {@link ZakatRules}.
+ */
+final class ZakatAssessment {
+    private final long zakatableMinor;
+    private final long nisabMinor;
+    private final long dueMinor;
+    private final boolean nisabReached;
+    private final boolean hawlComplete;
+
+    ZakatAssessment(long zakatableMinor, long nisabMinor, long dueMinor, boolean nisabReached, boolean hawlComplete) {
+        this.zakatableMinor = zakatableMinor;
+        this.nisabMinor = nisabMinor;
+        this.dueMinor = dueMinor;
+        this.nisabReached = nisabReached;
+        this.hawlComplete = hawlComplete;
+    }
+
+    /**
+     * @return Value of the non-exempt assets in minor units
+     */
+    public long zakatableMinor() {
+        return zakatableMinor;
+    }
+
+    /**
+     * @return Nisab the zakatable value was compared with, in minor units
+     */
+    public long nisabMinor() {
+        return nisabMinor;
+    }
+
+    /**
+     * @return Zakat due in minor units
+     */
+    public long dueMinor() {
+        return dueMinor;
+    }
+
+    /**
+     * @return Whether the zakatable value reached the nisab
+     */
+    public boolean nisabReached() {
+        return nisabReached;
+    }
+
+    /**
+     * @return Whether a hawl had passed, so that types requiring one were assessed
+     */
+    public boolean hawlComplete() {
+        return hawlComplete;
+    }
+}
+
+/**
+ * Buffered report output over an NIO channel, shared by the report generators and the {@link ReportExporter}s.
+ * Text is collected in one large reusable character buffer and encoded into one reusable byte buffer,
+ * so a report of any size is written in 64 KB writes; amounts are formatted straight into the buffer
+ * without boxing or temporary strings.
+ * Reports are created under per-user, timestamped names so that concurrent users never overwrite
+ * each other's files.
+ */
+final class ReportWriter implements Closeable {
+    private static final int BUFFER_CHARS = 1 << 16;
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    private final Path file;
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final StringBuilder chars = new StringBuilder(BUFFER_CHARS + 256);
+    private char[] encoding = new char[BUFFER_CHARS + 256];
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_CHARS * 2);
+    private long written;
+
+    /**
+     * @param file File behind the channel, or null
+     * @param channel Destination of the encoded text
+     * @param charset Encoding of the text; characters it cannot encode are replaced
+     */
+    ReportWriter(Path file, WritableByteChannel channel, Charset charset) {
+        this.file = file;
+        this.channel = channel;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Creates a new report file, see {@link #createFile}, and opens a writer on it in the platform encoding.
+     * @param directory Directory for the report
+     * @param base Kind of report, e.g. {@code zakat_report}
+     * @param userEmail Owner of the report, or null to leave the user out of the name
+     * @param extension File extension without the dot
+     * @return Writer for the new file
+     * @throws IOException If the file cannot be created
+     */
+    static ReportWriter create(Path directory, String base, String userEmail, String extension) throws IOException {
+        Path file = createFile(directory, base, userEmail, extension);
+        return new ReportWriter(file, FileChannel.open(file, StandardOpenOption.WRITE), Charset.defaultCharset());
+    }
+
+    /**
+     * Creates a new, empty report file named {@code <base>_<user>_<timestamp>.<extension>}, adding a counter
+     * if that name is already taken.
+     * @param directory Directory for the report
+     * @param base Kind of report, e.g. {@code zakat_report}
+     * @param userEmail Owner of the report, or null to leave the user out of the name
+     * @param extension File extension without the dot
+     * @return The new file
+     * @throws IOException If the file cannot be created
+     */
+    static Path createFile(Path directory, String base, String userEmail, String extension) throws IOException {
+        StringBuilder name = new StringBuilder(base);
+        if (userEmail != null) {
+            name.append('_').append(userEmail.replaceAll("@", "_at_").replaceAll("[^A-Za-z0-9._-]", "_"));
+        }
+        name.append('_').append(LocalDateTime.now().format(TIMESTAMP));
+        for (int attempt = 1; ; attempt++) {
+            Path file = directory.resolve(name + (attempt > 1 ? "-" + attempt : "") + "." + extension);
+            try {
+                return Files.createFile(file);
+            } catch (FileAlreadyExistsException e) {
+                // another report of the same user in the same millisecond; try the next name
+            }
+        }
+    }
+
+    /**
+     * @return The report file, or null if the writer was not opened on one
+     */
+    Path file() {
+        return file;
+    }
+
+    /**
+     * @return Number of bytes written so far, counting any still buffered
+     * @throws IOException If the buffer cannot be written
+     */
+    long position() throws IOException {
+        drain();
+        return written;
+    }
+
+    /**
+     * Writes any buffered text to the channel, leaving it open.
+     * @throws IOException If writing fails
+     */
+    void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     * @param text Text to write
+     * @return This writer
+     * @throws IOException If the buffer is full and cannot be written
+     */
+    ReportWriter append(CharSequence text) throws IOException {
+        chars.append(text);
+        return drainIfFull();
+    }
+
+    /**
+     * @param c Character to write
+     * @return This writer
+     * @throws IOException If the buffer is full and cannot be written
+     */
+    ReportWriter append(char c) throws IOException {
+        chars.append(c);
+        return drainIfFull();
+    }
+
+    /**
+     * @param minor Amount in minor units, written with two fraction digits
+     * @return This writer
+     * @throws IOException If the buffer is full and cannot be written
+     */
+    ReportWriter appendMoney(long minor) throws IOException {
+        Money.appendTo(chars, minor);
+        return drainIfFull();
+    }
+
+    /**
+     * @param asset Asset whose value to write: the amount, or the original text if it is not a valid amount
+     * @return This writer
+     * @throws IOException If the buffer is full and cannot be written
+     */
+    ReportWriter appendValue(Asset asset) throws IOException {
+        if (asset.hasValidValue()) {
+            return appendMoney(asset.getValueMinor());
+        }
+        return append(asset.getValue());
+    }
+
+    /**
+     * @param asset Asset to write as {@code id,name,value,type}, like {@link Asset#toFileString()}
+     * @return This writer
+     * @throws IOException If the buffer is full and cannot be written
+     */
+    ReportWriter appendRecord(Asset asset) throws IOException {
+        chars.append(asset.getId()).append(',').append(asset.getName()).append(',');
+        appendValue(asset);
+        chars.append(',').append(asset.getType());
+        return drainIfFull();
+    }
+
+    /**
+     * Writes any buffered text and closes the file.
+     * @throws IOException If writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private ReportWriter drainIfFull() throws IOException {
+        if (chars.length() >= BUFFER_CHARS) {
+            drain();
+        }
+        return this;
+    }
+
+    /**
+     * Encodes the character buffer into the byte buffer chunk by chunk and writes it to the channel.
+     * The characters are copied to an array first, which lets the encoder take its array fast path.
+     */
+    private void drain() throws IOException {
+        if (encoding.length < chars.length()) {
+            encoding = new char[chars.length()];
+        }
+        chars.getChars(0, chars.length(), encoding, 0);
+        CharBuffer in = CharBuffer.wrap(encoding, 0, chars.length());
+        encoder.reset();
+        CoderResult result;
+        do {
+            result = encoder.encode(in, bytes, true);
+            writeBytes();
+        } while (result.isOverflow());
+        while (encoder.flush(bytes).isOverflow()) {
+            writeBytes();
+        }
+        writeBytes();
+        chars.setLength(0);
+    }
+
+    private void writeBytes() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            written += channel.write(bytes);
+        }
+        bytes.clear();
+    }
+}
+
+/**
+ * Generates a zakat compliance report and saves it to file.
+ */
+class ComplianceReport {
+    private static final Metrics.Histogram REPORTS = Metrics.SHARED.histogram("report.zakat");
+    private static final Metrics.Counter ERRORS = Metrics.SHARED.counter("report.errors");
+
+    private final Path directory;
+
+    /**
+     * Constructs a report generator writing to the working directory.
+     */
+    public ComplianceReport() {
+        this(Paths.get("."));
+    }
+
+    /**
+     * Constructs a report generator writing to the given directory.
+     * @param directory Directory for the report files
+     */
+    public ComplianceReport(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Writes zakat report to a file based on user's assets.
+     * @param assets List of user's assets
+     * @param zakatMinor Calculated zakat amount in minor units
+     */
+    public void generateReport(List<Asset> assets, long zakatMinor) {
+        generateReport(null, AssetSource.of(assets), zakatMinor);
+    }
+
+    /**
+     * Writes zakat report to a file, reading the assets one at a time.
+     * @param assets Source of the user's assets
+     * @param zakatMinor Calculated zakat amount in minor units
+     */
+    public void generateReport(AssetSource assets, long zakatMinor) {
+        generateReport(null, assets, zakatMinor);
+    }
+
+    /**
+     * Writes a user's zakat report to {@code zakat_report_<user>_<timestamp>.txt}, streaming the assets
+     * through a buffered writer.
+     * @param userEmail Owner of the report, or null to leave the user out of the file name
+     * @param assets Source of the user's assets
+     * @param zakatMinor Calculated zakat amount in minor units
+     * @return The report file, or null if it could not be written
+     */
+    public Path generateReport(String userEmail, AssetSource assets, long zakatMinor) {
+        long start = System.nanoTime();
+        try (ReportWriter writer = ReportWriter.create(directory, "zakat_report", userEmail, "txt")) {
+            writer.append("=== Zakat Report ===\nAssets:\n");
+            assets.forEach(asset -> writer.append("- ").append(asset.getName()).append(": ").appendValue(asset).append(" EGP\n"));
+            writer.append("Total Zakat Due: ").appendMoney(zakatMinor).append(" EGP\n");
+            System.out.println("Zakat report generated successfully: " + writer.file().getFileName());
+            return writer.file();
+        } catch (IOException e) {
+            ERRORS.recordError(e);
+            System.out.println("Error generating report.");
+            return null;
+        } finally {
+            REPORTS.recordSince(start);
+        }
+    }
+}
+/**
+ * Writes a portfolio export in one format.
+ * Exporters read the assets in a single pass and write as they go, so memory does not grow with the
+ * portfolio. Implementations are looked up by format in {@link ReportExporters}; further ones can be
+ * registered there or provided through {@link ServiceLoader}.
+ */
+interface ReportExporter {
+    /**
+     * @return Format names the exporter is selected by, in lower case
+     */
+    List<String> formats();
+
+    /**
+     * @return File extension without the dot
+     */
+    String extension();
+
+    /**
+     * @return MIME type of the export
+     */
+    default String contentType() {
+        return "application/octet-stream";
+    }
+
+    /**
+     * Writes the export.
+     * @param assets Source of the assets, read once
+     * @param out Destination; left open
+     * @throws IOException If reading the assets or writing fails
+     */
+    void export(AssetSource assets, WritableByteChannel out) throws IOException;
+}
+
+/**
+ * Registry of {@link ReportExporter}s by format name.
+ * Holds the built-in CSV, XLSX, PDF and paginated text exporters plus any found by {@link ServiceLoader}.
+ */
+final class ReportExporters {
+    private static final Map<String, ReportExporter> EXPORTERS = new ConcurrentHashMap<>();
+
+    static {
+        register(new CsvExporter());
+        register(new XlsxExporter());
+        register(new PdfExporter());
+        register(new PagedTextExporter());
+        try {
+            for (ReportExporter exporter : ServiceLoader.load(ReportExporter.class)) {
+                register(exporter);
+            }
+        } catch (ServiceConfigurationError e) {
+            System.out.println("Skipping report exporters that failed to load: " + e.getMessage());
+        }
+    }
+
+    private ReportExporters() {
+    }
+
+    /**
+     * Registers an exporter under all its format names, replacing any previous exporter of those names.
+     * @param exporter Exporter to register
+     */
+    static void register(ReportExporter exporter) {
+        for (String format : exporter.formats()) {
+            EXPORTERS.put(format.toLowerCase(Locale.ROOT), exporter);
+        }
+    }
+
+    /**
+     * @param format Format name, in any case
+     * @return The exporter for the format, or null if none is registered
+     */
+    static ReportExporter forFormat(String format) {
+        return EXPORTERS.get(format.trim().toLowerCase(Locale.ROOT));
+    }
+}
+
+/**
+ * RFC 4180 CSV: a header row, CRLF line endings, and fields quoted when they hold a comma, quote or
+ * line break, with quotes doubled. Values are plain decimal numbers. Encoded as UTF-8.
+ */
+final class CsvExporter implements ReportExporter {
+    public List<String> formats() {
+        return List.of("csv");
+    }
+
+    public String extension() {
+        return "csv";
+    }
+
+    public String contentType() {
+        return "text/csv; charset=utf-8";
+    }
+
+    public void export(AssetSource assets, WritableByteChannel out) throws IOException {
+        ReportWriter writer = new ReportWriter(null, out, StandardCharsets.UTF_8);
+        writer.append("Asset ID,Name,Value (EGP),Type\r\n");
+        assets.forEach(asset -> {
+            field(writer, asset.getId()).append(',');
+            field(writer, asset.getName()).append(',');
+            if (asset.hasValidValue()) {
+                writer.appendMoney(asset.getValueMinor());
+            } else {
+                field(writer, asset.getValue());
+            }
+            field(writer.append(','), asset.getType()).append("\r\n");
+        });
+        writer.flush();
+    }
+
+    /**
+     * Writes one field, quoting it only if needed.
+     * @param writer Destination
+     * @param text Field value
+     * @return The writer
+     * @throws IOException If writing fails
+     */
+    private static ReportWriter field(ReportWriter writer, String text) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            return writer.append(text);
+        }
+        writer.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                writer.append('"');
+            }
+            writer.append(c);
+        }
+        return writer.append('"');
+    }
+}
+
+/**
+ * Office Open XML workbook ({@code .xlsx}) written as a stream: each worksheet's XML is deflated straight
+ * into the zip as rows are produced, at the fastest compression level, with strings inlined rather than
+ * collected into a shared string table, so memory stays constant. Portfolios beyond a sheet's row limit continue on further sheets;
+ * the workbook parts that list the sheets are written last.
+ */
+final class XlsxExporter implements ReportExporter {
+    private static final int MAX_ROWS = 1_048_576;
+    private static final String MAIN_NS = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String PACKAGE_RELS_NS = "http://schemas.openxmlformats.org/package/2006/relationships";
+    private static final String DOCUMENT_RELS_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+
+    public List<String> formats() {
+        return List.of("xlsx", "excel");
+    }
+
+    public String extension() {
+        return "xlsx";
+    }
+
+    public String contentType() {
+        return "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+    }
+
+    public void export(AssetSource assets, WritableByteChannel out) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16));
+        zip.setLevel(Deflater.BEST_SPEED);
+        ReportWriter writer = new ReportWriter(null, Channels.newChannel(zip), StandardCharsets.UTF_8);
+        int[] sheets = {1};
+        int[] rows = {1};
+        startSheet(zip, writer, sheets[0]);
+        assets.forEach(asset -> {
+            if (rows[0] == MAX_ROWS) {
+                endSheet(zip, writer);
+                startSheet(zip, writer, ++sheets[0]);
+                rows[0] = 1;
+            }
+            writer.append("<row r=\"").append(Integer.toString(++rows[0])).append("\">");
+            text(writer, asset.getId());
+            text(writer, asset.getName());
+            if (asset.hasValidValue()) {
+                writer.append("<c><v>").appendMoney(asset.getValueMinor()).append("</v></c>");
+            } else {
+                text(writer, asset.getValue());
+            }
+            text(writer, asset.getType());
+            writer.append("</row>\n");
+        });
+        endSheet(zip, writer);
+        writePackageParts(zip, writer, sheets[0]);
+        zip.finish();
+        zip.flush();
+    }
+
+    private static void startSheet(ZipOutputStream zip, ReportWriter writer, int sheet) throws IOException {
+        zip.putNextEntry(new ZipEntry("xl/worksheets/sheet" + sheet + ".xml"));
+        writer.append(XML_DECLARATION).append("<worksheet xmlns=\"").append(MAIN_NS).append("\"><sheetData>\n");
+        writer.append("<row r=\"1\">");
+        for (String header : new String[] {"Asset ID", "Name", "Value (EGP)", "Type"}) {
+            text(writer, header);
+        }
+        writer.append("</row>\n");
+    }
+
+    private static void endSheet(ZipOutputStream zip, ReportWriter writer) throws IOException {
+        writer.append("</sheetData></worksheet>\n");
+        writer.flush();
+        zip.closeEntry();
+    }
+
+    /**
+     * Writes the content types, relationships and workbook parts that tie the sheets together.
+     */
+    private static void writePackageParts(ZipOutputStream zip, ReportWriter writer, int sheets) throws IOException {
+        zip.putNextEntry(new ZipEntry("[Content_Types].xml"));
+        writer.append(XML_DECLARATION)
+                .append("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">")
+                .append("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>")
+                .append("<Default Extension=\"xml\" ContentType=\"application/xml\"/>")
+                .append("<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>");
+        for (int i = 1; i <= sheets; i++) {
+            writer.append("<Override PartName=\"/xl/worksheets/sheet").append(Integer.toString(i))
+                    .append(".xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+        }
+        writer.append("</Types>\n").flush();
+        zip.closeEntry();
+
+        zip.putNextEntry(new ZipEntry("_rels/.rels"));
+        writer.append(XML_DECLARATION).append("<Relationships xmlns=\"").append(PACKAGE_RELS_NS).append("\">")
+                .append("<Relationship Id=\"rId1\" Type=\"").append(DOCUMENT_RELS_NS)
+                .append("/officeDocument\" Target=\"xl/workbook.xml\"/></Relationships>\n").flush();
+        zip.closeEntry();
+
+        zip.putNextEntry(new ZipEntry("xl/workbook.xml"));
+        writer.append(XML_DECLARATION).append("<workbook xmlns=\"").append(MAIN_NS)
+                .append("\" xmlns:r=\"").append(DOCUMENT_RELS_NS).append("\"><sheets>");
+        for (int i = 1; i <= sheets; i++) {
+            String id = Integer.toString(i);
+            writer.append("<sheet name=\"Portfolio").append(i > 1 ? " " + id : "").append("\" sheetId=\"").append(id)
+                    .append("\" r:id=\"rId").append(id).append("\"/>");
+        }
+        writer.append("</sheets></workbook>\n").flush();
+        zip.closeEntry();
+
+        zip.putNextEntry(new ZipEntry("xl/_rels/workbook.xml.rels"));
+        writer.append(XML_DECLARATION).append("<Relationships xmlns=\"").append(PACKAGE_RELS_NS).append("\">");
+        for (int i = 1; i <= sheets; i++) {
+            String id = Integer.toString(i);
+            writer.append("<Relationship Id=\"rId").append(id).append("\" Type=\"").append(DOCUMENT_RELS_NS)
+                    .append("/worksheet\" Target=\"worksheets/sheet").append(id).append(".xml\"/>");
+        }
+        writer.append("</Relationships>\n").flush();
+        zip.closeEntry();
+    }
+
+    /**
+     * Writes an inline string cell, escaping XML markup and dropping characters XML cannot hold.
+     */
+    private static void text(ReportWriter writer, String text) throws IOException {
+        writer.append("<c t=\"inlineStr\"><is><t xml:space=\"preserve\">");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                writer.append("&amp;");
+            } else if (c == '<') {
+                writer.append("&lt;");
+            } else if (c == '>') {
+                writer.append("&gt;");
+            } else if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') {
+                writer.append(c);
+            }
+        }
+        writer.append("</t></is></c>");
+    }
+}
+
+/**
+ * Exporter laying the portfolio out as fixed-width text pages: a title, a column header and up to
+ * {@value #ROWS_PER_PAGE} asset rows per page, followed by the page number.
+ * Subclasses decide how pages and lines are encoded.
+ */
+abstract class PagedExporter implements ReportExporter {
+    static final int ROWS_PER_PAGE = 60;
+    private static final int[] WIDTHS = {14, 32, 18, 14};
+    private static final char[] SPACES = " ".repeat(32).toCharArray();
+
+    public final void export(AssetSource assets, WritableByteChannel out) throws IOException {
+        PageSink sink = open(out);
+        StringBuilder line = new StringBuilder(128);
+        int[] pages = {0};
+        int[] rows = {0};
+        assets.forEach(asset -> {
+            if (rows[0] == 0) {
+                startPage(sink, ++pages[0], line);
+            }
+            line.setLength(0);
+            cell(line, asset.getId(), 0, false);
+            cell(line, asset.getName(), 1, false);
+            if (asset.hasValidValue()) {
+                int start = line.length();
+                Money.appendTo(line, asset.getValueMinor());
+                pad(line, start, 2, true);
+            } else {
+                cell(line, asset.getValue(), 2, true);
+            }
+            cell(line, asset.getType(), 3, false);
+            sink.writeLine(line);
+            if (++rows[0] == ROWS_PER_PAGE) {
+                sink.endPage(pages[0]);
+                rows[0] = 0;
+            }
+        });
+        boolean pageOpen = rows[0] > 0;
+        if (pages[0] == 0) {
+            startPage(sink, ++pages[0], line);
+            pageOpen = true;
+        }
+        if (pageOpen) {
+            sink.endPage(pages[0]);
+        }
+        sink.finish(pages[0]);
+    }
+
+    private static void startPage(PageSink sink, int page, StringBuilder line) throws IOException {
+        sink.beginPage(page);
+        line.setLength(0);
+        sink.writeLine(line.append("=== Financial Report ==="));
+        line.setLength(0);
+        sink.writeLine(line);
+        cell(line, "Asset ID", 0, false);
+        cell(line, "Name", 1, false);
+        cell(line, "Value (EGP)", 2, true);
+        cell(line, "Type", 3, false);
+        sink.writeLine(line);
+        line.setLength(0);
+        for (int width : WIDTHS) {
+            line.append("-".repeat(width - 1)).append(' ');
+        }
+        line.setLength(line.length() - 1);
+        sink.writeLine(line);
+    }
+
+    /**
+     * Appends a column, truncated or padded to its width.
+     */
+    private static void cell(StringBuilder line, String text, int column, boolean right) {
+        int start = line.length();
+        line.append(text, 0, Math.min(text.length(), WIDTHS[column] - 1));
+        pad(line, start, column, right);
+    }
+
+    /**
+     * Pads the column that starts at {@code start} to its width, on the left if right-aligned.
+     * The last column is left unpadded so lines carry no trailing spaces.
+     */
+    private static void pad(StringBuilder line, int start, int column, boolean right) {
+        if (column == WIDTHS.length - 1 && !right) {
+            return;
+        }
+        int padding = Math.max(0, WIDTHS[column] - 1 - (line.length() - start));
+        if (right) {
+            line.insert(start, SPACES, 0, padding);
+        } else {
+            line.append(SPACES, 0, padding);
+        }
+        line.append(' ');
+    }
+
+    /**
+     * Starts a document.
+     * @param out Destination channel
+     * @return Receiver of the document's pages, used for this export only
+     * @throws IOException If the document start cannot be written
+     */
+    abstract PageSink open(WritableByteChannel out) throws IOException;
+
+    /**
+     * Encodes the pages of one document.
+     */
+    interface PageSink {
+        void beginPage(int page) throws IOException;
+
+        void writeLine(CharSequence line) throws IOException;
+
+        void endPage(int page) throws IOException;
+
+        /**
+         * Ends the document and writes out anything buffered.
+         * @param pages Number of pages written
+         */
+        void finish(int pages) throws IOException;
+    }
+}
+
+/**
+ * Paginated plain text in the platform encoding, pages separated by form feeds.
+ */
+final class PagedTextExporter extends PagedExporter {
+    public List<String> formats() {
+        return List.of("txt", "text");
+    }
+
+    public String extension() {
+        return "txt";
+    }
+
+    public String contentType() {
+        return "text/plain; charset=" + Charset.defaultCharset().name();
+    }
+
+    PageSink open(WritableByteChannel out) {
+        ReportWriter writer = new ReportWriter(null, out, Charset.defaultCharset());
+        return new PageSink() {
+            public void beginPage(int page) throws IOException {
+                if (page > 1) {
+                    writer.append('\f');
+                }
+            }
+
+            public void writeLine(CharSequence line) throws IOException {
+                writer.append(line).append('\n');
+            }
+
+            public void endPage(int page) throws IOException {
+                writer.append("\nPage ").append(Integer.toString(page)).append('\n');
+            }
+
+            public void finish(int pages) throws IOException {
+                writer.flush();
+            }
+        };
+    }
+}
+
+/**
+ * PDF 1.4 document with one A4 page per layout page, set in the standard Courier font so the columns line up.
+ * Objects are written as the pages are produced; only their byte offsets are kept for the cross-reference
+ * table, and the page tree, whose children are known only at the end, is written last.
+ * Text is encoded as Latin-1 (WinAnsi); other characters become {@code ?}.
+ */
+final class PdfExporter extends PagedExporter {
+    private static final int CATALOG = 1;
+    private static final int PAGES = 2;
+    private static final int FONT = 3;
+    private static final int FIRST_PAGE_OBJECT = 4;
+    private static final int OBJECTS_PER_PAGE = 3;
+
+    public List<String> formats() {
+        return List.of("pdf");
+    }
+
+    public String extension() {
+        return "pdf";
+    }
+
+    public String contentType() {
+        return "application/pdf";
+    }
+
+    PageSink open(WritableByteChannel out) throws IOException {
+        return new Document(new ReportWriter(null, out, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * One PDF being written: its writer and the offsets of the objects written so far.
+     */
+    private static final class Document implements PageSink {
+        private final ReportWriter writer;
+        private long[] offsets = new long[64];
+        private long streamStart;
+
+        Document(ReportWriter writer) throws IOException {
+            this.writer = writer;
+            writer.append("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+            startObject(CATALOG).append("<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+            startObject(FONT).append("<< /Type /Font /Subtype /Type1 /BaseFont /Courier /Encoding /WinAnsiEncoding >>\nendobj\n");
+        }
+
+        public void beginPage(int page) throws IOException {
+            int content = contentObject(page);
+            startObject(content).append("<< /Length ").append(Integer.toString(content + 1)).append(" 0 R >>\nstream\n");
+            streamStart = writer.position();
+            writer.append("BT\n/F1 9 Tf\n12 TL\n36 800 Td\n");
+        }
+
+        public void writeLine(CharSequence line) throws IOException {
+            writer.append('(');
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == '(' || c == ')' || c == '\\') {
+                    writer.append('\\');
+                }
+                writer.append(c < 0x20 ? ' ' : c);
+            }
+            writer.append(") Tj T*\n");
+        }
+
+        public void endPage(int page) throws IOException {
+            writer.append("T*\n(Page ").append(Integer.toString(page)).append(") Tj\nET\n");
+            long length = writer.position() - streamStart;
+            writer.append("endstream\nendobj\n");
+            int content = contentObject(page);
+            startObject(content + 1).append(Long.toString(length)).append("\nendobj\n");
+            startObject(content + 2).append("<< /Type /Page /Parent 2 0 R /MediaBox [0 0 595 842]")
+                    .append(" /Resources << /Font << /F1 3 0 R >> >> /Contents ")
+                    .append(Integer.toString(content)).append(" 0 R >>\nendobj\n");
+        }
+
+        public void finish(int pages) throws IOException {
+            startObject(PAGES).append("<< /Type /Pages /Count ").append(Integer.toString(pages)).append(" /Kids [");
+            for (int page = 1; page <= pages; page++) {
+                writer.append(Integer.toString(contentObject(page) + 2)).append(" 0 R ");
+            }
+            writer.append("] >>\nendobj\n");
+            int objects = contentObject(pages + 1);
+            long xref = writer.position();
+            writer.append("xref\n0 ").append(Integer.toString(objects)).append("\n0000000000 65535 f \n");
+            for (int object = 1; object < objects; object++) {
+                String offset = Long.toString(offsets[object]);
+                for (int i = offset.length(); i < 10; i++) {
+                    writer.append('0');
+                }
+                writer.append(offset).append(" 00000 n \n");
+            }
+            writer.append("trailer\n<< /Size ").append(Integer.toString(objects)).append(" /Root 1 0 R >>\nstartxref\n")
+                    .append(Long.toString(xref)).append("\n%%EOF\n");
+            writer.flush();
+        }
+
+        private static int contentObject(int page) {
+            return FIRST_PAGE_OBJECT + (page - 1) * OBJECTS_PER_PAGE;
+        }
+
+        /**
+         * Records where an object starts and writes its header.
+         */
+        private ReportWriter startObject(int object) throws IOException {
+            if (object >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, Math.max(object + 1, offsets.length * 2));
+            }
+            offsets[object] = writer.position();
+            return writer.append(Integer.toString(object)).append(" 0 obj\n");
+        }
+    }
+}
+
+/**
+ * Generates a financial report and exports it in any format registered with {@link ReportExporters}:
+ * CSV, XLSX, PDF or paginated text.
+ */
+class FinancialReportGenerator {
+    private static final Metrics.Histogram REPORTS = Metrics.SHARED.histogram("report.financial");
+    private static final Metrics.Counter ERRORS = Metrics.SHARED.counter("report.errors");
+
+    private final Path directory;
+
+    /**
+     * Constructs a report generator writing to the working directory.
+     */
+    public FinancialReportGenerator() {
+        this(Paths.get("."));
+    }
+
+    /**
+     * Constructs a report generator writing to the given directory.
+     * @param directory Directory for the report files
+     */
+    public FinancialReportGenerator(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Generates a financial report for user's assets in selected format.
+     * @param assets List of user's assets
+     * @param format Desired export format, such as PDF, Excel, CSV or TXT
+     */
+    public void generateReport(List<Asset> assets, String format) {
+        generateReport(null, AssetSource.of(assets), format);
+    }
+
+    /**
+     * Generates a financial report in selected format, reading the assets one at a time.
+     * @param assets Source of the user's assets
+     * @param format Desired export format, such as PDF, Excel, CSV or TXT
+     */
+    public void generateReport(AssetSource assets, String format) {
+        generateReport(null, assets, format);
+    }
+
+    /**
+     * Generates a user's financial report in {@code financial_report_<user>_<timestamp>.<ext>} using the
+     * {@link ReportExporter} registered for the format, streaming the assets straight into the file.
+     * @param userEmail Owner of the report, or null to leave the user out of the file name
+     * @param assets Source of the user's assets
+     * @param format Desired export format; unknown formats are exported as CSV
+     * @return The report file, or null if it could not be written
+     */
+    public Path generateReport(String userEmail, AssetSource assets, String format) {
+        long start = System.nanoTime();
+        ReportExporter exporter = ReportExporters.forFormat(format);
+        if (exporter == null) {
+            exporter = ReportExporters.forFormat("csv");
+        }
+        Path file = null;
+        try {
+            file = ReportWriter.createFile(directory, "financial_report", userEmail, exporter.extension());
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                exporter.export(assets, channel);
+            }
+            System.out.println("Report exported as: " + file.getFileName());
+            return file;
         } catch (IOException e) {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                    // the partial file is left behind
+                }
+            }
+            ERRORS.recordError(e);
             System.out.println("Error generating financial report.");
+            return null;
+        } finally {
+            REPORTS.recordSince(start);
+        }
+    }
+}
+/**
+ * Headless year-end run of the zakat panel and the financial report for every account in the users file.
+ * The users file is streamed once; an email seen again (a later record replacing an earlier one) is only
+ * processed the first time. Portfolios are assessed on a bounded pool: when its queue is full the reading
+ * thread runs the next user itself, so reading never gets far ahead of the workers.
+ * Each user's zakat and financial reports go to a directory of its own under the output directory, fanned out
+ * over hashed bucket directories like the portfolios; the directory is written in full under a temporary name
+ * and then renamed into place, so it holds both reports or none. Every finished user is appended to {@code yearend.done},
+ * so a rerun over the same output directory skips them and resumes where the previous run stopped; users that
+ * failed are listed in {@code yearend.failed} and retried by the next run.
+ * <pre>
+ * java -cp bin YearEndBatchJob [output-dir] [format] [threads]
+ * </pre>
+ */
+class YearEndBatchJob {
+    static final String DONE_FILE = "yearend.done";
+    static final String FAILED_FILE = "yearend.failed";
+    private static final int PROGRESS_EVERY = 10_000;
+    private static final Metrics.Histogram USERS = Metrics.SHARED.histogram("yearend.user");
+    private static final Metrics.Counter FAILURES = Metrics.SHARED.counter("yearend.failures");
+
+    private final StorageLayout layout;
+    private final Path outputDirectory;
+    private final String format;
+    private final int threads;
+    private final ZakatRules rules;
+    private final LocalDate asOf;
+    private final PortfolioCache cache = new PortfolioCache(0);
+
+    /**
+     * Constructs a job over the users and portfolios of a storage layout.
+     * @param layout Storage root and layout of the users file and portfolios
+     * @param outputDirectory Directory for the reports and the progress files
+     * @param format Financial report format, such as PDF, Excel, CSV or TXT
+     * @param threads Number of worker threads
+     * @param rules Zakat rules to assess the portfolios by
+     * @param asOf Day of the assessment
+     */
+    public YearEndBatchJob(StorageLayout layout, Path outputDirectory, String format, int threads, ZakatRules rules, LocalDate asOf) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.layout = layout;
+        this.outputDirectory = outputDirectory;
+        this.format = format;
+        this.threads = threads;
+        this.rules = rules;
+        this.asOf = asOf;
+    }
+
+    /**
+     * Runs the year-end job for the configured storage root.
+     * @param args Output directory ({@code yearend-<year>} by default), report format (CSV by default)
+     *             and number of threads (one per core by default)
+     * @throws IOException If the users file or the progress files cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        LocalDate today = LocalDate.now();
+        Path output = Paths.get(args.length > 0 ? args[0] : "yearend-" + today.getYear());
+        String format = args.length > 1 ? args[1] : "csv";
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        Summary summary = new YearEndBatchJob(StorageLayout.SHARED, output, format, threads, ZakatRules.shared(), today).run();
+        System.out.println(summary);
+        if (summary.failed() > 0) {
+            System.out.println("Failed users are listed in " + output.resolve(FAILED_FILE) + "; run again to retry them.");
+        }
+    }
+
+    /**
+     * Processes every user not finished by an earlier run over the same output directory.
+     * @return Counts, total zakat and throughput of this run
+     * @throws IOException If the users file or the progress files cannot be read or written
+     */
+    public Summary run() throws IOException {
+        Files.createDirectories(outputDirectory);
+        Set<String> done = readDone();
+        Set<String> seen = new HashSet<>();
+        Queue<String> failures = new ConcurrentLinkedQueue<>();
+        AtomicInteger processed = new AtomicInteger();
+        LongAdder zakat = new LongAdder();
+        int skipped = 0;
+        int duplicates = 0;
+        long start = System.nanoTime();
+        AtomicInteger created = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 4), task -> {
+                    Thread thread = new Thread(task, "yearend-" + created.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        Path usersFile = layout.usersFile();
+        try (BufferedWriter doneLog = Files.newBufferedWriter(outputDirectory.resolve(DONE_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+             FileChannel users = FileChannel.open(usersFile, StandardOpenOption.READ)) {
+            try {
+                MappedRecordReader record = new MappedRecordReader(users, 0, users.size(), false);
+                while (record.next()) {
+                    if (record.split(3) != 3) {
+                        continue;
+                    }
+                    String email = record.field(0);
+                    String key = email.toLowerCase(Locale.ROOT);
+                    if (!seen.add(key)) {
+                        duplicates++;
+                        continue;
+                    }
+                    if (done.contains(key)) {
+                        skipped++;
+                        continue;
+                    }
+                    pool.execute(() -> {
+                        long started = System.nanoTime();
+                        try {
+                            long due = process(email);
+                            zakat.add(due);
+                            synchronized (doneLog) {
+                                doneLog.write(email + "," + due);
+                                doneLog.newLine();
+                                doneLog.flush();
+                            }
+                            int count = processed.incrementAndGet();
+                            if (count % PROGRESS_EVERY == 0) {
+                                System.out.printf("Processed %,d users (%,.0f users/s)%n", count, count / ((System.nanoTime() - start) / 1e9));
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            FAILURES.recordError(e);
+                            failures.add(email + "," + e);
+                        } finally {
+                            USERS.recordSince(started);
+                        }
+                    });
+                }
+            } finally {
+                pool.shutdown();
+                try {
+                    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the year-end workers");
+                }
+            }
+        }
+        Files.write(outputDirectory.resolve(FAILED_FILE), failures);
+        return new Summary(processed.get(), skipped, duplicates, failures.size(), zakat.sum(), System.nanoTime() - start);
+    }
+
+    /**
+     * Assesses one user's portfolio and writes the user's reports.
+     * The reports are written into a {@code .partial} directory next to the user's, which then replaces it
+     * in one rename, so a failed or interrupted attempt never leaves a user with half of the reports.
+     * @param email Email of the user
+     * @return Zakat due in minor units
+     * @throws IOException If the portfolio cannot be read or a report cannot be written
+     */
+    long process(String email) throws IOException {
+        InvestmentRepository repository = new InvestmentRepository(layout.portfolioFile(email), StorageFormat.TEXT, cache);
+        ZakatAssessment assessment = rules.assess(repository.totals(), null, asOf);
+        Path directory = userDirectory(email);
+        Path staging = Paths.get(directory + ".partial");
+        deleteDirectory(staging);
+        Files.createDirectories(staging);
+        if (new ComplianceReport(staging).generateReport(email, repository, assessment.dueMinor()) == null) {
+            throw new IOException("Zakat report not written");
+        }
+        if (new FinancialReportGenerator(staging).generateReport(email, repository, format) == null) {
+            throw new IOException("Financial report not written");
+        }
+        deleteDirectory(directory);
+        InvestmentRepository.moveAtomically(staging, directory);
+        return assessment.dueMinor();
+    }
+
+    /**
+     * Deletes a user's report directory, or a staging one, with the files in it.
+     * @param directory Directory to delete; missing is fine
+     * @throws IOException If a file cannot be deleted
+     */
+    private static void deleteDirectory(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> entries = Files.list(directory)) {
+            entries.forEach(files::add);
+        }
+        for (Path file : files) {
+            Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * @param email Email of a user
+     * @return Directory for the user's reports, in a hashed bucket under the output directory
+     */
+    Path userDirectory(String email) {
+        String name = email.replace("@", "_at_").replaceAll("[^A-Za-z0-9._+-]", "_");
+        if (name.startsWith(".")) {
+            name = "_" + name;
+        }
+        return layout.bucket(outputDirectory, name).resolve(name);
+    }
+
+    /**
+     * @return Lower-cased emails of the users a previous run finished
+     */
+    private Set<String> readDone() throws IOException {
+        Set<String> done = new HashSet<>();
+        Path file = outputDirectory.resolve(DONE_FILE);
+        if (!Files.exists(file)) {
+            return done;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comma = line.lastIndexOf(',');
+                if (comma > 0) {
+                    done.add(line.substring(0, comma).toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Outcome of one run.
+     */
+    static final class Summary {
+        private final int processed;
+        private final int skipped;
+        private final int duplicates;
+        private final int failed;
+        private final long zakatMinor;
+        private final long nanos;
+
+        Summary(int processed, int skipped, int duplicates, int failed, long zakatMinor, long nanos) {
+            this.processed = processed;
+            this.skipped = skipped;
+            this.duplicates = duplicates;
+            this.failed = failed;
+            this.zakatMinor = zakatMinor;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return Number of users processed by this run
+         */
+        public int processed() {
+            return processed;
+        }
+
+        /**
+         * @return Number of users skipped because an earlier run finished them
+         */
+        public int skipped() {
+            return skipped;
+        }
+
+        /**
+         * @return Number of superseded records for emails already seen
+         */
+        public int duplicates() {
+            return duplicates;
+        }
+
+        /**
+         * @return Number of users whose portfolio or reports failed
+         */
+        public int failed() {
+            return failed;
+        }
+
+        /**
+         * @return Zakat due by the users processed in this run, in minor units
+         */
+        public long zakatMinor() {
+            return zakatMinor;
+        }
+
+        /**
+         * @return Users processed per second
+         */
+        public double usersPerSecond() {
+            return processed / (nanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Year-end run: %,d users processed, %,d already done, %,d duplicate records, %,d failed;"
+                    + " zakat due %s EGP; %,.1f s (%,.0f users/s)",
+                    processed, skipped, duplicates, failed, Money.format(zakatMinor), nanos / 1e9, usersPerSecond());
+        }
+    }
+}
+
+/**
+ * Minimal JSON support for the HTTP API: flat request objects in, escaped strings out.
+ */
+final class Json {
+    private Json() {
+    }
+
+    /**
+     * Parses a JSON object whose values are strings, numbers, booleans or null.
+     * Numbers and booleans are returned as their literal text, null as a null value.
+     * @param text JSON text
+     * @return Members in document order
+     * @throws IllegalArgumentException If the text is not such an object
+     */
+    static Map<String, String> parseObject(String text) {
+        Map<String, String> members = new LinkedHashMap<>();
+        int[] at = {skipSpace(text, 0)};
+        expect(text, at, '{');
+        if (peek(text, at) == '}') {
+            at[0]++;
+        } else {
+            while (true) {
+                String name = parseString(text, at);
+                expect(text, at, ':');
+                members.put(name, parseValue(text, at));
+                char c = peek(text, at);
+                at[0]++;
+                if (c == '}') {
+                    break;
+                }
+                if (c != ',') {
+                    throw new IllegalArgumentException("Expected ',' or '}' at " + (at[0] - 1));
+                }
+            }
+        }
+        if (skipSpace(text, at[0]) != text.length()) {
+            throw new IllegalArgumentException("Unexpected content after the object at " + at[0]);
+        }
+        return members;
+    }
+
+    /**
+     * Appends a string as a quoted JSON string.
+     * @param out Destination
+     * @param text String to quote, or null for {@code null}
+     * @return The destination
+     */
+    static StringBuilder appendString(StringBuilder out, String text) {
+        if (text == null) {
+            return out.append("null");
+        }
+        out.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"');
+    }
+
+    private static String parseValue(String text, int[] at) {
+        char c = peek(text, at);
+        if (c == '"') {
+            return parseString(text, at);
+        }
+        int start = at[0];
+        while (at[0] < text.length() && "{}[],: \t\r\n\"".indexOf(text.charAt(at[0])) < 0) {
+            at[0]++;
+        }
+        String literal = text.substring(start, at[0]);
+        if (literal.equals("null")) {
+            return null;
+        }
+        if (literal.equals("true") || literal.equals("false") || literal.matches("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?")) {
+            return literal;
+        }
+        throw new IllegalArgumentException("Unsupported value at " + start);
+    }
+
+    private static String parseString(String text, int[] at) {
+        expect(text, at, '"');
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            if (at[0] >= text.length()) {
+                throw new IllegalArgumentException("Unterminated string");
+            }
+            char c = text.charAt(at[0]++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (at[0] >= text.length()) {
+                throw new IllegalArgumentException("Unterminated string");
+            }
+            char escape = text.charAt(at[0]++);
+            switch (escape) {
+                case '"':
+                case '\\':
+                case '/':
+                    value.append(escape);
+                    break;
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (at[0] + 4 > text.length()) {
+                        throw new IllegalArgumentException("Bad unicode escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(text.substring(at[0], at[0] + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Bad unicode escape", e);
+                    }
+                    at[0] += 4;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Bad escape \\" + escape);
+            }
+        }
+    }
+
+    private static void expect(String text, int[] at, char expected) {
+        if (peek(text, at) != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' at " + at[0]);
+        }
+        at[0]++;
+    }
+
+    /**
+     * Skips white space and returns the next character without consuming it.
+     */
+    private static char peek(String text, int[] at) {
+        at[0] = skipSpace(text, at[0]);
+        if (at[0] >= text.length()) {
+            throw new IllegalArgumentException("Unexpected end of JSON");
+        }
+        return text.charAt(at[0]);
+    }
+
+    private static int skipSpace(String text, int at) {
+        while (at < text.length() && " \t\r\n".indexOf(text.charAt(at)) >= 0) {
+            at++;
+        }
+        return at;
+    }
+}
+
+/**
+ * Process-wide instrumentation: named counters and histograms that hot paths update without locks.
+ * Counters are {@link LongAdder}s. Histograms count values in log-linear buckets, eight per power of two
+ * as in HdrHistogram at a fixed precision, so a percentile is within 12.5% of the true value over any range;
+ * times are recorded in nanoseconds. Call sites look their metrics up once, into static fields, so recording
+ * costs an add or two.
+ * <p>
+ * {@link #toText()} and {@link #toJson()} take snapshots. With {@code -Dinvestmate.metrics.dump=<file>} one is
+ * written every {@code -Dinvestmate.metrics.periodSeconds} (60 by default): JSON if the name ends in
+ * {@code .json}, text otherwise, or to standard output for {@code -}. The shared registry is also the JMX MBean
+ * {@value #OBJECT_NAME}, with an attribute per counter and per histogram statistic.
+ */
+final class Metrics {
+    static final String OBJECT_NAME = "investmate:type=Metrics";
+    static final Metrics SHARED = createShared();
+
+    private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+    private static Metrics createShared() {
+        Metrics metrics = new Metrics();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics.new MBean(), new ObjectName(OBJECT_NAME));
+        } catch (JMException | RuntimeException e) {
+            System.out.println("Metrics are not available over JMX: " + e);
+        }
+        String dump = System.getProperty("investmate.metrics.dump");
+        if (dump != null) {
+            metrics.startDumps(dump, Long.getLong("investmate.metrics.periodSeconds", 60));
+        }
+        return metrics;
+    }
+
+    /**
+     * @param name Counter name
+     * @return The counter, created on first use
+     */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    /**
+     * @param name Histogram name
+     * @return The histogram, created on first use
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * @return Snapshot with one line per metric
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            text.append(entry.getKey()).append(' ').append(counter.value());
+            if (counter.lastError != null) {
+                text.append(" last=").append(counter.lastError);
+            }
+            text.append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram.Snapshot h = entry.getValue().snapshot();
+            text.append(String.format("%s count=%d mean=%.0f p50=%d p90=%d p99=%d p999=%d max=%d%n", entry.getKey(),
+                    h.count, h.mean(), h.percentile(0.5), h.percentile(0.9), h.percentile(0.99), h.percentile(0.999), h.max));
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return Snapshot as a JSON object of counters and histograms
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Json.appendString(json.append(first ? "" : ","), entry.getKey()).append(':').append(entry.getValue().value());
+            first = false;
+        }
+        json.append("},\"errors\":{");
+        first = true;
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            if (entry.getValue().lastError != null) {
+                Json.appendString(json.append(first ? "" : ","), entry.getKey()).append(':');
+                Json.appendString(json, entry.getValue().lastError);
+                first = false;
+            }
+        }
+        json.append("},\"histograms\":{");
+        first = true;
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram.Snapshot h = entry.getValue().snapshot();
+            Json.appendString(json.append(first ? "" : ","), entry.getKey())
+                    .append(":{\"count\":").append(h.count).append(",\"mean\":").append(Math.round(h.mean()))
+                    .append(",\"p50\":").append(h.percentile(0.5)).append(",\"p90\":").append(h.percentile(0.9))
+                    .append(",\"p99\":").append(h.percentile(0.99)).append(",\"p999\":").append(h.percentile(0.999))
+                    .append(",\"max\":").append(h.max).append('}');
+            first = false;
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * Writes a snapshot periodically on a daemon thread.
+     * @param target File to replace with each snapshot, or {@code -} for standard output
+     * @param periodSeconds Seconds between snapshots
+     * @return The scheduler, to stop the dumps
+     */
+    ScheduledExecutorService startDumps(String target, long periodSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        boolean json = target.endsWith(".json");
+        scheduler.scheduleAtFixedRate(() -> {
+            String snapshot = json ? toJson() + "\n" : toText();
+            if (target.equals("-")) {
+                System.out.print(snapshot);
+                return;
+            }
+            Path file = Paths.get(target);
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                Files.write(temp, snapshot.getBytes(StandardCharsets.UTF_8));
+                InvestmentRepository.moveAtomically(temp, file);
+            } catch (IOException e) {
+                counter("metrics.dump.errors").recordError(e);
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        return scheduler;
+    }
+
+    /**
+     * Monotonic count of events, cheap to update from many threads at once.
+     * An error counter also keeps the last error it counted, so failures that are handled quietly still show.
+     */
+    static final class Counter {
+        private final LongAdder adder = new LongAdder();
+        private volatile String lastError;
+
+        /**
+         * Counts one event.
+         */
+        public void increment() {
+            adder.increment();
+        }
+
+        /**
+         * @param amount Number of events to count
+         */
+        public void add(long amount) {
+            adder.add(amount);
+        }
+
+        /**
+         * Counts a failure and keeps it as the last error.
+         * @param error The failure
+         */
+        public void recordError(Throwable error) {
+            adder.increment();
+            lastError = error.toString();
+        }
+
+        /**
+         * @return Number of events counted
+         */
+        public long value() {
+            return adder.sum();
+        }
+    }
+
+    /**
+     * Distribution of non-negative values, such as latencies in nanoseconds.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @param value Value to count; negative values count as zero
+         */
+        public void record(long value) {
+            long v = Math.max(0, value);
+            buckets[bucket(v)].increment();
+            sum.add(v);
+            max.accumulate(v);
+        }
+
+        /**
+         * Records the nanoseconds since a start time.
+         * @param startNanos Value of {@link System#nanoTime()} at the start
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * @return Counts of all buckets, taken one bucket at a time while recording goes on
+         */
+        public Snapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            return new Snapshot(counts, count, sum.sum(), max.get());
+        }
+
+        /**
+         * Values below eight have a bucket each; above, each power of two is split into eight equal buckets.
+         * @param value Non-negative value
+         * @return Index of its bucket
+         */
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS)
+                    | (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        }
+
+        /**
+         * @param bucket Bucket index
+         * @return Largest value counted in the bucket
+         */
+        static long highestValue(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+            long lowest = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        /**
+         * Counts of a histogram at one moment.
+         */
+        static final class Snapshot {
+            final long[] counts;
+            final long count;
+            final long sum;
+            final long max;
+
+            Snapshot(long[] counts, long count, long sum, long max) {
+                this.counts = counts;
+                this.count = count;
+                this.sum = sum;
+                this.max = max;
+            }
+
+            /**
+             * @return Mean of the values, 0 if none
+             */
+            double mean() {
+                return count == 0 ? 0 : (double) sum / count;
+            }
+
+            /**
+             * @param quantile Quantile between 0 and 1
+             * @return Upper bound of the bucket holding the quantile, capped at the maximum; 0 if empty
+             */
+            long percentile(double quantile) {
+                long rank = Math.max(1, (long) Math.ceil(quantile * count));
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) {
+                        return Math.min(highestValue(i), max);
+                    }
+                }
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Exposes the metrics over JMX: a {@code long} attribute per counter, and
+     * {@code <name>.count}, {@code .mean}, {@code .p50}, {@code .p99} and {@code .max} per histogram.
+     */
+    private final class MBean implements DynamicMBean {
+        private static final String[] STATISTICS = {"count", "mean", "p50", "p99", "max"};
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Counter counter = counters.get(attribute);
+            if (counter != null) {
+                return counter.value();
+            }
+            int dot = attribute.lastIndexOf('.');
+            Histogram histogram = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+            if (histogram == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            Histogram.Snapshot h = histogram.snapshot();
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return h.count;
+                case "mean":
+                    return Math.round(h.mean());
+                case "p50":
+                    return h.percentile(0.5);
+                case "p99":
+                    return h.percentile(0.99);
+                case "max":
+                    return h.max;
+                default:
+                    throw new AttributeNotFoundException(attribute);
+            }
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String name : attributes) {
+                try {
+                    list.add(new Attribute(name, getAttribute(name)));
+                } catch (AttributeNotFoundException e) {
+                    // left out, as the interface specifies
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            if (actionName.equals("toText")) {
+                return toText();
+            }
+            if (actionName.equals("toJson")) {
+                return toJson();
+            }
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : counters.keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", "Counter", true, false, false));
+            }
+            for (String name : histograms.keySet()) {
+                for (String statistic : STATISTICS) {
+                    attributes.add(new MBeanAttributeInfo(name + "." + statistic, "long", "Histogram " + statistic, true, false, false));
+                }
+            }
+            MBeanOperationInfo[] operations = {
+                new MBeanOperationInfo("toText", "Snapshot as text", new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO),
+                new MBeanOperationInfo("toJson", "Snapshot as JSON", new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO)
+            };
+            return new MBeanInfo(Metrics.class.getName(), "InvestMate metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, operations, null);
+        }
+    }
+}
+
+/**
+ * Embedded HTTP/JSON front end serving many investors from one process.
+ * Built on the JDK's {@code com.sun.net.httpserver}; each request runs on its own virtual thread where the
+ * JDK has them (found by reflection, so older JDKs still run the server), otherwise on a fixed pool of
+ * {@code -Dinvestmate.server.threads} threads. Requests are handled by the same {@link UserService} and
+ * {@link InvestmentService} the console uses.
+ * <ul>
+ * <li>{@code POST /api/register} {@code {"email","password","fullName"}}</li>
+ * <li>{@code POST /api/login} {@code {"email","password"}}, answering with a session token</li>
+ * <li>{@code POST /api/logout}</li>
+ * <li>{@code GET /api/assets}, {@code POST /api/assets} {@code {"id","name","value","type"}}</li>
+ * <li>{@code PUT /api/assets/<id>} {@code {"name","value","type"}}, {@code DELETE /api/assets/<id>}</li>
+ * <li>{@code GET /api/zakat}</li>
+ * <li>{@code GET /api/reports/financial?format=pdf|xlsx|csv|txt}</li>
+ * </ul>
+ * Calls other than register and login carry the session token as {@code Authorization: Bearer <token>},
+ * so they are checked in memory without reading the users file or hashing the password again.
+ */
+class InvestMateServer {
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final String JSON = "application/json; charset=utf-8";
+    private static final Metrics.Histogram REQUESTS = Metrics.SHARED.histogram("http.request");
+    private static final Metrics.Counter ERRORS = Metrics.SHARED.counter("http.errors");
+
+    static {
+        // small JSON responses otherwise wait on delayed ACKs; must be set before the first HttpServer is created
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final UserRepository userRepo;
+    private final UserService userService;
+    private final SessionManager sessions;
+    private final StorageLayout layout;
+
+    /**
+     * Constructs a server over the users file and portfolios of a storage layout.
+     * @param address Address to listen on; port 0 picks a free port
+     * @param layout Storage root and layout of the users file and portfolios
+     * @param hasher Hasher for stored passwords
+     * @param sessions Sessions opened by login
+     * @throws IOException If the address cannot be bound
+     */
+    public InvestMateServer(InetSocketAddress address, StorageLayout layout, PasswordHasher hasher, SessionManager sessions) throws IOException {
+        this.layout = layout;
+        this.sessions = sessions;
+        this.userRepo = new UserRepository(layout.usersFile().toString());
+        this.userService = new UserService(userRepo, hasher, sessions);
+        this.executor = requestExecutor();
+        this.server = HttpServer.create(address, 1_024);
+        server.setExecutor(executor);
+        server.createContext("/api/", this::handle);
+    }
+
+    /**
+     * Starts serving requests.
+     */
+    public void start() {
+        server.start();
+        System.out.println("InvestMate API listening on port " + port()
+                + (executor instanceof ThreadPoolExecutor ? " (thread pool)" : " (virtual threads)"));
+    }
+
+    /**
+     * Stops the server, letting requests in flight finish for up to a second.
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    /**
+     * @return Port the server listens on
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Runs the server until the process is stopped.
+     * @param args Optional port (8080 by default) and storage root (the configured one by default)
+     * @throws IOException If the server cannot start
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        StorageLayout layout = args.length > 1 ? new StorageLayout(Paths.get(args[1]), StorageLayout.SHARED.levels()) : StorageLayout.SHARED;
+        new InvestMateServer(new InetSocketAddress(port), layout, PasswordHasher.shared(), SessionManager.SHARED).start();
+    }
+
+    /**
+     * Creates the executor requests run on: one virtual thread per request on JDKs that have them,
+     * otherwise a fixed pool.
+     * @return Request executor
+     */
+    static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            int threads = Integer.getInteger("investmate.server.threads", 4 * Runtime.getRuntime().availableProcessors());
+            return Executors.newFixedThreadPool(Math.max(1, threads));
+        }
+    }
+
+    /**
+     * Routes a request and turns failures into JSON error responses.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            String[] path = exchange.getRequestURI().getPath().substring("/api/".length()).split("/", -1);
+            String method = exchange.getRequestMethod();
+            if (path.length == 1 && path[0].equals("register")) {
+                requireMethod(exchange, "POST");
+                register(exchange);
+            } else if (path.length == 1 && path[0].equals("login")) {
+                requireMethod(exchange, "POST");
+                login(exchange);
+            } else if (path.length == 1 && path[0].equals("logout")) {
+                requireMethod(exchange, "POST");
+                logout(exchange);
+            } else {
+                String email = authenticate(exchange);
+                if (email == null) {
+                    exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer realm=\"InvestMate\"");
+                    error(exchange, 401, "Log in first; the session is missing or has expired.");
+                } else if (path.length == 1 && path[0].equals("assets") && method.equals("GET")) {
+                    listAssets(exchange, email);
+                } else if (path.length == 1 && path[0].equals("assets")) {
+                    requireMethod(exchange, "POST");
+                    addAsset(exchange, email);
+                } else if (path.length == 2 && path[0].equals("assets") && !path[1].isEmpty() && method.equals("PUT")) {
+                    editAsset(exchange, email, path[1]);
+                } else if (path.length == 2 && path[0].equals("assets") && !path[1].isEmpty()) {
+                    requireMethod(exchange, "DELETE");
+                    removeAsset(exchange, email, path[1]);
+                } else if (path.length == 1 && path[0].equals("zakat")) {
+                    requireMethod(exchange, "GET");
+                    zakat(exchange, email);
+                } else if (path.length == 1 && path[0].equals("history")) {
+                    requireMethod(exchange, "GET");
+                    history(exchange, email);
+                } else if (path.length == 2 && path[0].equals("reports") && path[1].equals("financial")) {
+                    requireMethod(exchange, "GET");
+                    financialReport(exchange, email);
+                } else {
+                    error(exchange, 404, "No such endpoint.");
+                }
+            }
+        } catch (HttpError e) {
+            error(exchange, e.status, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            error(exchange, 400, e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            ERRORS.recordError(e);
+            System.out.println("Request failed: " + e);
+            error(exchange, 500, "Internal error.");
+        } finally {
+            exchange.close();
+            REQUESTS.recordSince(start);
+        }
+    }
+
+    private void register(HttpExchange exchange) throws IOException {
+        Map<String, String> body = body(exchange);
+        String email = required(body, "email");
+        if (!email.matches("[^@\\s,/\\\\]+@[^@\\s,/\\\\]+")) {
+            throw new HttpError(400, "Invalid email address.");
+        }
+        String fullName = body.getOrDefault("fullName", "");
+        if (fullName == null || fullName.indexOf('\n') >= 0 || fullName.indexOf('\r') >= 0) {
+            throw new HttpError(400, "Invalid full name.");
+        }
+        if (!userService.registerUser(new Investor(email, required(body, "password"), fullName))) {
+            throw new HttpError(userRepo.emailExists(email) ? 409 : 500, userRepo.emailExists(email)
+                    ? "This email already exists." : "Failed to add user.");
+        }
+        respond(exchange, 201, Json.appendString(new StringBuilder("{\"email\":"), email).append('}'));
+    }
+
+    private void login(HttpExchange exchange) throws IOException {
+        Map<String, String> body = body(exchange);
+        Session session = userService.login(required(body, "email"), required(body, "password"));
+        if (session == null) {
+            throw new HttpError(401, "Invalid credentials.");
+        }
+        StringBuilder json = Json.appendString(new StringBuilder("{\"token\":"), session.token());
+        Json.appendString(json.append(",\"email\":"), session.user().getEmail());
+        Json.appendString(json.append(",\"fullName\":"), session.user().fullName);
+        respond(exchange, 200, json.append(",\"expiresIn\":").append(sessions.ttlSeconds()).append('}'));
+    }
+
+    private void logout(HttpExchange exchange) throws IOException {
+        userService.logout(bearerToken(exchange));
+        respond(exchange, 200, "{\"loggedOut\":true}");
+    }
+
+    /**
+     * Checks the request's session token.
+     * @return The account's email as registered, or null if the token is missing, unknown or expired
+     */
+    private String authenticate(HttpExchange exchange) {
+        Session session = userService.session(bearerToken(exchange));
+        return session == null ? null : session.user().getEmail();
+    }
+
+    /**
+     * @return The token of a {@code Bearer} authorization header, or null if there is none
+     */
+    private static String bearerToken(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return null;
+        }
+        return header.substring(7).trim();
+    }
+
+    /**
+     * @param email Registered email of the account
+     * @return Repository of the account's portfolio
+     */
+    private InvestmentRepository portfolio(String email) {
+        return new InvestmentRepository(layout.portfolioFile(email));
+    }
+
+    private void listAssets(HttpExchange exchange, String email) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(200, 0);
+        try (ReportWriter writer = new ReportWriter(null, Channels.newChannel(exchange.getResponseBody()), StandardCharsets.UTF_8)) {
+            StringBuilder json = new StringBuilder(128);
+            boolean[] first = {true};
+            writer.append('[');
+            portfolio(email).forEach(asset -> {
+                json.setLength(0);
+                if (!first[0]) {
+                    json.append(',');
+                }
+                first[0] = false;
+                writer.append(appendAsset(json, asset));
+            });
+            writer.append("]\n");
+        }
+    }
+
+    private void addAsset(HttpExchange exchange, String email) throws IOException {
+        Map<String, String> body = body(exchange);
+        Asset asset = new Asset(required(body, "id"), required(body, "name"), required(body, "value"), required(body, "type"));
+        String rejection = InvestmentService.rejectionReason(asset);
+        if (rejection != null) {
+            throw new HttpError(400, rejection);
+        }
+        InvestmentRepository repository = portfolio(email);
+        if (!new InvestmentService(repository).addInvestment(asset)) {
+            boolean exists = repository.findById(asset.getId()) != null;
+            throw new HttpError(exists ? 409 : 500, exists ? "Investment ID already exists." : "Failed to add investment.");
+        }
+        respond(exchange, 201, appendAsset(new StringBuilder(), asset));
+    }
+
+    private void editAsset(HttpExchange exchange, String email, String id) throws IOException {
+        Map<String, String> body = body(exchange);
+        Asset asset = new Asset(id, required(body, "name"), required(body, "value"), required(body, "type"));
+        String rejection = InvestmentService.rejectionReason(asset);
+        if (rejection != null) {
+            throw new HttpError(400, rejection);
+        }
+        if (!new InvestmentService(portfolio(email)).editInvestmentById(id, asset.getName(), asset.getValue(), asset.getType())) {
+            throw new HttpError(404, "Investment ID not found.");
+        }
+        respond(exchange, 200, appendAsset(new StringBuilder(), asset));
+    }
+
+    private void removeAsset(HttpExchange exchange, String email, String id) throws IOException {
+        if (!new InvestmentService(portfolio(email)).removeInvestmentById(id)) {
+            throw new HttpError(404, "Investment ID not found.");
+        }
+        respond(exchange, 200, Json.appendString(new StringBuilder("{\"removed\":"), id).append('}'));
+    }
+
+    private void zakat(HttpExchange exchange, String email) throws IOException {
+        LocalDate hawlStart = dateParameter(exchange, "since");
+        LocalDate asOf = dateParameter(exchange, "asOf");
+        PortfolioTotals totals;
+        if (asOf == null) {
+            totals = portfolio(email).totals();
+        } else {
+            ColumnarPortfolio past = history(email).at(PortfolioHistory.endOfDay(asOf));
+            if (past == null) {
+                throw new HttpError(404, "The portfolio history does not go back to " + asOf + ".");
+            }
+            totals = new ParallelAggregator().aggregate(past);
+        }
+        ZakatAssessment zakat = ZakatRules.shared().assess(totals, hawlStart, asOf == null ? LocalDate.now() : asOf);
+        StringBuilder json = new StringBuilder("{\"total\":\"").append(Money.format(totals.total()))
+                .append("\",\"zakatable\":\"").append(Money.format(zakat.zakatableMinor()))
+                .append("\",\"nisab\":\"").append(Money.format(zakat.nisabMinor()))
+                .append("\",\"nisabReached\":").append(zakat.nisabReached())
+                .append(",\"hawlComplete\":").append(zakat.hawlComplete())
+                .append(",\"zakat\":\"").append(Money.format(zakat.dueMinor()))
+                .append("\",\"assets\":").append(totals.assetCount())
+                .append(",\"invalid\":").append(totals.invalidCount()).append(",\"byType\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> type : totals.byType().entrySet()) {
+            Json.appendString(json.append(first ? "" : ","), type.getKey()).append(":\"").append(Money.format(type.getValue())).append('"');
+            first = false;
+        }
+        respond(exchange, 200, json.append("}}"));
+    }
+
+    /**
+     * Answers the portfolio's value at the end of each day from {@code from} to {@code to} (the last 30 days by
+     * default), every {@code step} days, in total and per asset type. Days before the history starts are left out.
+     */
+    private void history(HttpExchange exchange, String email) throws IOException {
+        LocalDate to = dateParameter(exchange, "to");
+        to = to == null ? LocalDate.now() : to;
+        LocalDate from = dateParameter(exchange, "from");
+        from = from == null ? to.minusDays(30) : from;
+        String step = queryParameter(exchange, "step");
+        int days;
+        try {
+            days = step == null ? 1 : Integer.parseInt(step);
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, "step must be a number of days.");
+        }
+        ValueSeries series = history(email).series(PortfolioHistory.endOfDay(from), PortfolioHistory.endOfDay(to),
+                TimeUnit.DAYS.toMillis(days));
+        StringBuilder json = new StringBuilder("{\"dates\":[");
+        for (int i = 0; i < series.size(); i++) {
+            json.append(i == 0 ? "\"" : ",\"")
+                    .append(Instant.ofEpochMilli(series.timeAt(i)).atZone(ZoneId.systemDefault()).toLocalDate()).append('"');
+        }
+        json.append("],\"total\":[");
+        for (int i = 0; i < series.size(); i++) {
+            json.append(i == 0 ? "\"" : ",\"").append(Money.format(series.totalAt(i))).append('"');
+        }
+        json.append("],\"byType\":{");
+        for (int code = 0; code < series.types().size(); code++) {
+            Json.appendString(json.append(code == 0 ? "" : ","), series.types().decode(code)).append(":[");
+            for (int i = 0; i < series.size(); i++) {
+                json.append(i == 0 ? "\"" : ",\"").append(Money.format(series.typeTotalAt(code, i))).append('"');
+            }
+            json.append(']');
+        }
+        respond(exchange, 200, json.append("}}"));
+    }
+
+    /**
+     * @param email Registered email of the account
+     * @return History of the account's portfolio
+     * @throws HttpError 404 if history is disabled
+     */
+    private PortfolioHistory history(String email) {
+        PortfolioHistory history = portfolio(email).history();
+        if (history == null) {
+            throw new HttpError(404, "Portfolio history is disabled.");
+        }
+        return history;
+    }
+
+    private void financialReport(HttpExchange exchange, String email) throws IOException {
+        String format = queryParameter(exchange, "format");
+        if (format == null) {
+            format = "csv";
+        }
+        ReportExporter exporter = ReportExporters.forFormat(format);
+        if (exporter == null) {
+            throw new HttpError(400, "Unknown report format: " + format);
+        }
+        exchange.getResponseHeaders().set("Content-Type", exporter.contentType());
+        exchange.getResponseHeaders().set("Content-Disposition",
+                "attachment; filename=\"financial_report." + exporter.extension() + "\"");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream body = exchange.getResponseBody()) {
+            exporter.export(portfolio(email), Channels.newChannel(body));
+        }
+    }
+
+    private static StringBuilder appendAsset(StringBuilder json, Asset asset) {
+        Json.appendString(json.append("{\"id\":"), asset.getId());
+        Json.appendString(json.append(",\"name\":"), asset.getName());
+        Json.appendString(json.append(",\"value\":"), asset.hasValidValue() ? Money.format(asset.getValueMinor()) : asset.getValue());
+        return Json.appendString(json.append(",\"type\":"), asset.getType()).append('}');
+    }
+
+    /**
+     * Reads the request body as a flat JSON object.
+     */
+    private static Map<String, String> body(HttpExchange exchange) throws IOException {
+        byte[] bytes = exchange.getRequestBody().readNBytes(MAX_BODY_BYTES + 1);
+        if (bytes.length > MAX_BODY_BYTES) {
+            throw new HttpError(413, "Request body too large.");
+        }
+        return Json.parseObject(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private static String required(Map<String, String> body, String name) {
+        String value = body.get(name);
+        if (value == null) {
+            throw new HttpError(400, "Missing field: " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Names and values are URL-decoded as UTF-8 after the raw query is split, so an encoded {@code &} or
+     * {@code =} stays inside its value.
+     * @return The value of a query parameter, or null if it is not given
+     */
+    private static String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals >= 0 && URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8).equals(name)) {
+                    return URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The value of a query parameter holding a date, or null if it is not given
+     * @throws HttpError 400 if the value is not a date
+     */
+    private static LocalDate dateParameter(HttpExchange exchange, String name) {
+        String value = queryParameter(exchange, name);
+        try {
+            return value == null ? null : LocalDate.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new HttpError(400, name + " must be a date such as 2025-03-01.");
+        }
+    }
+
+    private static void requireMethod(HttpExchange exchange, String method) {
+        if (!exchange.getRequestMethod().equals(method)) {
+            exchange.getResponseHeaders().set("Allow", method);
+            throw new HttpError(405, "Use " + method + ".");
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, CharSequence json) throws IOException {
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(bytes);
+        }
+    }
+
+    /**
+     * Sends an error response, unless the response has already started.
+     */
+    private static void error(HttpExchange exchange, int status, String message) throws IOException {
+        if (exchange.getResponseCode() != -1) {
+            return;
+        }
+        respond(exchange, status, Json.appendString(new StringBuilder("{\"error\":"), message).append('}'));
+    }
+
+    /**
+     * Ends a request with an HTTP error status.
+     */
+    private static final class HttpError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
         }
     }
 }
@@ -532,8 +8373,9 @@ public class signup {
                 System.out.print("Password: ");
                 password = scanner.nextLine();
 
-                if (service.login(email, password)) {
-                    loggedInUser = new Investor(email, password, "");
+                Session session = service.login(email, password);
+                if (session != null) {
+                    loggedInUser = session.user();
                     break;
                 } else {
                     System.out.println("Try again.\n");
@@ -605,10 +8447,10 @@ public class signup {
                     ((Investor) loggedInUser).viewZakatPanel(invRepo);
 
                 /**
-                 * Generate and export a financial report (text or CSV).
+                 * Generate and export a financial report (PDF, Excel, CSV or paginated text).
                  */
                 } else if (choicce.equals("5")) {
-                    System.out.print("Enter export format (PDF or Excel): ");
+                    System.out.print("Enter export format (PDF, Excel, CSV or TXT): ");
                     String format = scanner.nextLine();
                     ((Investor) loggedInUser).generateFinancialReport(invRepo, format);
 
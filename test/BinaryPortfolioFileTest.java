@@ -0,0 +1,157 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BinaryPortfolioFileTest {
+    @TempDir
+    Path dir;
+
+    private static List<Asset> assets(int count) {
+        List<Asset> assets = new ArrayList<>();
+        assets.add(new Asset("gold-1", "Gold bar, 1 kg", 4_200_000_00L, "gold"));
+        assets.add(new Asset("loan", "Loan to Ahmed", -1_500_00L, "cash"));
+        assets.add(new Asset("odd", "Old record", "twelve", "stock"));
+        assets.add(new Asset("max", "Largest", Long.MAX_VALUE, "bond"));
+        assets.add(new Asset("zero", "ذهب", 0, "gold"));
+        for (int i = assets.size(); i < count; i++) {
+            assets.add(new Asset("a" + i, "Asset " + i, (long) i * i * 1_001, i % 2 == 0 ? "stock" : "silver"));
+        }
+        return assets;
+    }
+
+    private static void assertSame(Asset expected, Asset actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getName(), actual.getName(), expected.getId());
+        assertEquals(expected.getValue(), actual.getValue(), expected.getId());
+        assertEquals(expected.getValueMinor(), actual.getValueMinor(), expected.getId());
+        assertEquals(expected.getType(), actual.getType(), expected.getId());
+    }
+
+    @Test
+    void recordsRoundTrip() throws IOException {
+        Path file = dir.resolve("portfolio.bin");
+        List<Asset> written = assets(100);
+
+        assertEquals(written.size(), BinaryPortfolioFile.write(file, AssetSource.of(written)));
+
+        assertEquals(written.size(), BinaryPortfolioFile.recordCount(file));
+        List<Asset> read = new ArrayList<>();
+        BinaryPortfolioFile.read(file, read::add);
+        assertEquals(written.size(), read.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertSame(written.get(i), read.get(i));
+            assertSame(written.get(i), BinaryPortfolioFile.readRecord(file, i));
+        }
+        assertFalse(read.get(2).hasValidValue(), "an invalid value keeps its raw text");
+        assertThrows(IOException.class, () -> BinaryPortfolioFile.readRecord(file, written.size()));
+    }
+
+    @Test
+    void emptyPortfolioRoundTrips() throws IOException {
+        Path file = dir.resolve("empty.bin");
+        assertEquals(0, BinaryPortfolioFile.write(file, AssetSource.of(List.of())));
+
+        assertEquals(0, BinaryPortfolioFile.recordCount(file));
+        BinaryPortfolioFile.read(file, asset -> {
+            throw new AssertionError("no records expected");
+        });
+    }
+
+    @Test
+    void varintsRoundTrip() {
+        for (long value : new long[] {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, -1, Long.MIN_VALUE, Long.MAX_VALUE}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            BinaryPortfolioFile.writeVarint(out, value);
+            ByteBuffer in = ByteBuffer.wrap(out.toByteArray());
+            assertEquals(value, BinaryPortfolioFile.readVarint(in));
+            assertFalse(in.hasRemaining(), "varint of " + value + " is read to its end");
+        }
+        assertEquals(1, varintBytes(127));
+        assertEquals(2, varintBytes(128));
+        assertEquals(10, varintBytes(-1));
+    }
+
+    private static int varintBytes(long value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryPortfolioFile.writeVarint(out, value);
+        return out.size();
+    }
+
+    @Test
+    void corruptRecordFailsTheChecksum() throws IOException {
+        Path file = dir.resolve("corrupt.bin");
+        BinaryPortfolioFile.write(file, AssetSource.of(assets(40)));
+        byte[] bytes = Files.readAllBytes(file);
+        // the first record's name starts after its length prefix and the ID "gold-1"
+        int name = BinaryPortfolioFile.HEADER_BYTES + 1 + 1 + "gold-1".length() + 1;
+        assertEquals('G', bytes[name]);
+        bytes[name] = 'g';
+        Files.write(file, bytes);
+
+        IOException e = assertThrows(IOException.class, () -> BinaryPortfolioFile.read(file, asset -> { }));
+        assertTrue(e.getMessage().startsWith("Checksum mismatch"), e.getMessage());
+    }
+
+    @Test
+    void wrongMagicOrVersionIsRejected() throws IOException {
+        Path file = dir.resolve("header.bin");
+        BinaryPortfolioFile.write(file, AssetSource.of(assets(10)));
+        byte[] bytes = Files.readAllBytes(file);
+
+        bytes[5] = 9;
+        Files.write(file, bytes);
+        assertThrows(IOException.class, () -> BinaryPortfolioFile.recordCount(file));
+
+        bytes[0] = 'X';
+        Files.write(file, bytes);
+        assertThrows(IOException.class, () -> BinaryPortfolioFile.read(file, asset -> { }));
+        assertThrows(IOException.class, () -> BinaryPortfolioFile.readRecord(file, 0));
+    }
+
+    @Test
+    void repositoryReplaysTheTextLogOverItsSnapshot() throws IOException {
+        Path file = dir.resolve("investments_binary.txt");
+        Path snapshot = InvestmentRepository.snapshotFile(file);
+        InvestmentRepository writer = new InvestmentRepository(file, StorageFormat.BINARY, new PortfolioCache(0), null);
+        writer.save(new Asset("a1", "Gold bar", "1000.00", "gold"));
+        writer.save(new Asset("a2", "Shares", "250.50", "stock"));
+        writer.save(new Asset("a3", "Savings", "40.00", "cash"));
+        writer.compact();
+        assertEquals(3, BinaryPortfolioFile.recordCount(snapshot));
+        assertFalse(Files.exists(file), "compaction empties the text log into the snapshot");
+
+        writer.update(new Asset("a1", "Gold bar", "1200.00", "gold"));
+        writer.delete("a2");
+        writer.save(new Asset("a4", "Silver coins", "75.25", "silver"));
+        writer.save(new Asset("a2", "More shares", "10.00", "stock"));
+
+        InvestmentRepository reader = new InvestmentRepository(file, StorageFormat.BINARY, new PortfolioCache(0), null);
+        List<String> loaded = new ArrayList<>();
+        reader.loadAll().forEach(asset -> loaded.add(asset.getId() + "=" + asset.getValue()));
+        assertEquals(List.of("a1=1200.00", "a3=40.00", "a4=75.25", "a2=10.00"), loaded);
+        List<String> streamed = new ArrayList<>();
+        reader.forEach(asset -> streamed.add(asset.getId() + "=" + asset.getValue()));
+        assertEquals(loaded, streamed);
+        assertEquals("More shares", reader.findById("a2").getName());
+        assertEquals(1325_25, reader.totals().total());
+
+        reader.delete("a3");
+        reader.compact();
+        assertEquals(3, BinaryPortfolioFile.recordCount(snapshot));
+        InvestmentRepository reopened = new InvestmentRepository(file, StorageFormat.BINARY, new PortfolioCache(0), null);
+        assertNull(reopened.findById("a3"));
+        assertEquals(1285_25, reopened.totals().total());
+    }
+}
@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that every hot path the harness and the JMH module measure can be prepared and run.
+ */
+class InvestMateBenchmarkTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void everyHotPathRunsOverGeneratedData() throws IOException {
+        for (String name : InvestMateBenchmark.HOT_PATHS) {
+            LongSupplier op = InvestMateBenchmark.hotPath(name, 200, dir);
+            TestSupport.quietly(() -> {
+                for (int i = 0; i < 3; i++) {
+                    op.getAsLong();
+                }
+            });
+        }
+        try (Stream<Path> reports = Files.list(dir.resolve("reports_hot"))) {
+            assertEquals(0, reports.count(), "reports written by the report hot paths are deleted");
+        }
+    }
+
+    @Test
+    void listAndColumnarTotalsAgree() throws IOException {
+        assertEquals(InvestMateBenchmark.hotPath("listSum", 1_000, dir).getAsLong(),
+                InvestMateBenchmark.hotPath("columnarSum", 1_000, dir).getAsLong());
+        assertTrue(InvestMateBenchmark.hotPath("listSumByType", 1_000, dir).getAsLong() > 1);
+        assertTrue(InvestMateBenchmark.hotPath("columnarSumByType", 1_000, dir).getAsLong() > 0);
+    }
+
+    @Test
+    void fileAndColumnarAggregationAgree() throws IOException {
+        long columnar = InvestMateBenchmark.hotPath("aggregateColumnar", 1_000, dir).getAsLong();
+        assertEquals(columnar, InvestMateBenchmark.hotPath("aggregateFile", 1_000, dir).getAsLong());
+        assertEquals(columnar, InvestMateBenchmark.hotPath("aggregateFileWithLog", 1_000, dir).getAsLong());
+    }
+
+    @Test
+    void loginSucceedsForGeneratedUsers() throws IOException {
+        LongSupplier op = InvestMateBenchmark.hotPath("login", 1_000, dir);
+        long succeeded = TestSupport.quietly(() -> {
+            long sum = 0;
+            for (int i = 0; i < 20; i++) {
+                sum += op.getAsLong();
+            }
+            return sum;
+        });
+        assertEquals(20, succeeded);
+    }
+
+    @Test
+    void lookupFindsGeneratedUsers() throws IOException {
+        LongSupplier op = InvestMateBenchmark.hotPath("findUserByEmail", 100, dir);
+        long found = 0;
+        for (int i = 0; i < 50; i++) {
+            found += op.getAsLong();
+        }
+        assertEquals(50, found);
+    }
+
+    @Test
+    void realisticPortfolioLoadsTheSameEveryTime() throws IOException {
+        Path first = dir.resolve("first.txt");
+        Path second = dir.resolve("second.txt");
+        InvestMateBenchmark.writeRealisticPortfolio(first, 500, 0.1, 7);
+        InvestMateBenchmark.writeRealisticPortfolio(second, 500, 0.1, 7);
+        assertEquals(Files.readAllLines(first), Files.readAllLines(second));
+        int live = new InvestmentRepository(first, StorageFormat.TEXT, new PortfolioCache(0), null).loadAll().size();
+        assertTrue(live > 400 && live <= 500, "tombstones remove some of the 500 assets: " + live);
+    }
+
+    @Test
+    void unknownHotPathIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> InvestMateBenchmark.hotPath("nothing", 10, dir));
+    }
+}
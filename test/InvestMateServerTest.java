@@ -0,0 +1,99 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class InvestMateServerTest {
+    @TempDir
+    Path dir;
+
+    private StorageLayout layout;
+    private InvestMateServer server;
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @BeforeEach
+    void start() throws IOException {
+        layout = new StorageLayout(dir, 2);
+        server = new InvestMateServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), layout,
+                new PasswordHasher(1_000), new SessionManager(Duration.ofMinutes(5), Duration.ofMinutes(5), 100));
+        TestSupport.quietly(server::start);
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop();
+    }
+
+    private HttpResponse<String> post(String path, String json) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/api/" + path))
+                .POST(HttpRequest.BodyPublishers.ofString(json)).header("Content-Type", "application/json").build();
+        return TestSupport.quietly(() -> {
+            try {
+                return client.send(request, HttpResponse.BodyHandlers.ofString());
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private HttpResponse<String> get(String path, String token) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/api/" + path))
+                .header("Authorization", "Bearer " + token).build();
+        return TestSupport.quietly(() -> {
+            try {
+                return client.send(request, HttpResponse.BodyHandlers.ofString());
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private String logIn() throws IOException, InterruptedException {
+        post("register", "{\"email\":\"query@example.com\",\"password\":\"secret\",\"fullName\":\"Query\"}");
+        String body = post("login", "{\"email\":\"query@example.com\",\"password\":\"secret\"}").body();
+        int start = body.indexOf("\"token\":\"") + 9;
+        return body.substring(start, body.indexOf('"', start));
+    }
+
+    @Test
+    void queryParametersAreUrlDecoded() throws IOException, InterruptedException {
+        String token = logIn();
+
+        HttpResponse<String> encodedName = get("reports/financial?f%6Frmat=t%78t", token);
+        assertEquals(200, encodedName.statusCode(), encodedName.body());
+        assertTrue(encodedName.headers().firstValue("Content-Disposition").orElse("").contains(".txt"));
+        HttpResponse<String> encodedAmpersand = get("reports/financial?format=csv%26pdf", token);
+        assertEquals(400, encodedAmpersand.statusCode());
+        assertTrue(encodedAmpersand.body().contains("csv&pdf"), encodedAmpersand.body());
+        assertEquals(200, get("history?from=2025-01-01&to=2025%2D01%2D05", token).statusCode());
+    }
+
+    @Test
+    void hashShapedPasswordIsHashedAndLogsIn() throws IOException, InterruptedException {
+        String password = "pbkdf2-sha256$1$AAAA$AAAA";
+
+        HttpResponse<String> registered = post("register",
+                "{\"email\":\"forged@example.com\",\"password\":\"" + password + "\",\"fullName\":\"Forged\"}");
+        assertEquals(201, registered.statusCode(), registered.body());
+
+        String stored = new UserRepository(layout.usersFile().toString()).findUserByEmail("forged@example.com").password;
+        assertNotEquals(password, stored, "the password is hashed, not stored as given");
+        HttpResponse<String> login = post("login", "{\"email\":\"forged@example.com\",\"password\":\"" + password + "\"}");
+        assertEquals(200, login.statusCode(), login.body());
+        assertTrue(login.body().contains("\"token\":"));
+        assertEquals(401, post("login", "{\"email\":\"forged@example.com\",\"password\":\"AAAA\"}").statusCode());
+    }
+}
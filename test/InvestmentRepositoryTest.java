@@ -0,0 +1,224 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class InvestmentRepositoryTest {
+    @TempDir
+    Path dir;
+
+    private InvestmentRepository repository(Path file) {
+        return new InvestmentRepository(file, StorageFormat.TEXT, new PortfolioCache(0), null);
+    }
+
+    /**
+     * Appends text to the log as a crash part way through an append would leave it.
+     */
+    private static void tear(Path file, String text) throws IOException {
+        Files.write(file, text.getBytes(Charset.defaultCharset()), StandardOpenOption.APPEND);
+    }
+
+    @Test
+    void tornLastLineIsIgnoredWhenLoading() throws IOException {
+        Path file = dir.resolve("investments_torn.txt");
+        InvestmentRepository writer = repository(file);
+        writer.save(new Asset("a1", "Gold bar", "1000.00", "gold"));
+        writer.save(new Asset("a2", "Shares", "250.50", "stock"));
+        tear(file, "#UPD,a1,Gold bar,99");
+
+        InvestmentRepository reader = repository(file);
+        List<Asset> assets = reader.loadAll();
+        assertEquals(2, assets.size());
+        assertEquals(1000_00, reader.findById("a1").getValueMinor());
+        assertEquals(1250_50, reader.totals().total());
+        List<Asset> streamed = new ArrayList<>();
+        reader.forEach(streamed::add);
+        assertEquals(2, streamed.size());
+        assertEquals(1000_00, streamed.get(0).getValueMinor());
+        assertEquals(1250_50, new ParallelAggregator().aggregateFile(file).total());
+    }
+
+    @Test
+    void nextAppendCutsOffTornLine() throws IOException {
+        Path file = dir.resolve("investments_append.txt");
+        repository(file).save(new Asset("a1", "Gold bar", "1000.00", "gold"));
+        tear(file, "a2,Half a rec");
+
+        repository(file).save(new Asset("a3", "Savings", "40.00", "cash"));
+
+        List<String> lines = Files.readAllLines(file, Charset.defaultCharset());
+        assertEquals(List.of("a1,Gold bar,1000.00,gold", "a3,Savings,40.00,cash"), lines);
+        InvestmentRepository reader = repository(file);
+        assertNull(reader.findById("a2"));
+        assertEquals(1040_00, reader.totals().total());
+    }
+
+    @Test
+    void batchSaveCutsOffTornLine() throws IOException {
+        Path file = dir.resolve("investments_batch.txt");
+        repository(file).save(new Asset("a1", "Gold bar", "1000.00", "gold"));
+        tear(file, "#DEL,a");
+
+        int saved = repository(file).saveAllIfAbsent(AssetSource.of(List.of(
+                new Asset("a2", "Shares", "1.00", "stock"), new Asset("a1", "Again", "2.00", "stock"))), 16, asset -> { });
+
+        assertEquals(1, saved);
+        List<String> lines = Files.readAllLines(file, Charset.defaultCharset());
+        assertEquals(List.of("a1,Gold bar,1000.00,gold", "a2,Shares,1.00,stock"), lines);
+        assertTrue(repository(file).findById("a1") != null);
+    }
+
+    @Test
+    void aggregateLeavesTheLogAsItIs() throws IOException {
+        Path file = dir.resolve("investments_aggregate.txt");
+        InvestmentRepository writer = repository(file);
+        writer.save(new Asset("a1", "Gold bar", "1000.00", "gold"));
+        writer.save(new Asset("a2", "Shares", "250.50", "stock"));
+        writer.update(new Asset("a1", "Gold bar", "1200.00", "gold"));
+        writer.delete("a2");
+        byte[] before = Files.readAllBytes(file);
+
+        PortfolioTotals totals = repository(file).aggregate(new ParallelAggregator());
+
+        assertEquals(1200_00, totals.total());
+        assertEquals(1, totals.assetCount());
+        assertEquals(2, totals.logRecords());
+        assertTrue(Arrays.equals(before, Files.readAllBytes(file)), "aggregating does not compact");
+    }
+
+    @Test
+    void concurrentEditsThroughSeveralRepositoriesStayConsistent() throws IOException {
+        int threads = 8;
+        int portfolios = 3;
+        int ids = 40;
+        AtomicInteger[] live = new AtomicInteger[portfolios * ids];
+        for (int i = 0; i < live.length; i++) {
+            live[i] = new AtomicInteger();
+        }
+        PortfolioCache cache = new PortfolioCache(16L << 20);
+        InvestmentRepository[] shared = new InvestmentRepository[portfolios];
+        for (int u = 0; u < portfolios; u++) {
+            shared[u] = new InvestmentRepository(dir.resolve("investments_stress_" + u + ".txt"), StorageFormat.TEXT, cache, null);
+        }
+
+        TestSupport.runThreads(threads, t -> {
+            InvestmentRepository[] repositories = shared;
+            if (t % 2 == 1) {
+                repositories = new InvestmentRepository[portfolios];
+                for (int u = 0; u < portfolios; u++) {
+                    repositories[u] = repository(dir.resolve("investments_stress_" + u + ".txt"));
+                }
+            }
+            Random random = new Random(t);
+            try {
+                for (int i = 0; i < 400; i++) {
+                    int u = random.nextInt(portfolios);
+                    int id = random.nextInt(ids);
+                    Asset asset = new Asset("a" + id, "Asset " + id, random.nextInt(1_000_000), "stock");
+                    int op = random.nextInt(3);
+                    if (op == 0 && repositories[u].saveIfAbsent(asset)) {
+                        live[u * ids + id].incrementAndGet();
+                    } else if (op == 1) {
+                        repositories[u].update(asset);
+                    } else if (op == 2 && repositories[u].delete(asset.getId())) {
+                        live[u * ids + id].decrementAndGet();
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        for (int u = 0; u < portfolios; u++) {
+            Path file = dir.resolve("investments_stress_" + u + ".txt");
+            Set<String> expected = new HashSet<>();
+            for (int id = 0; id < ids; id++) {
+                int count = live[u * ids + id].get();
+                assertTrue(count == 0 || count == 1, "an asset is added at most once");
+                if (count == 1) {
+                    expected.add("a" + id);
+                }
+            }
+            List<Asset> assets = repository(file).loadAll();
+            Set<String> loaded = new HashSet<>();
+            long total = 0;
+            for (Asset a : assets) {
+                loaded.add(a.getId());
+                total += a.getValueMinor();
+            }
+            assertEquals(expected.size(), assets.size(), "no asset is duplicated");
+            assertEquals(expected, loaded);
+            assertTrue(shared[u].verifyTotals(), "running totals kept up with every repository's edits");
+            assertEquals(total, shared[u].totals().total());
+            assertEquals(total, new ParallelAggregator().aggregateFile(file).total());
+        }
+    }
+
+    @Test
+    void runningTotalsAreStoredOnlyWhenCompacting() throws IOException {
+        Path file = dir.resolve("investments_totals.txt");
+        Path stored = InvestmentRepository.totalsFile(file);
+        InvestmentRepository writer = repository(file);
+        writer.save(new Asset("a1", "Gold bar", "1000.00", "gold"));
+        writer.save(new Asset("a2", "Shares", "250.50", "stock"));
+        assertEquals(1250_50, writer.totals().total());
+
+        writer.update(new Asset("a1", "Gold bar", "1200.00", "gold"));
+        writer.delete("a2");
+
+        assertFalse(Files.exists(stored), "edits keep the totals in memory");
+        assertEquals(1200_00, writer.totals().total());
+        assertEquals(Map.of("gold", 1200_00L), writer.totals().byType());
+        writer.compact();
+        assertEquals(1200_00, RunningTotals.read(stored).toTotals().total());
+        assertEquals(1200_00, repository(file).totals().total());
+        assertTrue(writer.verifyTotals());
+    }
+
+    @Test
+    void streamingPassesEachRepeatedIdOnce() throws IOException {
+        Path file = dir.resolve("investments_repeated.txt");
+        Files.write(file, List.of(
+                "a1,Gold bar,1000.00,gold",
+                "a2,Shares,250.50,stock",
+                "a1,Gold bar,1100.00,gold",
+                "a3,Savings,40.00,cash",
+                "#DEL,a2",
+                "a2,Shares,300.00,stock",
+                "a2,Shares,310.00,stock"), Charset.defaultCharset());
+
+        InvestmentRepository reader = repository(file);
+        List<Asset> streamed = new ArrayList<>();
+        reader.forEach(streamed::add);
+
+        List<String> ids = new ArrayList<>();
+        List<Long> values = new ArrayList<>();
+        streamed.forEach(asset -> {
+            ids.add(asset.getId());
+            values.add(asset.getValueMinor());
+        });
+        assertEquals(List.of("a1", "a3", "a2"), ids);
+        assertEquals(List.of(1100_00L, 40_00L, 310_00L), values);
+        List<String> loaded = new ArrayList<>();
+        reader.loadAll().forEach(asset -> loaded.add(asset.getId()));
+        assertEquals(loaded, ids);
+        assertEquals(1450_00, new ParallelAggregator().aggregateFile(file).total());
+    }
+}
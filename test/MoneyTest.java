@@ -0,0 +1,43 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.math.BigDecimal;
+import org.junit.jupiter.api.Test;
+
+class MoneyTest {
+    @Test
+    void formatsTwoFractionDigits() {
+        assertEquals("0.00", Money.format(0));
+        assertEquals("0.05", Money.format(5));
+        assertEquals("-0.05", Money.format(-5));
+        assertEquals("1500.00", Money.format(1500_00));
+        assertEquals("-3.50", Money.format(-3_50));
+    }
+
+    @Test
+    void formatsExtremes() {
+        assertEquals("92233720368547758.07", Money.format(Long.MAX_VALUE));
+        assertEquals("-92233720368547758.08", Money.format(Long.MIN_VALUE));
+        assertEquals("-92233720368547758.07", Money.format(Long.MIN_VALUE + 1));
+        StringBuilder sb = new StringBuilder("x");
+        Money.appendTo(sb, Long.MIN_VALUE);
+        assertEquals("x-92233720368547758.08", sb.toString());
+    }
+
+    @Test
+    void formatsAsBigDecimalWould() {
+        long[] samples = {1, 99, 100, 101, -1, -99, -100, -101, 123_456_789, -987_654_321_012L, Long.MAX_VALUE - 1, Long.MIN_VALUE + 2};
+        for (long minor : samples) {
+            assertEquals(BigDecimal.valueOf(minor, 2).toPlainString(), Money.format(minor), "minor " + minor);
+        }
+    }
+
+    @Test
+    void parsesWhatItFormats() {
+        long[] samples = {0, 7, -7, 1500_00, -3_50, 123_456_789_01L, Long.MAX_VALUE, Long.MIN_VALUE + 1};
+        for (long minor : samples) {
+            assertEquals(minor, Money.parseMinor(Money.format(minor)), "minor " + minor);
+        }
+        assertEquals(Money.INVALID, Money.parseMinor("12,5"));
+        assertEquals(1_26, Money.parseMinor("1.255"));
+    }
+}
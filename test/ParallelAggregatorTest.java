@@ -0,0 +1,66 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ParallelAggregatorTest {
+    @TempDir
+    Path dir;
+
+    private static void assertSameTotals(PortfolioTotals expected, PortfolioTotals actual) {
+        assertEquals(expected.total(), actual.total());
+        assertEquals(expected.byType(), actual.byType());
+        assertEquals(expected.assetCount(), actual.assetCount());
+        assertEquals(expected.invalidCount(), actual.invalidCount());
+    }
+
+    private static PortfolioTotals loaded(Path file) throws IOException {
+        return new ParallelAggregator().aggregate(
+                new InvestmentRepository(file, StorageFormat.TEXT, new PortfolioCache(0), null).loadColumnar());
+    }
+
+    @Test
+    void duplicateIdLinesCountOnce() throws IOException {
+        Path file = dir.resolve("investments_duplicates.txt");
+        Files.write(file, List.of("a1,Gold bar,100.00,gold", "a2,Savings,10.00,cash", "a1,Gold bar,150.00,gold",
+                "a3,Broken,abc,stock", "a3,Shares,5.00,stock"), Charset.defaultCharset());
+
+        PortfolioTotals totals = new ParallelAggregator().aggregateFile(file);
+
+        assertEquals(165_00, totals.total());
+        assertEquals(Map.of("gold", 150_00L, "cash", 10_00L, "stock", 5_00L), totals.byType());
+        assertEquals(3, totals.assetCount());
+        assertEquals(0, totals.invalidCount());
+        assertEquals(0, totals.logRecords());
+    }
+
+    @Test
+    void updateAndTombstoneRecordsAreResolved() throws IOException {
+        Path file = dir.resolve("investments_log.txt");
+        InvestMateBenchmark.writeRealisticPortfolio(file, 20_000, 0.3, 11);
+
+        PortfolioTotals totals = new ParallelAggregator(new ForkJoinPool(4)).aggregateFile(file);
+
+        assertTrue(totals.logRecords() > 0);
+        assertSameTotals(loaded(file), totals);
+    }
+
+    @Test
+    void plainFileMatchesLoadedPortfolio() throws IOException {
+        Path file = dir.resolve("investments_plain.txt");
+        InvestMateBenchmark.writeRealisticPortfolio(file, 20_000, 0, 5);
+
+        PortfolioTotals totals = new ParallelAggregator(new ForkJoinPool(4)).aggregateFile(file);
+
+        assertEquals(0, totals.logRecords());
+        assertSameTotals(loaded(file), totals);
+    }
+}
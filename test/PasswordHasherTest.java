@@ -0,0 +1,45 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class PasswordHasherTest {
+    private final PasswordHasher hasher = new PasswordHasher(1_000);
+
+    @Test
+    void hashVerifiesOnlyItsPassword() {
+        String stored = hasher.hash("secret");
+        assertTrue(PasswordHasher.isHashed(stored));
+        assertTrue(hasher.verify("secret", stored));
+        assertFalse(hasher.verify("Secret", stored));
+        assertNotEquals(stored, hasher.hash("secret"), "every hash has its own salt");
+    }
+
+    @Test
+    void plainTextRecordVerifiesAndNeedsRehash() {
+        assertTrue(hasher.verify("secret", "secret"));
+        assertFalse(hasher.verify("other", "secret"));
+        assertTrue(hasher.needsRehash("secret"));
+        assertFalse(hasher.needsRehash(hasher.hash("secret")));
+    }
+
+    @Test
+    void malformedHashMatchesNoPassword() {
+        String[] malformed = {
+            "pbkdf2-sha256$",
+            "pbkdf2-sha256$0$AAAA$AAAA",
+            "pbkdf2-sha256$1000$$AAAA",
+            "pbkdf2-sha256$1000$AAAA$",
+            "pbkdf2-sha256$1000$not*base64$AAAA",
+            "pbkdf2-sha256$1000$AAAA$A",
+            "pbkdf2-sha256$x$AAAA$AAAA",
+            "pbkdf2-sha256$1000$AAAA$AAAA$AAAA",
+        };
+        for (String stored : malformed) {
+            assertFalse(PasswordHasher.isHashed(stored), stored);
+            assertFalse(hasher.verify(stored, stored), stored);
+            assertFalse(hasher.verify("secret", stored), stored);
+        }
+    }
+}
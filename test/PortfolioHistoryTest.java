@@ -0,0 +1,112 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PortfolioHistoryTest {
+    private static final String[] TYPES = {"stock", "gold", "silver", "cash"};
+
+    @TempDir
+    Path dir;
+
+    private PortfolioHistory history(String name, double checkpointRatio) {
+        Path text = dir.resolve(name + ".txt");
+        return new PortfolioHistory(PortfolioHistory.historyFile(text), PortfolioHistory.indexFile(text), checkpointRatio);
+    }
+
+    /**
+     * Applies random adds, replacements and removals to a plain map and to the history, and checks that every
+     * point in time reads back as the map stood then.
+     */
+    @Test
+    void pointsInTimeMatchAReferenceModel() throws IOException {
+        for (double ratio : new double[] {0.25, 1, 4, Double.POSITIVE_INFINITY}) {
+            Random random = new Random(25);
+            PortfolioHistory history = history("model-" + ratio, ratio);
+            Map<String, Asset> live = new LinkedHashMap<>();
+            TreeMap<Long, Map<String, Asset>> snapshots = new TreeMap<>();
+            long time = 1_000_000;
+            for (int i = 0; i < 2_000; i++) {
+                time += 1 + random.nextInt(1_000);
+                String id = "a" + random.nextInt(50);
+                if (live.containsKey(id) && random.nextInt(4) == 0) {
+                    live.remove(id);
+                    history.remove(time, id, live);
+                } else {
+                    Asset asset = new Asset(id, "Asset " + id, random.nextInt(1_000_000), TYPES[random.nextInt(TYPES.length)]);
+                    live.put(id, asset);
+                    history.put(time, asset, live);
+                }
+                snapshots.put(time, new LinkedHashMap<>(live));
+            }
+
+            for (int i = 0; i < 200; i++) {
+                long at = snapshots.firstKey() + (long) (random.nextDouble() * (time - snapshots.firstKey()));
+                assertMatches(snapshots.floorEntry(at).getValue(), history.at(at));
+            }
+            assertMatches(live, history.at(time));
+
+            long step = (time - snapshots.firstKey()) / 100;
+            ValueSeries series = history.series(snapshots.firstKey(), time, step);
+            assertEquals(101, series.size());
+            for (int point = 0; point < series.size(); point++) {
+                Map<String, Asset> expected = snapshots.floorEntry(series.timeAt(point)).getValue();
+                assertEquals(total(expected), series.totalAt(point), "ratio " + ratio + ", point " + point);
+            }
+        }
+    }
+
+    @Test
+    void aLostRecordDoesNotSkewLaterValues() throws IOException {
+        PortfolioHistory history = history("lost", Double.POSITIVE_INFINITY);
+        Map<String, Asset> live = new LinkedHashMap<>();
+        Asset first = new Asset("a1", "Gold bar", 100_00, "gold");
+        live.put("a1", first);
+        history.put(1_000, first, live);
+        long size = PortfolioHistory.historyFile(dir.resolve("lost.txt")).toFile().length();
+
+        Asset lost = new Asset("a1", "Gold bar", 150_00, "gold");
+        live.put("a1", lost);
+        history.put(2_000, lost, live);
+        try (FileChannel channel = FileChannel.open(PortfolioHistory.historyFile(dir.resolve("lost.txt")), StandardOpenOption.WRITE)) {
+            channel.truncate(size + 3);
+        }
+        Asset last = new Asset("a1", "Gold bar", 175_00, "gold");
+        live.put("a1", last);
+        history.put(3_000, last, live);
+
+        assertEquals(100_00, history.at(2_000).sum());
+        assertEquals(175_00, history.at(3_000).sum());
+    }
+
+    private static void assertMatches(Map<String, Asset> expected, ColumnarPortfolio actual) {
+        assertEquals(total(expected), actual.sum());
+        List<String> ids = new ArrayList<>();
+        for (int row = 0; row < actual.size(); row++) {
+            ids.add(actual.idAt(row));
+            Asset asset = expected.get(actual.idAt(row));
+            assertEquals(asset.getValueMinor(), actual.valueAt(row), asset.getId());
+            assertEquals(asset.getName(), actual.nameAt(row), asset.getId());
+            assertEquals(asset.getType(), actual.types().decode(actual.typeCodeAt(row)), asset.getId());
+        }
+        assertEquals(expected.keySet().stream().sorted().toList(), ids.stream().sorted().toList());
+    }
+
+    private static long total(Map<String, Asset> assets) {
+        long total = 0;
+        for (Asset asset : assets.values()) {
+            total += asset.getValueMinor();
+        }
+        return total;
+    }
+}
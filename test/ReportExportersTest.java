@@ -0,0 +1,122 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+class ReportExportersTest {
+    private static List<Asset> assets(int count) {
+        List<Asset> assets = new ArrayList<>();
+        assets.add(new Asset("a0", "Gold & <Silver> \"bars\"\u0001", 1000_00, "gold"));
+        assets.add(new Asset("a1", "Old record (unparsed)", "twelve", "stock"));
+        assets.add(new Asset("a2", "Back\\slash ذهب", -40_50, "cash"));
+        for (int i = assets.size(); i < count; i++) {
+            assets.add(new Asset("a" + i, "Asset " + i, i * 1_001L, "stock"));
+        }
+        return assets.subList(0, count);
+    }
+
+    private static byte[] export(ReportExporter exporter, List<Asset> assets) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.export(AssetSource.of(assets), Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    private static Document parse(byte[] xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+    }
+
+    @Test
+    void xlsxIsAZipOfWellFormedParts() throws Exception {
+        List<Asset> assets = assets(10);
+        Map<String, byte[]> parts = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(export(new XlsxExporter(), assets)))) {
+            for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+                parts.put(entry.getName(), zip.readAllBytes());
+            }
+        }
+
+        assertEquals(List.of("xl/worksheets/sheet1.xml", "[Content_Types].xml", "_rels/.rels", "xl/workbook.xml",
+                "xl/_rels/workbook.xml.rels"), new ArrayList<>(parts.keySet()));
+        for (Map.Entry<String, byte[]> part : parts.entrySet()) {
+            parse(part.getValue()); // throws if the part is not well-formed XML
+        }
+        Document sheet = parse(parts.get("xl/worksheets/sheet1.xml"));
+        NodeList rows = sheet.getElementsByTagName("row");
+        assertEquals(assets.size() + 1, rows.getLength());
+        NodeList first = rows.item(1).getChildNodes();
+        assertEquals("Gold & <Silver> \"bars\"", first.item(1).getTextContent(), "markup is escaped, control characters dropped");
+        assertEquals("1000.00", first.item(2).getTextContent());
+        assertEquals("twelve", rows.item(2).getChildNodes().item(2).getTextContent());
+        assertEquals("-40.50", rows.item(3).getChildNodes().item(2).getTextContent());
+        assertEquals("Back\\slash ذهب", rows.item(3).getChildNodes().item(1).getTextContent());
+        NodeList sheets = parse(parts.get("xl/workbook.xml")).getElementsByTagName("sheet");
+        assertEquals(1, sheets.getLength());
+    }
+
+    @Test
+    void pdfHasMatchingCrossReferenceTableAndTrailer() throws IOException {
+        for (int count : new int[] {0, 10, 2 * PagedExporter.ROWS_PER_PAGE + 5}) {
+            byte[] bytes = export(new PdfExporter(), assets(count));
+            String pdf = new String(bytes, StandardCharsets.ISO_8859_1);
+            int pages = Math.max(1, (count + PagedExporter.ROWS_PER_PAGE - 1) / PagedExporter.ROWS_PER_PAGE);
+
+            assertTrue(pdf.startsWith("%PDF-1.4\n"), "header");
+            assertTrue(pdf.endsWith("%%EOF\n"), "end marker");
+            Matcher startxref = Pattern.compile("startxref\n(\\d+)\n%%EOF\n$").matcher(pdf);
+            assertTrue(startxref.find(), "startxref");
+            int xref = Integer.parseInt(startxref.group(1));
+            assertTrue(pdf.startsWith("xref\n0 ", xref), "startxref points at the cross-reference table");
+
+            String[] table = pdf.substring(xref).split("\n");
+            int objects = Integer.parseInt(table[1].split(" ")[1]);
+            assertEquals(3 + 3 * pages + 1, objects);
+            assertEquals("0000000000 65535 f ", table[2]);
+            for (int object = 1; object < objects; object++) {
+                String entry = table[2 + object];
+                assertTrue(entry.matches("\\d{10} 00000 n "), entry);
+                int offset = Integer.parseInt(entry.substring(0, 10));
+                assertTrue(pdf.startsWith(object + " 0 obj\n", offset), "offset of object " + object);
+            }
+            assertEquals("trailer", table[2 + objects]);
+            assertEquals("<< /Size " + objects + " /Root 1 0 R >>", table[3 + objects]);
+            assertTrue(pdf.contains("<< /Type /Pages /Count " + pages + " /Kids ["), "page count of " + count + " assets");
+
+            Matcher stream = Pattern.compile("(\\d+) 0 obj\n<< /Length (\\d+) 0 R >>\nstream\n").matcher(pdf);
+            int streams = 0;
+            while (stream.find()) {
+                int end = pdf.indexOf("endstream\n", stream.end());
+                Matcher length = Pattern.compile("\n" + stream.group(2) + " 0 obj\n(\\d+)\nendobj\n").matcher(pdf);
+                assertTrue(length.find(), "length object of stream " + stream.group(1));
+                assertEquals(end - stream.end(), Integer.parseInt(length.group(1)), "length of stream " + stream.group(1));
+                streams++;
+            }
+            assertEquals(pages, streams);
+        }
+    }
+
+    @Test
+    void pdfEscapesStringDelimiters() throws IOException {
+        String pdf = new String(export(new PdfExporter(), assets(3)), StandardCharsets.ISO_8859_1);
+
+        assertTrue(pdf.contains("Old record \\(unparsed\\)"), "parentheses are escaped");
+        assertTrue(pdf.contains("Back\\\\slash ???"), "backslashes are escaped and other scripts replaced");
+    }
+}
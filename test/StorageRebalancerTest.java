@@ -0,0 +1,131 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StorageRebalancerTest {
+    private static final String[] USERS = {"amina@example.com", "omar@example.com", "layla@example.com"};
+
+    @TempDir
+    Path root;
+
+    private static InvestmentRepository repository(Path file) {
+        return new InvestmentRepository(file, StorageFormat.TEXT, new PortfolioCache(0), null);
+    }
+
+    /**
+     * Writes a portfolio for every user in the flat layout, with its running totals stored beside it.
+     */
+    private void writeFlatPortfolios() throws IOException {
+        Files.write(root.resolve("users.txt"), List.of("users"));
+        StorageLayout flat = new StorageLayout(root, 0);
+        for (int u = 0; u < USERS.length; u++) {
+            InvestmentRepository repository = repository(flat.portfolioFile(USERS[u]));
+            repository.save(new Asset("a1", "Gold bar", 1000_00 + u, "gold"));
+            repository.save(new Asset("a2", "Shares", 250_50, "stock"));
+            repository.totals();
+            repository.compact();
+        }
+    }
+
+    private List<Path> portfolioFilesIn(Path dir, int depth) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(dir, depth)) {
+            walk.filter(Files::isRegularFile).filter(f -> f.getFileName().toString().startsWith("investments_")).forEach(files::add);
+        }
+        return files;
+    }
+
+    /**
+     * Checks that every user's portfolio is found through the layout, in its bucket, with its assets.
+     */
+    private void assertPortfoliosIn(StorageLayout layout) throws IOException {
+        for (int u = 0; u < USERS.length; u++) {
+            Path file = layout.portfolioFile(USERS[u]);
+            assertEquals(layout.bucket(file.getFileName().toString()), file.getParent());
+            assertTrue(Files.exists(InvestmentRepository.totalsFile(file)), "running totals moved with the log");
+            InvestmentRepository repository = repository(file);
+            assertEquals(2, repository.loadAll().size());
+            assertEquals(1250_50 + u, repository.totals().total());
+        }
+    }
+
+    @Test
+    void flatPortfoliosMoveIntoTheirBuckets() throws IOException {
+        writeFlatPortfolios();
+        int files = portfolioFilesIn(root, 1).size();
+
+        assertArrayEquals(new int[] {files, 0}, StorageRebalancer.rebalance(new StorageLayout(root, 2)));
+
+        assertEquals(List.of(), portfolioFilesIn(root, 1));
+        assertEquals(files, portfolioFilesIn(root, StorageLayout.MAX_LEVELS + 2).size());
+        assertTrue(Files.exists(root.resolve("users.txt")), "the users file stays in the root");
+        assertPortfoliosIn(new StorageLayout(root, 2));
+    }
+
+    @Test
+    void rerunFinishesAPartialMove() throws IOException {
+        writeFlatPortfolios();
+        StorageLayout layout = new StorageLayout(root, 2);
+        Path moved = root.resolve(StorageLayout.portfolioFileName(USERS[0]));
+        Path target = layout.bucket(moved.getFileName().toString()).resolve(moved.getFileName());
+        Files.createDirectories(target.getParent());
+        Files.move(moved, target);
+        int left = portfolioFilesIn(root, 1).size();
+
+        assertArrayEquals(new int[] {left, 0}, StorageRebalancer.rebalance(layout));
+        assertArrayEquals(new int[] {0, 0}, StorageRebalancer.rebalance(layout));
+        assertPortfoliosIn(new StorageLayout(root, 2));
+    }
+
+    @Test
+    void fileAlreadyInItsBucketIsLeftAlone() throws IOException {
+        writeFlatPortfolios();
+        StorageLayout layout = new StorageLayout(root, 2);
+        Path flat = root.resolve(StorageLayout.portfolioFileName(USERS[1]));
+        Path target = layout.bucket(flat.getFileName().toString()).resolve(flat.getFileName());
+        Files.createDirectories(target.getParent());
+        Files.copy(flat, target);
+        int files = portfolioFilesIn(root, 1).size();
+
+        assertArrayEquals(new int[] {files - 1, 1}, StorageRebalancer.rebalance(layout));
+        assertTrue(Files.exists(flat), "the conflicting file is not overwritten or deleted");
+        assertEquals(target, layout.portfolioFile(USERS[1]));
+    }
+
+    @Test
+    void lookupsFollowTheFilesThroughARebalance() throws IOException {
+        writeFlatPortfolios();
+        StorageLayout twoLevels = new StorageLayout(root, 2);
+        for (String user : USERS) {
+            assertEquals(root.resolve(StorageLayout.portfolioFileName(user)), twoLevels.portfolioFile(user),
+                    "flat portfolios are used where they are until moved");
+        }
+
+        StorageRebalancer.rebalance(twoLevels);
+        assertPortfoliosIn(twoLevels);
+
+        StorageLayout oneLevel = new StorageLayout(root, 1);
+        int files = portfolioFilesIn(root, StorageLayout.MAX_LEVELS + 2).size();
+        assertArrayEquals(new int[] {files, 0}, StorageRebalancer.rebalance(oneLevel));
+        assertPortfoliosIn(oneLevel);
+        try (Stream<Path> buckets = Files.list(root.resolve(StorageLayout.PORTFOLIOS))) {
+            buckets.forEach(bucket -> {
+                try (Stream<Path> entries = Files.list(bucket)) {
+                    assertFalse(entries.anyMatch(Files::isDirectory), "emptied second-level buckets are removed");
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+        }
+    }
+}
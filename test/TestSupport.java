@@ -0,0 +1,83 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Helpers shared by the tests: silencing the application's console messages and running a body on
+ * several threads at once.
+ */
+final class TestSupport {
+    private static final PrintStream QUIET = new PrintStream(OutputStream.nullOutputStream());
+
+    private TestSupport() {
+    }
+
+    /**
+     * Runs an action with {@code System.out} redirected to nowhere.
+     * @param action Action to run
+     */
+    static void quietly(Runnable action) {
+        quietly(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Evaluates a supplier with {@code System.out} redirected to nowhere.
+     * @param action Supplier to evaluate
+     * @return The supplier's result
+     */
+    static <T> T quietly(Supplier<T> action) {
+        PrintStream out = System.out;
+        System.setOut(QUIET);
+        try {
+            return action.get();
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Runs a body on several threads released together and waits for all of them.
+     * @param threads Number of threads
+     * @param body Called with each thread's number
+     * @throws IllegalStateException If a thread failed, with the first failure as its cause
+     */
+    static void runThreads(int threads, IntConsumer body) {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Throwable> failures = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    body.accept(thread);
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Test thread failed", failures.get(0));
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class UserRepositoryTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void compactionKeepsTheOrderOfFirstRegistration() throws IOException {
+        Path file = dir.resolve("users.txt");
+        UserRepository repository = new UserRepository(file.toString());
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            String email = "user" + (i * 7919 % 40) + "@example.com";
+            assertTrue(repository.registerIfAbsent(new Investor(email, "old" + i, "User " + i)));
+            expected.add(email + ",old" + i + ",User " + i);
+        }
+
+        // ten replacements reach a quarter of the records, which compacts the file
+        for (int i = 39; i >= 30; i--) {
+            String email = "user" + (i * 7919 % 40) + "@example.com";
+            assertTrue(repository.replacePassword(email.toUpperCase(), "old" + i, "new" + i));
+            expected.set(i, email + ",new" + i + ",User " + i);
+        }
+
+        assertEquals(expected, Files.readAllLines(file, Charset.defaultCharset()));
+        UserRepository reader = new UserRepository(file.toString());
+        assertEquals("new35", reader.findUserByEmail("user" + (35 * 7919 % 40) + "@example.com").password);
+        assertEquals("old5", reader.findUserByEmail("user" + (5 * 7919 % 40) + "@example.com").password);
+    }
+}
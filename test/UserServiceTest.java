@@ -0,0 +1,73 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class UserServiceTest {
+    private static final PasswordHasher HASHER = new PasswordHasher(1);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void concurrentRegistrationsKeepOneRecordPerEmail() throws IOException {
+        Path file = dir.resolve("users.txt");
+        int threads = 8;
+        int emails = 300;
+        UserService shared = new UserService(new UserRepository(file.toString()), HASHER);
+        AtomicInteger registered = new AtomicInteger();
+
+        TestSupport.quietly(() -> TestSupport.runThreads(threads, t -> {
+            UserService service = t % 2 == 0 ? shared : new UserService(new UserRepository(file.toString()), HASHER);
+            for (int i = 0; i < emails; i++) {
+                int n = (i + t * emails / threads) % emails;
+                String email = (t % 3 == 0 ? "USER" : "user") + n + "@example.com";
+                if (service.registerUser(new Investor(email, "secret" + n, "User " + n))) {
+                    registered.incrementAndGet();
+                }
+            }
+        }));
+
+        assertEquals(emails, registered.get());
+        assertEquals(emails, Files.readAllLines(file).size());
+        UserRepository reader = new UserRepository(file.toString());
+        for (int n = 0; n < emails; n++) {
+            assertNotNull(reader.findUserByEmail("User" + n + "@Example.com"));
+        }
+    }
+
+    @Test
+    void registrationHashesEvenHashShapedPasswords() throws IOException {
+        Path file = dir.resolve("users_hashed.txt");
+        UserService service = new UserService(new UserRepository(file.toString()), HASHER);
+        String hashShaped = "pbkdf2-sha256$1$AAAA$AAAA";
+        User user = new Investor("forged@example.com", hashShaped, "Forged");
+
+        assertTrue(TestSupport.quietly(() -> service.registerUser(user)));
+
+        assertEquals(hashShaped, user.password, "the caller's user is left unchanged");
+        String stored = new UserRepository(file.toString()).findUserByEmail("forged@example.com").password;
+        assertNotEquals(hashShaped, stored);
+        assertTrue(HASHER.verify(hashShaped, stored));
+        assertNotNull(TestSupport.quietly(() -> service.login("forged@example.com", hashShaped)));
+        assertNull(TestSupport.quietly(() -> service.login("forged@example.com", "AAAA")));
+    }
+
+    @Test
+    void malformedStoredHashFailsLoginWithoutThrowing() throws IOException {
+        Path file = dir.resolve("users_malformed.txt");
+        Files.write(file, List.of("broken@example.com,pbkdf2-sha256$1000$@@@@$AAAA,Broken"));
+        UserService service = new UserService(new UserRepository(file.toString()), HASHER);
+
+        assertNull(TestSupport.quietly(() -> service.login("broken@example.com", "pbkdf2-sha256$1000$@@@@$AAAA")));
+    }
+}
@@ -0,0 +1,91 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WriteAheadJournalTest {
+    @TempDir
+    Path dir;
+
+    /**
+     * Writes a portfolio through a journal and returns a copy of the journal as a crash at that point would
+     * leave it; the journal itself is then closed normally.
+     */
+    private Path crashedJournal(Path file) throws IOException {
+        Path live = dir.resolve("journal");
+        Path crashed = dir.resolve("crashed");
+        Files.createDirectories(crashed);
+        try (WriteAheadJournal journal = WriteAheadJournal.open(live, 1 << 20)) {
+            InvestmentRepository repository = new InvestmentRepository(file, StorageFormat.TEXT, new PortfolioCache(0), journal);
+            repository.save(new Asset("a1", "Gold bar", "1000.00", "gold"));
+            repository.save(new Asset("a2", "Shares", "250.50", "stock"));
+            repository.save(new Asset("a3", "Savings", "40.00", "cash"));
+            repository.update(new Asset("a1", "Gold bar", "1200.00", "gold"));
+            repository.delete("a3");
+            repository.save(new Asset("a4", "Bond", "99.99", "bond"));
+            try (Stream<Path> segments = Files.list(live)) {
+                for (Path segment : segments.filter(p -> p.toString().endsWith(".wal")).toList()) {
+                    Files.copy(segment, crashed.resolve(segment.getFileName()));
+                }
+            }
+        }
+        return crashed;
+    }
+
+    private static void assertTotals(Path file) throws IOException {
+        List<Asset> assets = new InvestmentRepository(file, StorageFormat.TEXT, new PortfolioCache(0), null).loadAll();
+        assertEquals(3, assets.size());
+        PortfolioTotals totals = new ParallelAggregator().aggregateFile(file);
+        assertEquals(1200_00 + 250_50 + 99_99, totals.total());
+        assertEquals(3, totals.assetCount());
+    }
+
+    @Test
+    void replayAppendsNothingAlreadyInTheLog() throws IOException {
+        Path file = dir.resolve("investments_replay.txt");
+        Path crashed = crashedJournal(file);
+        List<String> before = Files.readAllLines(file, Charset.defaultCharset());
+
+        TestSupport.quietly(() -> {
+            try {
+                WriteAheadJournal.open(crashed, 1 << 20).close();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        assertEquals(before, Files.readAllLines(file, Charset.defaultCharset()));
+        assertTotals(file);
+    }
+
+    @Test
+    void replayRestoresLinesLostOrTornByTheCrash() throws IOException {
+        Path file = dir.resolve("investments_lost.txt");
+        Path crashed = crashedJournal(file);
+        List<String> before = Files.readAllLines(file, Charset.defaultCharset());
+        String kept = String.join(System.lineSeparator(), before.subList(0, 3)) + System.lineSeparator();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(kept.getBytes(Charset.defaultCharset()).length);
+        }
+        Files.write(file, "#UPD,a1,Gold".getBytes(Charset.defaultCharset()), StandardOpenOption.APPEND);
+
+        TestSupport.quietly(() -> {
+            try {
+                WriteAheadJournal.open(crashed, 1 << 20).close();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        assertEquals(before, Files.readAllLines(file, Charset.defaultCharset()));
+        assertTotals(file);
+    }
+}
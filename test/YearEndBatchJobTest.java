@@ -0,0 +1,125 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class YearEndBatchJobTest {
+    private static final int USERS = 12;
+    private static final ZakatRules RULES = new ZakatRules.Builder().build();
+    private static final LocalDate AS_OF = LocalDate.of(2025, 12, 31);
+
+    @TempDir
+    Path dir;
+
+    private StorageLayout layout;
+    private Path output;
+
+    /**
+     * Exports part of a report and then fails, as a full disk would.
+     */
+    private static final class FailingExporter implements ReportExporter {
+        public List<String> formats() {
+            return List.of("test-failing");
+        }
+
+        public String extension() {
+            return "csv";
+        }
+
+        public void export(AssetSource assets, WritableByteChannel out) throws IOException {
+            out.write(ByteBuffer.wrap("ID,Name".getBytes(StandardCharsets.US_ASCII)));
+            throw new IOException("No space left on device");
+        }
+    }
+
+    @BeforeEach
+    void writeUsers() throws IOException {
+        ReportExporters.register(new FailingExporter());
+        layout = new StorageLayout(dir.resolve("storage"), 2);
+        output = dir.resolve("yearend");
+        List<String> users = new ArrayList<>();
+        for (int n = 0; n < USERS; n++) {
+            String email = "user" + n + "@example.com";
+            users.add(email + ",secret,User " + n);
+            new InvestmentRepository(layout.portfolioFile(email), StorageFormat.TEXT, new PortfolioCache(0), null)
+                    .save(new Asset("a1", "Savings", (n + 1) * 1_000_00L, "cash"));
+        }
+        Files.createDirectories(layout.usersFile().getParent());
+        Files.write(layout.usersFile(), users);
+    }
+
+    private YearEndBatchJob job(String format) {
+        return new YearEndBatchJob(layout, output, format, 3, RULES, AS_OF);
+    }
+
+    private static int number(String email) {
+        return Integer.parseInt(email.substring(4, email.indexOf('@')));
+    }
+
+    private List<Path> under(Path root) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.forEach(files::add);
+        }
+        return files;
+    }
+
+    @Test
+    void rerunResumesAfterFailuresWithoutPartialReports() throws IOException {
+        YearEndBatchJob good = job("csv");
+        YearEndBatchJob flaky = new YearEndBatchJob(layout, output, "test-failing", 3, RULES, AS_OF) {
+            @Override
+            long process(String email) throws IOException {
+                return number(email) % 3 == 0 ? super.process(email) : good.process(email);
+            }
+        };
+        Path stale = Files.createDirectories(good.userDirectory("user3@example.com")).resolve("stale.txt");
+        Files.write(stale, List.of("left by an older attempt"));
+
+        YearEndBatchJob.Summary first = TestSupport.quietly(() -> io(flaky));
+
+        assertEquals(USERS - USERS / 3, first.processed());
+        assertEquals(USERS / 3, first.failed());
+        assertEquals(USERS / 3, Files.readAllLines(output.resolve(YearEndBatchJob.FAILED_FILE)).size());
+        for (int n = 0; n < USERS; n += 3) {
+            Path directory = good.userDirectory("user" + n + "@example.com");
+            assertEquals(n == 3, Files.exists(directory), "a failed attempt leaves no reports behind: " + directory);
+        }
+
+        YearEndBatchJob.Summary second = TestSupport.quietly(() -> io(good));
+
+        assertEquals(USERS / 3, second.processed());
+        assertEquals(USERS - USERS / 3, second.skipped());
+        assertEquals(0, second.failed());
+        assertEquals(USERS, Files.readAllLines(output.resolve(YearEndBatchJob.DONE_FILE)).size());
+        for (int n = 0; n < USERS; n++) {
+            try (Stream<Path> reports = Files.list(good.userDirectory("user" + n + "@example.com"))) {
+                assertEquals(2, reports.count(), "user" + n);
+            }
+        }
+        assertEquals(0, under(output).stream().filter(p -> p.toString().endsWith(".partial")).count());
+
+        YearEndBatchJob.Summary third = TestSupport.quietly(() -> io(good));
+        assertEquals(0, third.processed());
+        assertEquals(USERS, third.skipped());
+    }
+
+    private static YearEndBatchJob.Summary io(YearEndBatchJob job) {
+        try {
+            return job.run();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
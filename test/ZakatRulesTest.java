@@ -0,0 +1,28 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class ZakatRulesTest {
+    private final ZakatRules rules = new ZakatRules.Builder().exempt("real-estate").rate("Crops", 500, false).build();
+
+    @Test
+    void typesMatchInAnyCase() {
+        assertEquals(500, rules.rateOf("crops"));
+        assertEquals(500, rules.rateOf("CROPS"));
+        assertEquals(0, rules.rateOf("Real-Estate"));
+        assertEquals(ZakatRules.STANDARD_RATE_BASIS_POINTS, rules.rateOf("stock"));
+    }
+
+    @Test
+    void manyDistinctTypesAssessLikeTheFallback() {
+        Map<String, Long> byType = new LinkedHashMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            byType.put("type-" + i, 100_00L);
+        }
+        byType.put("REAL-ESTATE", 1_000_000_00L);
+
+        assertEquals(10_000 * 2_50L, rules.assess(byType, null, null).dueMinor());
+    }
+}